@@ -0,0 +1,111 @@
+package com.dpm.microvacbench;
+
+import com.dpm.microvacapp.BinaryWireCodec;
+import com.dpm.microvacapp.Command;
+import com.dpm.microvacapp.CommandLatencyStats;
+import com.dpm.microvacapp.CommandQueue;
+import com.dpm.microvacapp.TextWireCodec;
+import com.dpm.microvacapp.WireCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Path of a command from RobotCommander.send to the socket buffer: queued by the caller,
+ * taken by the writer thread and encoded, and the same with its latency recorded. The
+ * Android logging of rejected commands is left out, as the queue never fills here. It
+ * also sends the wheel speeds of proportional driving, one per sensor sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandSendBenchmark {
+
+    @Param({"binary", "text"})
+    public String protocol;
+
+    private final Command[] _commands = {
+            Command.FORWARDS, Command.TURN_LEFT, Command.expression(3), Command.STOP,
+            Command.expression(1000), Command.BACKWARDS, Command.TURN_RIGHT, Command.STOP
+    };
+
+    private CommandQueue<Command> _queue;
+    private WireCodec _codec;
+    private ByteBuffer _buffer;
+    private CommandLatencyStats _stats;
+    private int _index;
+    private int _sequence;
+
+    @Setup
+    public void setUp(){
+
+        _queue = new CommandQueue<Command>(64);
+        _codec = protocol.equals("binary") ? BinaryWireCodec.INSTANCE : TextWireCodec.INSTANCE;
+        _buffer = ByteBuffer.allocateDirect(256);
+        _stats = new CommandLatencyStats();
+    }
+
+    @Benchmark
+    public Command enqueue(){
+
+        _queue.offer(_commands[_index++ & 7]);
+        return _queue.poll();
+    }
+
+    @Benchmark
+    public int encode(){
+
+        _buffer.clear();
+        _codec.encode(_commands[_index++ & 7], _sequence++ & 0xFFFF, _buffer);
+        return _buffer.position();
+    }
+
+    @Benchmark
+    public int send(){
+
+        _queue.offer(_commands[_index++ & 7]);
+        Command command = _queue.poll();
+        _buffer.clear();
+        _codec.encode(command, _sequence++ & 0xFFFF, _buffer);
+        return _buffer.position();
+    }
+
+    @Benchmark
+    public int sendSpeed(){
+
+        int speed = _index++ % (2 * Command.MAX_SPEED + 1) - Command.MAX_SPEED;
+        _queue.offer(Command.speed(speed, -speed));
+        Command command = _queue.poll();
+        _buffer.clear();
+        _codec.encode(command, _sequence++ & 0xFFFF, _buffer);
+        return _buffer.position();
+    }
+
+    @Benchmark
+    public int sendTimed(){
+
+        long now = System.nanoTime();
+        _queue.offer(_commands[_index++ & 7], now, now);
+        _stats.recordQueued(now, now);
+        Command command = _queue.poll();
+        _buffer.clear();
+        _codec.encode(command, _sequence++ & 0xFFFF, _buffer);
+        _stats.recordWritten(_queue.getPolledOriginTime(), _queue.getPolledQueuedTime(), System.nanoTime());
+        return _buffer.position();
+    }
+}
@@ -0,0 +1,44 @@
+package com.dpm.microvacbench;
+
+import com.dpm.framework.DatetimeUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Comparison of the days of two dates, with dates of the same and of different days.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DatetimeUtilsBenchmark {
+
+    private final static long HOUR_MILLIS = 3600000L;
+
+    private final Date _date = new Date(1600000000000L);
+    private final Date _sameDay = new Date(_date.getTime() + HOUR_MILLIS);
+    private final Date _otherDay = new Date(_date.getTime() + 30 * HOUR_MILLIS);
+
+    @Benchmark
+    public boolean sameDay(){
+        return DatetimeUtils.areSameDay(_date, _sameDay);
+    }
+
+    @Benchmark
+    public boolean otherDay(){
+        return DatetimeUtils.areSameDay(_date, _otherDay);
+    }
+}
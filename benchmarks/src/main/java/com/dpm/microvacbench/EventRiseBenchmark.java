@@ -0,0 +1,102 @@
+package com.dpm.microvacbench;
+
+import com.dpm.framework.AsyncEventDispatcher;
+import com.dpm.framework.Event;
+import com.dpm.framework.EventArgs;
+import com.dpm.framework.EventDispatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raising an event to a growing number of dispatchers, with reused arguments, as the
+ * telemetry and connection events do. riseWeak does the same with the dispatchers
+ * registered weakly, and riseConflated measures the producer side of dispatchers
+ * delivered on another thread, keeping only their latest event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventRiseBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int dispatchers;
+
+    /**
+     * Counts the dispatches, so they are not optimized away.
+     */
+    private static class CountingDispatcher implements EventDispatcher<EventArgs> {
+
+        long count;
+
+        @Override
+        public void dispatch(Object o, EventArgs args) {
+            count++;
+        }
+    }
+
+    private final Event<EventArgs> _event = new Event<EventArgs>();
+    private final Event<EventArgs> _weakEvent = new Event<EventArgs>();
+    private final Event<EventArgs> _conflatedEvent = new Event<EventArgs>();
+    // Keeps the weakly registered dispatchers alive
+    private CountingDispatcher[] _weakDispatchers;
+    private final EventArgs _args = new EventArgs();
+    private CountingDispatcher _last;
+    private ExecutorService _executor;
+
+    @Setup
+    public void setUp(){
+
+        _executor = Executors.newSingleThreadExecutor();
+        _weakDispatchers = new CountingDispatcher[dispatchers];
+        for(int i = 0; i < dispatchers; i++){
+            _last = new CountingDispatcher();
+            _event.add(_last);
+            _weakDispatchers[i] = new CountingDispatcher();
+            _weakEvent.addWeak(_weakDispatchers[i]);
+            _conflatedEvent.add(new AsyncEventDispatcher<EventArgs>(new CountingDispatcher(), _executor, 1, true));
+        }
+    }
+
+    @TearDown
+    public void tearDown(){
+        _executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long rise(){
+
+        _event.rise(this, _args);
+        return _last.count;
+    }
+
+    @Benchmark
+    public long riseWeak(){
+
+        _weakEvent.rise(this, _args);
+        return _weakDispatchers[dispatchers - 1].count;
+    }
+
+    @Benchmark
+    public void riseConflated(){
+
+        _conflatedEvent.rise(this, _args);
+    }
+}
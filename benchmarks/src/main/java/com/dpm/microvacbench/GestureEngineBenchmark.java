@@ -0,0 +1,77 @@
+package com.dpm.microvacbench;
+
+import com.dpm.microvacapp.GestureEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gesture engine fed one sample at a time, as by the sensor thread, and in batches, as
+ * when processing a recording. Both are per sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GestureEngineBenchmark {
+
+    private final static int SAMPLES = 4096;
+    private final static long SAMPLE_INTERVAL_NANOS = 5000000L;
+
+    private final float[] _samples = new float[3 * SAMPLES];
+    private final long[] _times = new long[SAMPLES];
+    private final int[] _indexes = new int[SAMPLES];
+    private final int[] _statuses = new int[SAMPLES];
+    private final GestureEngine _engine = new GestureEngine();
+    private long _timeOffset;
+    private int _index;
+
+    @Setup
+    public void setUp(){
+
+        // Slow gestures in every direction, with noise
+        Random random = new Random(1);
+        for(int i = 0; i < SAMPLES; i++){
+            double phase = 2 * Math.PI * i / 1024;
+            double pitch = Math.sin(phase);
+            double roll = Math.cos(phase * 0.7) * 0.9;
+            _samples[3 * i] = (float)(-9.81 * Math.sin(roll) + random.nextGaussian() * 0.5);
+            _samples[3 * i + 1] = (float)(9.81 * Math.cos(roll) * Math.sin(pitch) + random.nextGaussian() * 0.5);
+            _samples[3 * i + 2] = (float)(9.81 * Math.cos(roll) * Math.cos(pitch) + random.nextGaussian() * 0.5);
+            _times[i] = i * SAMPLE_INTERVAL_NANOS;
+        }
+    }
+
+    @Benchmark
+    public int update(){
+
+        int i = _index++ & (SAMPLES - 1);
+        if(i == 0){
+            _timeOffset += SAMPLES * SAMPLE_INTERVAL_NANOS;
+        }
+        return _engine.update(_samples[3 * i], _samples[3 * i + 1], _samples[3 * i + 2],
+                _timeOffset + _times[i]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int process(){
+
+        _engine.reset(_engine.getStatus());
+        return _engine.process(_samples, _times, SAMPLES, _indexes, _statuses);
+    }
+}
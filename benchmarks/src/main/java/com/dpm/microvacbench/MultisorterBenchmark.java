@@ -0,0 +1,83 @@
+package com.dpm.microvacbench;
+
+import com.dpm.framework.Multisorter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting a list by two criteria. Each call sorts a fresh copy of the same unsorted list,
+ * so the copy is included in the measure; {@link #copy()} gives its cost alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultisorterBenchmark {
+
+    @Param({"10", "1000"})
+    public int size;
+
+    private final List<Comparator<int[]>> _comparators = Arrays.<Comparator<int[]>>asList(
+            new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return a[1] < b[1] ? -1 : a[1] == b[1] ? 0 : 1;
+                }
+            },
+            new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+                }
+            });
+
+    private List<int[]> _unsorted;
+    private ArrayList<int[]> _list;
+
+    @Setup
+    public void setUp(){
+
+        Random random = new Random(1);
+        _unsorted = new ArrayList<int[]>(size);
+        for(int i = 0; i < size; i++){
+            _unsorted.add(new int[]{ random.nextInt(size / 4 + 1), random.nextInt() });
+        }
+        _list = new ArrayList<int[]>(size);
+    }
+
+    @Benchmark
+    public List<int[]> copy(){
+
+        _list.clear();
+        _list.addAll(_unsorted);
+        return _list;
+    }
+
+    @Benchmark
+    public List<int[]> sort(){
+
+        _list.clear();
+        _list.addAll(_unsorted);
+        Multisorter.sort(_list, _comparators);
+        return _list;
+    }
+}
@@ -0,0 +1,86 @@
+package com.dpm.microvacbench;
+
+import com.dpm.framework.EventDispatcher;
+import com.dpm.framework.ProgressReporterRunnable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reporting one increment of progress from a task, to a progress listener and to a
+ * dispatcher of the progressReporting event which keeps the arguments, as one handing
+ * them to the UI thread does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProgressReportBenchmark {
+
+    /**
+     * Task which reports when asked, instead of from run().
+     */
+    private static class ReportingTask extends ProgressReporterRunnable {
+
+        ReportingTask(){
+            super(Integer.MAX_VALUE, null);
+        }
+
+        void report(){
+            onProgressReporting(1);
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    private final ReportingTask _listenedTask = new ReportingTask();
+    private final ReportingTask _dispatchedTask = new ReportingTask();
+    private long _count;
+    private ProgressReporterRunnable.ProgressReportingEventArgs _lastArgs;
+
+    @Setup
+    public void setUp(){
+
+        _listenedTask.setProgressListener(new ProgressReporterRunnable.ProgressListener() {
+            @Override
+            public void progressReported(ProgressReporterRunnable runnable, int increment, int progress) {
+                _count += increment;
+            }
+        });
+        _dispatchedTask.progressReporting.add(new EventDispatcher<ProgressReporterRunnable.ProgressReportingEventArgs>() {
+            @Override
+            public void dispatch(Object o, ProgressReporterRunnable.ProgressReportingEventArgs args) {
+                _lastArgs = args;
+                _count += args.getIncrement();
+            }
+        });
+    }
+
+    @Benchmark
+    public long reportToListener(){
+
+        _listenedTask.report();
+        return _count;
+    }
+
+    @Benchmark
+    public long reportToEvent(){
+
+        _dispatchedTask.report();
+        return _count;
+    }
+}
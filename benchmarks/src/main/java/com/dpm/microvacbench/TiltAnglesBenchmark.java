@@ -0,0 +1,57 @@
+package com.dpm.microvacbench;
+
+import com.dpm.microvacapp.TiltAngles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tilt angles of the device from the accelerometer samples, computed on every sensor
+ * event while gesture driving.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TiltAnglesBenchmark {
+
+    private final static int SAMPLES = 1024;
+
+    private final float[][] _samples = new float[SAMPLES][3];
+    private final double[] _angles = new double[2];
+    private int _index;
+
+    @Setup
+    public void setUp(){
+
+        // Gravity with the device held in any position, plus some noise
+        Random random = new Random(1);
+        for(float[] sample: _samples){
+            double pitch = (random.nextDouble() - 0.5) * Math.PI;
+            double roll = (random.nextDouble() - 0.5) * Math.PI;
+            sample[0] = (float)(-9.81 * Math.sin(roll) + random.nextGaussian() * 0.1);
+            sample[1] = (float)(9.81 * Math.cos(roll) * Math.sin(pitch) + random.nextGaussian() * 0.1);
+            sample[2] = (float)(9.81 * Math.cos(roll) * Math.cos(pitch) + random.nextGaussian() * 0.1);
+        }
+    }
+
+    @Benchmark
+    public double compute(){
+
+        TiltAngles.compute(_samples[_index++ & (SAMPLES - 1)], _angles);
+        return _angles[TiltAngles.PITCH] + _angles[TiltAngles.ROLL];
+    }
+}
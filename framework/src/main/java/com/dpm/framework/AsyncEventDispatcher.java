@@ -0,0 +1,253 @@
+package com.dpm.framework;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tratador que entrega los eventos a otro en un ejecutor, como un hilo de fondo o el
+ * hilo de la interfaz mediante un {@link Invoker}, de modo que quien levanta el evento
+ * nunca espera al tratador.
+ *
+ * Los eventos se entregan en el orden en que se levantaron, de uno en uno, aunque el
+ * ejecutor tenga varios hilos. Hay dos modos:
+ *
+ * <ul>
+ *     <li>Cola: los eventos pendientes se guardan en una cola acotada sin bloqueos. Si
+ *     está llena, el evento nuevo se descarta y se cuenta.</li>
+ *     <li>Conflación: sólo se guarda el último evento pendiente, que sustituye a los
+ *     anteriores. Para eventos frecuentes de los que sólo importa el estado más
+ *     reciente.</li>
+ * </ul>
+ *
+ * Levantar el evento no reserva memoria. La tarea que se pasa al ejecutor es siempre la
+ * misma, y sólo se le pasa si no hay ya una pendiente, así que un productor más rápido
+ * que el tratador apenas paga la escritura en la cola.
+ *
+ * @author David
+ *
+ */
+public class AsyncEventDispatcher<T extends EventArgs> implements EventDispatcher<T> {
+
+	public final static int DEFAULT_CAPACITY = 64;
+
+	private final EventDispatcher<T> _target;
+	private final Executor _executor;
+	private final boolean _isConflating;
+
+	// Cola de D. Vyukov, con varios productores y un único consumidor: la tarea de entrega
+	private final int _capacity;
+	private final int _mask;
+	private final AtomicReferenceArray<Object> _senders;
+	private final AtomicReferenceArray<T> _args;
+	private final AtomicLongArray _sequences;
+	private final AtomicLong _tail = new AtomicLong();
+	private volatile long _head = 0;
+
+	// Último evento en conflación. La versión es impar mientras un productor lo escribe
+	private final AtomicLong _version = new AtomicLong();
+	private volatile Object _latestSender;
+	private volatile T _latestArgs;
+	// Sólo la escribe la tarea de entrega
+	private volatile long _deliveredVersion = 0;
+
+	private final AtomicBoolean _isScheduled = new AtomicBoolean(false);
+	private final AtomicLong _droppedCount = new AtomicLong();
+	private volatile long _conflatedCount = 0;
+
+	private final Runnable _deliveryTask = new Runnable() {
+
+		@Override
+		public void run() {
+			_deliver();
+		}
+	};
+
+	/**
+	 * Entrega todos los eventos, con una cola de {@link #DEFAULT_CAPACITY}
+	 *
+	 * @param target Tratador al que se entregan los eventos
+	 * @param executor Ejecutor donde se entregan
+	 */
+	public AsyncEventDispatcher(EventDispatcher<T> target, Executor executor){
+		this(target, executor, DEFAULT_CAPACITY, false);
+	}
+
+	/**
+	 * @param target Tratador al que se entregan los eventos
+	 * @param executor Ejecutor donde se entregan
+	 * @param capacity Eventos pendientes como máximo. Se redondea a una potencia de dos.
+	 *                 En conflación no se usa.
+	 * @param isConflating Indica si sólo se entrega el último evento pendiente
+	 */
+	public AsyncEventDispatcher(EventDispatcher<T> target, Executor executor, int capacity, boolean isConflating){
+
+		if(capacity < 1){
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity){
+			size <<= 1;
+		}
+
+		_target = target;
+		_executor = executor;
+		_isConflating = isConflating;
+		_capacity = isConflating ? 1 : size;
+		_mask = _capacity - 1;
+		_senders = new AtomicReferenceArray<Object>(_capacity);
+		_args = new AtomicReferenceArray<T>(_capacity);
+		_sequences = new AtomicLongArray(_capacity);
+		for(int i = 0; i < _capacity; i++){
+			_sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return Tratador al que se entregan los eventos
+	 */
+	public EventDispatcher<T> getTarget(){
+		return _target;
+	}
+
+	public boolean isConflating(){
+		return _isConflating;
+	}
+
+	/**
+	 * @return Eventos descartados por estar la cola llena
+	 */
+	public long getDroppedCount(){
+		return _droppedCount.get();
+	}
+
+	/**
+	 * @return Eventos sustituidos por otro más reciente antes de entregarse
+	 */
+	public long getConflatedCount(){
+		return _conflatedCount;
+	}
+
+	/**
+	 * @return Indica si hay eventos sin entregar
+	 */
+	public boolean hasPending(){
+		return _isConflating
+				? _version.get() != _deliveredVersion
+				: _tail.get() != _head;
+	}
+
+	/**
+	 * Guarda el evento y programa su entrega. Se puede llamar desde cualquier hilo.
+	 */
+	@Override
+	public void dispatch(Object o, T args){
+
+		if(_isConflating){
+			_publish(o, args);
+		}else if(!_offer(o, args)){
+			_droppedCount.incrementAndGet();
+			return;
+		}
+
+		if(_isScheduled.compareAndSet(false, true)){
+			_executor.execute(_deliveryTask);
+		}
+	}
+
+	private boolean _offer(Object o, T args){
+
+		long position = _tail.get();
+		while(true){
+			int index = (int)position & _mask;
+			long difference = _sequences.get(index) - position;
+			if(difference == 0){
+				if(_tail.compareAndSet(position, position + 1)){
+					break;
+				}
+				position = _tail.get();
+			}else if(difference < 0){
+				return false;
+			}else{
+				position = _tail.get();
+			}
+		}
+
+		int index = (int)position & _mask;
+		_senders.lazySet(index, o);
+		_args.lazySet(index, args);
+		_sequences.lazySet(index, position + 1);
+
+		return true;
+	}
+
+	private void _publish(Object o, T args){
+
+		// Los productores sólo se esperan entre ellos, lo que tardan en escribir dos campos
+		long version;
+		while(((version = _version.get()) & 1) != 0 || !_version.compareAndSet(version, version + 1)){
+			Thread.yield();
+		}
+		_latestSender = o;
+		_latestArgs = args;
+		_version.set(version + 2);
+	}
+
+	private void _deliver(){
+
+		try {
+			if(_isConflating){
+				_deliverLatest();
+			}else{
+				// Como mucho lo que cabe en la cola, para no acaparar el hilo del ejecutor
+				for(int i = 0; i < _capacity && _deliverNext(); i++);
+			}
+		}finally{
+			_isScheduled.set(false);
+			// Lo que llegó durante la entrega, o después del límite, en otra tarea
+			if(hasPending() && _isScheduled.compareAndSet(false, true)){
+				_executor.execute(_deliveryTask);
+			}
+		}
+	}
+
+	private boolean _deliverNext(){
+
+		long position = _head;
+		int index = (int)position & _mask;
+		if(_sequences.get(index) != position + 1){
+			return false;
+		}
+
+		Object sender = _senders.get(index);
+		T args = _args.get(index);
+		_senders.lazySet(index, null);
+		_args.lazySet(index, null);
+		_sequences.lazySet(index, position + _capacity);
+		_head = position + 1;
+		_target.dispatch(sender, args);
+
+		return true;
+	}
+
+	private void _deliverLatest(){
+
+		long version;
+		Object sender;
+		T args;
+		do {
+			version = _version.get();
+			sender = _latestSender;
+			args = _latestArgs;
+		}while((version & 1) != 0 || version != _version.get());
+
+		if(version != _deliveredVersion){
+			_conflatedCount += (version - _deliveredVersion) / 2 - 1;
+			_deliveredVersion = version;
+			_target.dispatch(sender, args);
+		}
+	}
+}
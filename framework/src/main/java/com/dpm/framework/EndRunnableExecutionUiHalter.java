@@ -2,25 +2,40 @@ package com.dpm.framework;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.dpm.framework.ProgressReporterRunnable.ProgressReportingEventArgs;
+import com.dpm.framework.ProgressReporterRunnable.ProgressListener;
 
 /**
  * Detiene la interfaz de usuario y muestra un diálogo de espera 
  * mientras se ejecuta una tarea
  * 
+ * El progreso se acumula en la tarea y el diálogo se refresca como mucho una vez por
+ * intervalo, un fotograma por defecto, con una sola actualización pendiente. El final
+ * se entrega siempre, una sola vez. El oyente de progreso que ya tuviera la tarea sigue
+ * recibiendo los informes y se restaura al terminar.
+ * 
  * @author David
  *
  */
 public class EndRunnableExecutionUiHalter {
 	
+	/**
+	 * Intervalo mínimo entre actualizaciones del diálogo: un fotograma a 60 Hz
+	 */
+	public final static long DEFAULT_UPDATE_INTERVAL = 16;
+	
 	private static String LOG_TAG = EndRunnableExecutionUiHalter.class.getSimpleName();
+	// Para Log.isLoggable, que no admite etiquetas de más de 23 caracteres.
+	// Se activa con: adb shell setprop log.tag.UiHalterProgress VERBOSE
+	private final static String PROGRESS_LOG_TAG = "UiHalterProgress";
 	private static EndRunnableExecutionUiHalter _instance;
 	
 	private ProgressDialog _dialog;
@@ -29,6 +44,15 @@ public class EndRunnableExecutionUiHalter {
 	private CharSequence _dialogMessage;
 	private ProgressReporterRunnable _runnable;
 	private int _progress = 0;
+	// Progreso de la tarea al empezar, por si se reutiliza
+	private int _startProgress = 0;
+	// Como mucho una actualización pendiente en el hilo de la interfaz, que lee el
+	// progreso acumulado en la tarea cuando se ejecuta
+	private final AtomicBoolean _isUpdatePending = new AtomicBoolean(false);
+	private ProgressListener _progressListener;
+	private volatile long _updateInterval = DEFAULT_UPDATE_INTERVAL;
+	// SystemClock.uptimeMillis() de la última actualización, la base de tiempo del Handler
+	private volatile long _lastUpdateTime = 0;
 	
 	public static EndRunnableExecutionUiHalter getInstance(){
 		if(_instance == null){
@@ -41,6 +65,17 @@ public class EndRunnableExecutionUiHalter {
 	private EndRunnableExecutionUiHalter(){
 	}
 	
+	/**
+	 * @param updateInterval Milisegundos mínimos entre actualizaciones del diálogo
+	 */
+	public void setUpdateInterval(long updateInterval){
+		_updateInterval = Math.max(0, updateInterval);
+	}
+	
+	public long getUpdateInterval(){
+		return _updateInterval;
+	}
+	
 	/**
 	 * Inicia la tarea y muestra el diálogo de espera
 	 * 
@@ -57,36 +92,57 @@ public class EndRunnableExecutionUiHalter {
 			_dialogMessage = message;
 			_runnable = runnable;
 			_progress = 0;
+			_startProgress = runnable.getProgress();
 	
 			showDialog(context);
 			
 			final Invoker _invoker = new Invoker();
+			final Runnable updateTask = new Runnable() {
+				
+				@Override
+				public void run() {
+					// Antes de leer, para que un informe posterior programe otra
+					_isUpdatePending.set(false);
+					_lastUpdateTime = SystemClock.uptimeMillis();
+					_updateProgress(runnable);
+				}
+			};
 			
-			runnable.progressReporting.add(new EventDispatcher<ProgressReporterRunnable.ProgressReportingEventArgs>() {
+			// El oyente que ya tuviera la tarea sigue recibiendo los informes, y se
+			// restaura al terminar
+			final ProgressListener previousListener = runnable.getProgressListener();
+			// En el hilo de la tarea, sin reservar memoria en cada informe
+			_progressListener = new ProgressListener() {
 				
 				@Override
-				public void dispatch(Object o, final ProgressReportingEventArgs args) {
-					_invoker.invokeIfRequired(new Runnable() {
-						
-						@Override
-						public void run() {
-							_progress += args.getIncrement();
-							Log.v(LOG_TAG, String.format("Progreso: %1$d", _progress));
-							if(_dialog != null && _dialog.isShowing()){
-								_dialog.setProgress(_progress);
-							}						
-						}
-					});								
+				public void progressReported(ProgressReporterRunnable reporter, int increment, int progress) {
+					if(previousListener != null){
+						previousListener.progressReported(reporter, increment, progress);
+					}
+					if(_isUpdatePending.compareAndSet(false, true)){
+						// Los informes hasta entonces se acumulan en la tarea
+						long delay = _lastUpdateTime + _updateInterval - SystemClock.uptimeMillis();
+						_invoker.invokeDelayed(updateTask, Math.max(0, delay));
+					}
 				}
-			});
+			};
+			_isUpdatePending.set(false);
+			runnable.setProgressListener(_progressListener);
 			
 			ExecutorService executor = Executors.newSingleThreadExecutor();		
 			final Handler handler = new Handler() {
 				public void handleMessage(Message msg) {
 					_isRunning = false;
-					if(_dialog != null){
-						_dialog.dismiss();
-					}					
+					if(runnable.getProgressListener() == _progressListener){
+						runnable.setProgressListener(previousListener);
+					}
+					_progressListener = null;
+					// Ninguna actualización más después del final, que se entrega aquí
+					_isUpdatePending.set(true);
+					_invoker.cancel(updateTask);
+					_updateProgress(runnable);
+					// Sin retener la actividad del diálogo en esta instancia, que es estática
+					hideDialog();
 			    }
 			};
 			executor.submit(new Runnable() {
@@ -112,6 +168,16 @@ public class EndRunnableExecutionUiHalter {
 		return _isRunning;
 	}
 	
+	private void _updateProgress(ProgressReporterRunnable runnable){
+		_progress = runnable.getProgress() - _startProgress;
+		if(Log.isLoggable(PROGRESS_LOG_TAG, Log.VERBOSE)){
+			Log.v(PROGRESS_LOG_TAG, "Progreso: " + _progress);
+		}
+		if(_dialog != null && _dialog.isShowing()){
+			_dialog.setProgress(_progress);
+		}
+	}
+	
 	public void hideDialog(){
 		if(_dialog != null){
 			_dialog.dismiss();
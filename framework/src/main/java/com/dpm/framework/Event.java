@@ -1,16 +1,33 @@
 package com.dpm.framework;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 /**
  * Eventos al estilo de C#
+ *
+ * Los tratadores se guardan en un array que se sustituye por una copia en cada alta o
+ * baja (copy-on-write). Así, el evento puede levantarse desde cualquier hilo mientras
+ * otro registra tratadores, sin bloqueos ni reservas de memoria; cada llamada a rise
+ * recorre los tratadores registrados en el momento de empezar.
+ *
+ * Los tratadores se identifican por referencia, no por equals. Un tratador añadido con
+ * un ejecutor o débilmente se identifica por sí mismo, no por el tratador que lo
+ * envuelve.
+ *
+ * Los tratadores añadidos débilmente no impiden que se liberen, como los de una
+ * actividad que no debe quedar retenida por el evento. Al levantar el evento se vacía
+ * su hueco en el array, sin reservar memoria, y la siguiente alta o baja lo compacta.
  * 
  * @author David
  *
  */
 public class Event<T extends EventArgs> {
 
-	private ArrayList<EventDispatcher<T>> _dispatchers = new ArrayList<EventDispatcher<T>>();
+	private final static EventDispatcher<?>[] EMPTY = new EventDispatcher<?>[0];
+
+	private final Object _lock = new Object();
+	private volatile EventDispatcher<?>[] _dispatchers = EMPTY;
 	
 	/**
 	 * Añade un tratador del evento
@@ -22,14 +39,43 @@ public class Event<T extends EventArgs> {
 	public boolean add(EventDispatcher<T> dispatcher){
 		boolean done = false;
 		
-		if(!this._dispatchers.contains(dispatcher)){
-			this._dispatchers.add(dispatcher);
-			done = true;
+		synchronized(_lock){
+			EventDispatcher<?>[] dispatchers = _dispatchers;
+			if(_indexOf(dispatchers, dispatcher) < 0){
+				_dispatchers = _copy(dispatchers, -1, dispatcher);
+				done = true;
+			}
 		}
 		
 		return done;
 	}
 	
+	/**
+	 * Añade un tratador del evento que lo recibe en un ejecutor, como el hilo de la
+	 * interfaz mediante un {@link Invoker}, sin que quien levanta el evento le espere
+	 *
+	 * @param dispatcher Tratador del evento
+	 * @param executor Ejecutor donde se le entrega el evento
+	 * @return Indica si se ha añadido correctamente
+	 * @see AsyncEventDispatcher
+	 */
+	public boolean add(EventDispatcher<T> dispatcher, Executor executor){
+		return add(new AsyncEventDispatcher<T>(dispatcher, executor));
+	}
+
+	/**
+	 * Añade un tratador del evento sin retenerlo: cuando deja de estar referenciado en
+	 * otra parte, se libera y deja de recibir el evento. Quien lo añade debe guardarlo
+	 * mientras lo necesite, por ejemplo en un campo, o un tratador anónimo se liberaría
+	 * enseguida.
+	 *
+	 * @param dispatcher Tratador del evento
+	 * @return Indica si se ha añadido correctamente
+	 */
+	public boolean addWeak(EventDispatcher<T> dispatcher){
+		return add(new WeakEventDispatcher<T>(dispatcher));
+	}
+
 	/**
 	 * Elimina una tratador del evento
 	 * 
@@ -39,9 +85,13 @@ public class Event<T extends EventArgs> {
 	public boolean remove(EventDispatcher<T> dispatcher){
 		boolean done = false;
 		
-		if(this._dispatchers.contains(dispatcher)){
-			this._dispatchers.remove(dispatcher);
-			done = true;
+		synchronized(_lock){
+			EventDispatcher<?>[] dispatchers = _dispatchers;
+			int index = _indexOf(dispatchers, dispatcher);
+			if(index >= 0){
+				_dispatchers = _copy(dispatchers, index, null);
+				done = true;
+			}
 		}
 		
 		return done;
@@ -53,7 +103,23 @@ public class Event<T extends EventArgs> {
 	 * @return
 	 */
 	public boolean isRegistered(EventDispatcher<T> dispatcher){
-		return this._dispatchers.contains(dispatcher);
+		return _indexOf(_dispatchers, dispatcher) >= 0;
+	}
+
+	/**
+	 * @return Número de tratadores registrados, contando los débiles ya liberados hasta
+	 * que se levante el evento
+	 */
+	public int getDispatcherCount(){
+		EventDispatcher<?>[] dispatchers = _dispatchers;
+		int count = 0;
+		for (int i = 0; i < dispatchers.length; i++) {
+			if(dispatchers[i] != null){
+				count++;
+			}
+		}
+
+		return count;
 	}
 	
 	/**
@@ -61,9 +127,82 @@ public class Event<T extends EventArgs> {
 	 * @param o Objeto que levanta el evento
 	 * @param args Argumentos del evento
 	 */
+	@SuppressWarnings("unchecked")
 	public void rise(Object o, T args){
-		for (EventDispatcher<T> dispatcher : this._dispatchers) {
-			dispatcher.dispatch(o, args);
+		EventDispatcher<?>[] dispatchers = _dispatchers;
+		for (int i = 0; i < dispatchers.length; i++) {
+			EventDispatcher<T> dispatcher = (EventDispatcher<T>)dispatchers[i];
+			if(dispatcher instanceof WeakEventDispatcher){
+				dispatcher = ((WeakEventDispatcher<T>)dispatcher).getTarget();
+				if(dispatcher == null){
+					// Liberado. Otros hilos que recorran el mismo array lo saltan igual
+					dispatchers[i] = null;
+				}
+			}
+			if(dispatcher != null){
+				dispatcher.dispatch(o, args);
+			}
 		}
 	}
+
+	/**
+	 * Copia los tratadores vivos, sin los huecos ni los débiles liberados.
+	 *
+	 * @param excluded Índice que no se copia, o -1
+	 * @param added Tratador añadido al final, o null
+	 */
+	private static EventDispatcher<?>[] _copy(EventDispatcher<?>[] dispatchers, int excluded, EventDispatcher<?> added){
+		int count = added != null ? 1 : 0;
+		for (int i = 0; i < dispatchers.length; i++) {
+			if(i != excluded && _unwrap(dispatchers[i]) != null){
+				count++;
+			}
+		}
+		if(count == 0){
+			return EMPTY;
+		}
+
+		EventDispatcher<?>[] copy = new EventDispatcher<?>[count];
+		int index = 0;
+		for (int i = 0; i < dispatchers.length; i++) {
+			// Vuelve a leer el hueco, que una llamada a rise puede haber vaciado entretanto
+			EventDispatcher<?> dispatcher = dispatchers[i];
+			if(i != excluded && _unwrap(dispatcher) != null && index < count){
+				copy[index++] = dispatcher;
+			}
+		}
+		if(added != null){
+			copy[index++] = added;
+		}
+
+		return index == count ? copy : Arrays.copyOf(copy, index);
+	}
+
+	private static int _indexOf(EventDispatcher<?>[] dispatchers, EventDispatcher<?> dispatcher){
+		EventDispatcher<?> target = _unwrap(dispatcher);
+		if(target == null){
+			return -1;
+		}
+		for (int i = 0; i < dispatchers.length; i++) {
+			if(_unwrap(dispatchers[i]) == target){
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return El tratador que recibe los eventos, o null si es un débil ya liberado
+	 */
+	private static EventDispatcher<?> _unwrap(EventDispatcher<?> dispatcher){
+		if(dispatcher instanceof AsyncEventDispatcher){
+			return ((AsyncEventDispatcher<?>)dispatcher).getTarget();
+		}
+		if(dispatcher instanceof WeakEventDispatcher){
+			return ((WeakEventDispatcher<?>)dispatcher).getTarget();
+		}
+
+		return dispatcher;
+	}
 }
@@ -1,15 +1,18 @@
 package com.dpm.framework;
 
+import java.util.concurrent.Executor;
+
 import android.os.Handler;
 
 /**
  * Invoca un método en el hilo propietario del objeto.
  * El hilo propietario es donde se llame al constructor.
+ * Como {@link Executor}, invoca siempre en el hilo propietario.
  * 
  * @author David
  *
  */
-public class Invoker {
+public class Invoker implements Executor {
 	
 	private final Long _ownerThreadId = Thread.currentThread().getId();
 	private final Handler _handler = new Handler();
@@ -32,6 +35,28 @@ public class Invoker {
 	public void invoke(Runnable runnable){
 		_handler.post(runnable);
 	}
+
+	/**
+	 * Invoca la tarea en el hilo propietario pasado un tiempo.
+	 * @param runnable Tarea a ejecutar
+	 * @param delayMillis Espera en milisegundos
+	 */
+	public void invokeDelayed(Runnable runnable, long delayMillis){
+		_handler.postDelayed(runnable, delayMillis);
+	}
+
+	/**
+	 * Anula las invocaciones pendientes de la tarea.
+	 * @param runnable Tarea invocada
+	 */
+	public void cancel(Runnable runnable){
+		_handler.removeCallbacks(runnable);
+	}
+
+	@Override
+	public void execute(Runnable runnable){
+		invoke(runnable);
+	}
 	
 	/**
 	 * Invoca la tarea en el hilo propietario, si se llama desde un hilo distinto;
@@ -0,0 +1,221 @@
+package com.dpm.framework;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias de memoria fija, al estilo de HdrHistogram.
+ * 
+ * Los valores se agrupan en rangos de potencias de dos, cada uno dividido en
+ * subrangos lineales, de forma que el error relativo es siempre menor del 4%.
+ * Registrar un valor no reserva memoria ni usa bloqueos, así que se puede 
+ * hacer desde cualquier hilo en el camino crítico.
+ * 
+ * @author David
+ *
+ */
+public class LatencyHistogram {
+	
+	private final static int SUB_BUCKET_BITS = 6;
+	private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private final static int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+	private final static int RANGE_COUNT = 64 - SUB_BUCKET_BITS + 1;
+	private final static int BUCKET_COUNT = SUB_BUCKET_COUNT + (RANGE_COUNT - 1) * HALF_SUB_BUCKET_COUNT;
+	
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+	
+	/**
+	 * Registra un valor
+	 * @param value Valor, no negativo. Los negativos se registran como cero.
+	 */
+	public void record(long value){
+		_counts.incrementAndGet(getBucketIndex(value < 0 ? 0 : value));
+	}
+	
+	/**
+	 * Borra todos los valores registrados
+	 */
+	public void reset(){
+		for(int i = 0; i < BUCKET_COUNT; i++){
+			_counts.set(i, 0);
+		}
+	}
+	
+	/**
+	 * Copia los contadores de cada rango
+	 * @param counts Destino, de al menos {@link #getBucketCount()} elementos
+	 * @return Número total de valores copiados
+	 */
+	public long copyCounts(long[] counts){
+		long total = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++){
+			counts[i] = _counts.get(i);
+			total += counts[i];
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Añade los valores de otro histograma a éste
+	 * @param other Histograma de origen
+	 */
+	public void add(LatencyHistogram other){
+		for(int i = 0; i < BUCKET_COUNT; i++){
+			long count = other._counts.get(i);
+			if(count != 0){
+				_counts.addAndGet(i, count);
+			}
+		}
+	}
+	
+	/**
+	 * Mueve los valores registrados a otro histograma, dejando éste vacío. Los valores
+	 * que se registran a la vez desde otros hilos quedan en uno u otro, nunca se pierden.
+	 * @param target Histograma de destino
+	 */
+	public void moveTo(LatencyHistogram target){
+		for(int i = 0; i < BUCKET_COUNT; i++){
+			if(_counts.get(i) != 0){
+				long count = _counts.getAndSet(i, 0);
+				if(count != 0){
+					target._counts.addAndGet(i, count);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return Número de valores registrados
+	 */
+	public long getCount(){
+		long total = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++){
+			total += _counts.get(i);
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * @param percentile Percentil, entre 0 y 100
+	 * @return Valor por debajo del cual están el porcentaje indicado de los registrados,
+	 * o 0 si no hay ninguno
+	 */
+	public long getValueAtPercentile(double percentile){
+		long total = getCount();
+		if(total == 0){
+			return 0;
+		}
+		
+		long target = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+		long accumulated = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++){
+			accumulated += _counts.get(i);
+			if(accumulated >= target){
+				return getBucketHighestValue(i);
+			}
+		}
+		
+		return getBucketHighestValue(BUCKET_COUNT - 1);
+	}
+	
+	/**
+	 * @return Mayor valor registrado, con la precisión del histograma
+	 */
+	public long getMax(){
+		for(int i = BUCKET_COUNT - 1; i >= 0; i--){
+			if(_counts.get(i) != 0){
+				return getBucketHighestValue(i);
+			}
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * @return Media de los valores registrados, con la precisión del histograma
+	 */
+	public double getMean(){
+		long total = 0;
+		double sum = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++){
+			long count = _counts.get(i);
+			if(count != 0){
+				total += count;
+				sum += count * (double)(getBucketLowestValue(i) + getBucketHighestValue(i)) / 2;
+			}
+		}
+		
+		return total == 0 ? 0 : sum / total;
+	}
+	
+	/**
+	 * Exporta los rangos no vacíos en formato CSV: límite inferior, límite superior, cuenta.
+	 * @param out Destino
+	 * @throws IOException
+	 */
+	public void export(Appendable out) throws IOException{
+		out.append("from,to,count\n");
+		for(int i = 0; i < BUCKET_COUNT; i++){
+			long count = _counts.get(i);
+			if(count != 0){
+				out.append(Long.toString(getBucketLowestValue(i))).append(',')
+					.append(Long.toString(getBucketHighestValue(i))).append(',')
+					.append(Long.toString(count)).append('\n');
+			}
+		}
+	}
+	
+	/**
+	 * @return Número de rangos del histograma
+	 */
+	public static int getBucketCount(){
+		return BUCKET_COUNT;
+	}
+	
+	/**
+	 * @param value Valor no negativo
+	 * @return Índice del rango donde se registra el valor
+	 */
+	public static int getBucketIndex(long value){
+		if(value < SUB_BUCKET_COUNT){
+			return (int)value;
+		}
+		
+		// Rango de potencia de dos, y posición lineal dentro de él
+		int range = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int)(value >>> range) - HALF_SUB_BUCKET_COUNT;
+		
+		return SUB_BUCKET_COUNT + (range - 1) * HALF_SUB_BUCKET_COUNT + subBucket;
+	}
+	
+	/**
+	 * @param index Índice de un rango
+	 * @return Menor valor que se registra en el rango
+	 */
+	public static long getBucketLowestValue(int index){
+		if(index < SUB_BUCKET_COUNT){
+			return index;
+		}
+		
+		int range = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+		int subBucket = (index - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+		
+		return ((long)subBucket) << range;
+	}
+	
+	/**
+	 * @param index Índice de un rango
+	 * @return Mayor valor que se registra en el rango
+	 */
+	public static long getBucketHighestValue(int index){
+		if(index < SUB_BUCKET_COUNT){
+			return index;
+		}
+		
+		int range = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+		
+		return getBucketLowestValue(index) + (1L << range) - 1;
+	}
+}
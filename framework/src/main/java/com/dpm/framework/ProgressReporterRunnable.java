@@ -3,10 +3,16 @@
  */
 package com.dpm.framework;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author David
  *
  * Ejecuci�n que informa de su progreso
+ *
+ * El progreso se acumula en la propia ejecución. Además del evento progressReporting,
+ * que crea unos argumentos en cada informe si alguien lo escucha, puede recibirse en un
+ * {@link ProgressListener}, sin reservar memoria.
  */
 public abstract class ProgressReporterRunnable extends ParametrizedRunnable {
 	
@@ -32,7 +38,24 @@ public abstract class ProgressReporterRunnable extends ParametrizedRunnable {
 		}
 	}
 	
+	/**
+	 * Recibe el progreso como enteros, sin argumentos de evento
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Se llama en el hilo de la ejecución
+		 *
+		 * @param runnable Ejecución que informa
+		 * @param increment Incremento del progreso
+		 * @param progress Progreso acumulado
+		 */
+		void progressReported(ProgressReporterRunnable runnable, int increment, int progress);
+	}
+
 	private final int _maxProgress;
+	private final AtomicInteger _progress = new AtomicInteger();
+	private volatile ProgressListener _progressListener;
 	
 	/**
 	 * Se lanza cuando la ejecuci�n ha terminado
@@ -61,13 +84,40 @@ public abstract class ProgressReporterRunnable extends ParametrizedRunnable {
 	public int getMaxProgress() {
 		return _maxProgress;
 	}
+
+	/**
+	 * @return Progreso acumulado hasta ahora. Se puede leer desde cualquier hilo.
+	 */
+	public int getProgress() {
+		return _progress.get();
+	}
+
+	/**
+	 * @param listener Recibe el progreso sin reservar memoria, o null. Sólo hay uno: quien
+	 *                 lo sustituya debe reenviarle los informes y restaurarlo después.
+	 */
+	public void setProgressListener(ProgressListener listener) {
+		_progressListener = listener;
+	}
+
+	public ProgressListener getProgressListener() {
+		return _progressListener;
+	}
 	
 	protected void onFinished(){
 		finished.rise(this, EventArgs.empty);
 	}
 	
 	protected void onProgressReporting(int increment){
-		progressReporting.rise(this, new ProgressReportingEventArgs(increment));
+		int progress = _progress.addAndGet(increment);
+		ProgressListener listener = _progressListener;
+		if(listener != null){
+			listener.progressReported(this, increment, progress);
+		}
+		// Los argumentos sólo se crean si alguien escucha el evento
+		if(progressReporting.getDispatcherCount() > 0){
+			progressReporting.rise(this, new ProgressReportingEventArgs(increment));
+		}
 	}
 
 }
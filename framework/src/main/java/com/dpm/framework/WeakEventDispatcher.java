@@ -0,0 +1,35 @@
+package com.dpm.framework;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Tratador que referencia débilmente a otro, para que estar registrado en un evento no
+ * impida que se libere. El evento lo descarta al levantarse una vez liberado.
+ *
+ * @author David
+ *
+ * @see Event#addWeak(EventDispatcher)
+ */
+final class WeakEventDispatcher<T extends EventArgs> implements EventDispatcher<T> {
+
+	private final WeakReference<EventDispatcher<T>> _target;
+
+	WeakEventDispatcher(EventDispatcher<T> target){
+		_target = new WeakReference<EventDispatcher<T>>(target);
+	}
+
+	/**
+	 * @return Tratador al que se entregan los eventos, o null si se ha liberado
+	 */
+	EventDispatcher<T> getTarget(){
+		return _target.get();
+	}
+
+	@Override
+	public void dispatch(Object o, T args){
+		EventDispatcher<T> target = _target.get();
+		if(target != null){
+			target.dispatch(o, args);
+		}
+	}
+}
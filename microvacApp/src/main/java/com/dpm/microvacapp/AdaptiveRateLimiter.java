@@ -0,0 +1,240 @@
+package com.dpm.microvacapp;
+
+/**
+ * Token bucket pacing the commands written to the robot, whose rate adapts to what the
+ * link and the robot can take, increasing additively and decreasing multiplicatively
+ * (AIMD) as TCP congestion control does.
+ *
+ * Each command written takes a token, and the tokens are refilled at the current rate
+ * up to the burst size. The rate grows by {@link #INCREASE_STEP} every
+ * {@link #ADJUST_INTERVAL_NANOS} in which commands had to wait for a token, and it is
+ * halved when the link shows congestion:
+ *
+ * <ul>
+ *     <li>A write which takes longer than the latency target, because the socket
+ *     buffers are full.</li>
+ *     <li>A round trip which exceeds the shortest one seen by more than the latency
+ *     target, because the robot is falling behind the commands received.</li>
+ * </ul>
+ *
+ * It is halved at most once per interval, so the signals of a single episode do not
+ * collapse it.
+ *
+ * The bucket is used only from the writer thread. The settings and counters can be
+ * accessed from any thread.
+ */
+public class AdaptiveRateLimiter {
+
+    public final static double DEFAULT_MIN_RATE = 10;
+    public final static double DEFAULT_INITIAL_RATE = 50;
+    public final static double DEFAULT_MAX_RATE = 200;
+    public final static int DEFAULT_BURST = 8;
+    public final static long DEFAULT_LATENCY_TARGET = 30;
+
+    /**
+     * Commands per second added to the rate on each interval without congestion.
+     */
+    public final static double INCREASE_STEP = 5;
+    public final static double DECREASE_FACTOR = 0.5;
+    public final static long ADJUST_INTERVAL_NANOS = 100000000L;
+
+    private volatile double _minRate = DEFAULT_MIN_RATE;
+    private volatile double _initialRate = DEFAULT_INITIAL_RATE;
+    private volatile double _maxRate = DEFAULT_MAX_RATE;
+    private volatile int _burst = DEFAULT_BURST;
+    private volatile long _latencyTargetNanos = DEFAULT_LATENCY_TARGET * 1000000L;
+
+    private volatile double _rate = DEFAULT_INITIAL_RATE;
+    private double _tokens = DEFAULT_BURST;
+    private long _refillTime;
+    private long _adjustTime;
+    private long _decreaseTime;
+    private boolean _hasDecreased = false;
+    private boolean _isThrottled = false;
+    private boolean _isWaiting = false;
+    private long _minRtt = Long.MAX_VALUE;
+
+    private volatile long _delayedCount = 0;
+    private volatile long _decreaseCount = 0;
+
+    /**
+     * @param minRate Commands per second the rate never goes below
+     * @param initialRate Commands per second when a connection starts
+     * @param maxRate Commands per second the rate never goes above
+     */
+    public void setRates(double minRate, double initialRate, double maxRate){
+
+        if(minRate <= 0 || initialRate < minRate || maxRate < initialRate){
+            throw new IllegalArgumentException("The rates must be positive and ordered");
+        }
+
+        _minRate = minRate;
+        _initialRate = initialRate;
+        _maxRate = maxRate;
+        _rate = Math.max(minRate, Math.min(maxRate, _rate));
+    }
+
+    public double getMinRate(){
+        return _minRate;
+    }
+
+    public double getMaxRate(){
+        return _maxRate;
+    }
+
+    /**
+     * @param burst Commands which can be written at once after a pause
+     */
+    public void setBurst(int burst){
+        _burst = Math.max(1, burst);
+    }
+
+    public int getBurst(){
+        return _burst;
+    }
+
+    /**
+     * @param latencyTargetMillis Write time, or round trip time above the shortest one,
+     *                            from which the link is considered congested
+     */
+    public void setLatencyTarget(long latencyTargetMillis){
+        _latencyTargetNanos = latencyTargetMillis * 1000000L;
+    }
+
+    public long getLatencyTarget(){
+        return _latencyTargetNanos / 1000000L;
+    }
+
+    /**
+     * @return Current rate, in commands per second
+     */
+    public double getRate(){
+        return _rate;
+    }
+
+    /**
+     * @return Number of commands which had to wait for a token
+     */
+    public long getDelayedCount(){
+        return _delayedCount;
+    }
+
+    /**
+     * @return Number of times the rate has been decreased
+     */
+    public long getDecreaseCount(){
+        return _decreaseCount;
+    }
+
+    /**
+     * Starts again from the initial rate and a full bucket. To be called when a
+     * connection is established, since it may lead to another robot.
+     *
+     * @param nanoTime Current System.nanoTime()
+     */
+    public void reset(long nanoTime){
+
+        _rate = _initialRate;
+        _tokens = _burst;
+        _refillTime = nanoTime;
+        _adjustTime = nanoTime;
+        _hasDecreased = false;
+        _isThrottled = false;
+        _isWaiting = false;
+        _minRtt = Long.MAX_VALUE;
+    }
+
+    /**
+     * Takes a token for a command, if there is one.
+     *
+     * @param nanoTime Current System.nanoTime()
+     * @return false if the command must wait until {@link #getNextTokenTime()}
+     */
+    public boolean tryAcquire(long nanoTime){
+
+        _refill(nanoTime);
+        _adjust(nanoTime);
+        if(_tokens >= 1){
+            _tokens--;
+            if(_isWaiting){
+                _isWaiting = false;
+                _delayedCount++;
+            }
+            return true;
+        }
+
+        _isWaiting = true;
+        _isThrottled = true;
+        return false;
+    }
+
+    /**
+     * @return When the next token is available, as System.nanoTime()
+     */
+    public long getNextTokenTime(){
+
+        return _tokens >= 1 ? _refillTime : _refillTime + (long)((1 - _tokens) * 1e9 / _rate);
+    }
+
+    /**
+     * @param latencyNanos Time a write took to be accepted by the socket
+     * @param nanoTime Current System.nanoTime()
+     */
+    public void onWrite(long latencyNanos, long nanoTime){
+
+        if(latencyNanos > _latencyTargetNanos){
+            _decrease(nanoTime);
+        }
+    }
+
+    /**
+     * @param rttNanos Round trip time measured by a heartbeat
+     * @param nanoTime Current System.nanoTime()
+     */
+    public void onRoundTrip(long rttNanos, long nanoTime){
+
+        if(rttNanos < _minRtt){
+            _minRtt = rttNanos;
+        }
+        if(rttNanos - _minRtt > _latencyTargetNanos){
+            _decrease(nanoTime);
+        }
+    }
+
+    private void _refill(long nanoTime){
+
+        double tokens = _tokens + (nanoTime - _refillTime) * _rate / 1e9;
+        _tokens = Math.min(tokens, _burst);
+        _refillTime = nanoTime;
+    }
+
+    private void _adjust(long nanoTime){
+
+        if(nanoTime - _adjustTime < ADJUST_INTERVAL_NANOS){
+            return;
+        }
+
+        // Only while the commands are limited by the rate, so an idle link does not grow
+        // a rate it has never proven
+        if(_isThrottled){
+            _rate = Math.min(_maxRate, _rate + INCREASE_STEP);
+            _isThrottled = false;
+        }
+        _adjustTime = nanoTime;
+    }
+
+    private void _decrease(long nanoTime){
+
+        if(_hasDecreased && nanoTime - _decreaseTime < ADJUST_INTERVAL_NANOS){
+            return;
+        }
+
+        _refill(nanoTime);
+        _rate = Math.max(_minRate, _rate * DECREASE_FACTOR);
+        _hasDecreased = true;
+        _decreaseTime = nanoTime;
+        _adjustTime = nanoTime;
+        _isThrottled = false;
+        _decreaseCount++;
+    }
+}
@@ -0,0 +1,179 @@
+package com.dpm.microvacapp;
+
+import java.io.IOException;
+
+/**
+ * Chooses the sampling rate of the gravity sensor for gesture driving: slow while the
+ * robot is stopped and the device is level, fast as soon as the tilt approaches the
+ * angles which start a motion, and while the robot moves.
+ *
+ * The approach angle is below the trigger angles, so the fast rate is already on when
+ * a gesture is recognized and the reaction time is that of the fast rate. Going back to
+ * the slow rate waits for the device to settle for a while, so it does not flap.
+ *
+ * It keeps the number of switches and the time spent at each rate. It is meant to be
+ * updated from the sensor thread; the statistics can be read from any thread.
+ */
+public class AdaptiveSamplingController {
+
+    public final static int RATE_SLOW = 0;
+    public final static int RATE_FAST = 1;
+
+    /**
+     * Returned by {@link #update(double, double, boolean, long)} when the rate is kept.
+     */
+    public final static int NO_CHANGE = -1;
+
+    public final static int DEFAULT_SLOW_PERIOD = 66667;
+    public final static int DEFAULT_FAST_PERIOD = 20000;
+    public final static double DEFAULT_APPROACH_ANGLE = Math.toRadians(20);
+    public final static long DEFAULT_SETTLE_TIME = 1000;
+
+    private final int[] _periods = {DEFAULT_SLOW_PERIOD, DEFAULT_FAST_PERIOD};
+    private double _approachAngle = DEFAULT_APPROACH_ANGLE;
+    private long _settleNanos = DEFAULT_SETTLE_TIME * 1000000L;
+
+    private volatile int _rate = RATE_FAST;
+    private volatile boolean _isRunning = false;
+    private volatile long _rateStartTime;
+    private long _lastActiveTime;
+    private volatile long _switchCount = 0;
+    private final long[] _timeAtRate = new long[2];
+
+    /**
+     * @param slowPeriodMicros Sampling period while idle, in µs
+     * @param fastPeriodMicros Sampling period while driving, in µs
+     */
+    public void setPeriods(int slowPeriodMicros, int fastPeriodMicros){
+
+        _periods[RATE_SLOW] = slowPeriodMicros;
+        _periods[RATE_FAST] = fastPeriodMicros;
+    }
+
+    /**
+     * @param approachAngle Tilt from which the fast rate is used, in radians
+     */
+    public void setApproachAngle(double approachAngle){
+        _approachAngle = approachAngle;
+    }
+
+    /**
+     * @param settleMillis Time idle before going back to the slow rate
+     */
+    public void setSettleTime(long settleMillis){
+        _settleNanos = settleMillis * 1000000L;
+    }
+
+    /**
+     * @param rate RATE_SLOW or RATE_FAST
+     * @return Sampling period of the rate, in µs
+     */
+    public int getPeriodMicros(int rate){
+        return _periods[rate];
+    }
+
+    /**
+     * Starts counting time, at the fast rate, as gesture driving may start tilted.
+     *
+     * @param nanoTime System.nanoTime()
+     * @return The rate to sample at
+     */
+    public int start(long nanoTime){
+
+        _rate = RATE_FAST;
+        _rateStartTime = nanoTime;
+        _lastActiveTime = nanoTime;
+        _isRunning = true;
+
+        return RATE_FAST;
+    }
+
+    /**
+     * Stops counting time, when the sensor is unregistered.
+     *
+     * @param nanoTime System.nanoTime()
+     */
+    public synchronized void stop(long nanoTime){
+
+        if(_isRunning){
+            _isRunning = false;
+            _timeAtRate[_rate] += nanoTime - _rateStartTime;
+        }
+    }
+
+    /**
+     * @param pitch Angle driving forwards and backwards, in radians
+     * @param roll Angle driving the turns, in radians
+     * @param isMoving Whether the robot has been told to move
+     * @param nanoTime System.nanoTime()
+     * @return The new rate if it has to change, or {@link #NO_CHANGE}
+     */
+    public int update(double pitch, double roll, boolean isMoving, long nanoTime){
+
+        boolean isActive = isMoving || Math.abs(pitch) >= _approachAngle || Math.abs(roll) >= _approachAngle;
+        if(isActive){
+            _lastActiveTime = nanoTime;
+        }
+
+        int rate = _rate;
+        int target = isActive || nanoTime - _lastActiveTime < _settleNanos ? RATE_FAST : RATE_SLOW;
+        if(target == rate){
+            return NO_CHANGE;
+        }
+
+        synchronized (this){
+            _timeAtRate[rate] += nanoTime - _rateStartTime;
+            _rateStartTime = nanoTime;
+            _rate = target;
+            _switchCount++;
+        }
+
+        return target;
+    }
+
+    /**
+     * @return The current rate
+     */
+    public int getRate(){
+        return _rate;
+    }
+
+    /**
+     * @return Number of rate changes
+     */
+    public long getSwitchCount(){
+        return _switchCount;
+    }
+
+    /**
+     * @param rate RATE_SLOW or RATE_FAST
+     * @return Time spent sampling at the rate, in ms, including the current period
+     */
+    public synchronized long getTimeMillis(int rate){
+
+        long nanos = _timeAtRate[rate];
+        if(_isRunning && _rate == rate){
+            nanos += System.nanoTime() - _rateStartTime;
+        }
+
+        return nanos / 1000000L;
+    }
+
+    /**
+     * Writes the statistics as text.
+     *
+     * @param out Destination
+     * @throws IOException If the destination fails
+     */
+    public void exportStats(Appendable out) throws IOException {
+
+        long slowMillis = getTimeMillis(RATE_SLOW);
+        long fastMillis = getTimeMillis(RATE_FAST);
+        long totalMillis = Math.max(1, slowMillis + fastMillis);
+        out.append("switches ").append(Long.toString(_switchCount))
+                .append(", slow ").append(Long.toString(slowMillis)).append(" ms (")
+                .append(Long.toString(slowMillis * 100 / totalMillis)).append("%)")
+                .append(", fast ").append(Long.toString(fastMillis)).append(" ms (")
+                .append(Long.toString(fastMillis * 100 / totalMillis)).append("%)");
+    }
+}
@@ -0,0 +1,124 @@
+package com.dpm.microvacapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact framed protocol:
+ *
+ * <pre>
+ * +--------+-------------+--------------------+
+ * | opcode | sequence    | payload (optional) |
+ * | 1 byte | 2 bytes, BE | unsigned varint    |
+ * +--------+-------------+--------------------+
+ * </pre>
+ *
+ * Opcodes with {@link #PAYLOAD_FLAG} set carry a payload. Raw commands carry their
+ * length as payload, followed by the bytes, so every frame has a known length.
+ *
+ * The same frames are used from the robot to the app.
+ *
+ * The app asks for it right after connecting by sending {@link #HELLO}, which the old
+ * firmware discards as an unknown three letter command. A robot supporting it answers
+ * with {@link #HELLO_REPLY} followed by the protocol version.
+ */
+public class BinaryWireCodec implements WireCodec {
+
+    public final static int VERSION = 2;
+
+    /**
+     * Lowest version of the robot answering {@link #OP_PING}.
+     */
+    public final static int HEARTBEAT_VERSION = 2;
+
+    public final static byte[] HELLO = {'V', 'E', 'R'};
+    public final static byte[] HELLO_REPLY = {'B', 'I', 'N'};
+
+    public final static int PAYLOAD_FLAG = 0x40;
+
+    public final static byte OP_FORWARDS = 0x01;
+    public final static byte OP_BACKWARDS = 0x02;
+    public final static byte OP_TURN_LEFT = 0x03;
+    public final static byte OP_TURN_RIGHT = 0x04;
+    public final static byte OP_STOP = 0x05;
+    public final static byte OP_PING = 0x06;
+    /**
+     * Reply to {@link #OP_PING} from the robot, with the sequence number of the ping.
+     */
+    public final static byte OP_PONG = 0x07;
+    /**
+     * From the robot: the command with the sequence number of the frame has been applied.
+     */
+    public final static byte OP_ACK = 0x08;
+    public final static byte OP_EXPRESSION = PAYLOAD_FLAG | 0x01;
+    /**
+     * Speed of each wheel, see {@link Command#speed(int, int)}. A motion, like
+     * {@link #OP_FORWARDS} to {@link #OP_STOP}.
+     */
+    public final static byte OP_SPEED = PAYLOAD_FLAG | 0x02;
+    /**
+     * From the robot: battery voltage in millivolts.
+     */
+    public final static byte OP_BATTERY = PAYLOAD_FLAG | 0x10;
+    /**
+     * From the robot: bit mask of the pressed bumpers.
+     */
+    public final static byte OP_BUMPER = PAYLOAD_FLAG | 0x11;
+    public final static byte OP_RAW = PAYLOAD_FLAG | 0x3F;
+
+    public final static BinaryWireCodec INSTANCE = new BinaryWireCodec();
+
+    private BinaryWireCodec(){
+
+    }
+
+    @Override
+    public void encode(Command command, int sequence, ByteBuffer buffer) {
+
+        byte opcode = command.getOpcode();
+        buffer.put(opcode);
+        buffer.putShort((short)sequence);
+        if(opcode == OP_RAW){
+            byte[] bytes = command.getTextBytes();
+            putVarint(buffer, bytes.length);
+            buffer.put(bytes);
+        }else if((opcode & PAYLOAD_FLAG) != 0){
+            putVarint(buffer, command.getArgument());
+        }
+    }
+
+    @Override
+    public int encodedLength(Command command) {
+
+        byte opcode = command.getOpcode();
+        if(opcode == OP_RAW){
+            int length = command.getTextBytes().length;
+            return 3 + varintLength(length) + length;
+        }
+
+        return (opcode & PAYLOAD_FLAG) != 0 ? 3 + varintLength(command.getArgument()) : 3;
+    }
+
+    /**
+     * Writes a value in LEB128 format, seven bits per byte starting from the lowest ones.
+     * Negative values take five bytes.
+     */
+    public static void putVarint(ByteBuffer buffer, int value){
+
+        while((value & ~0x7F) != 0){
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    public static int varintLength(int value){
+
+        int length = 1;
+        while((value & ~0x7F) != 0){
+            value >>>= 7;
+            length++;
+        }
+
+        return length;
+    }
+}
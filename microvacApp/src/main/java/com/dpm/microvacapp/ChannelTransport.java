@@ -0,0 +1,168 @@
+package com.dpm.microvacapp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking TCP connection to the robot. Connecting and writing wait on a selector,
+ * so both give up after their timeout instead of hanging the calling thread. A host name
+ * is looked up by {@link EndpointResolver} within the same connect timeout.
+ *
+ * It is not thread-safe; it is meant to be used only from the writer thread.
+ */
+public class ChannelTransport implements RobotTransport {
+
+    private SocketChannel _channel;
+    private volatile Selector _selector;
+    private SelectionKey _key;
+
+    @Override
+    public void connect(InetSocketAddress endpoint, long timeoutMillis) throws IOException {
+
+        close();
+
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        endpoint = EndpointResolver.resolve(endpoint, deadline);
+
+        _selector = Selector.open();
+        _channel = SocketChannel.open();
+        try {
+            _channel.configureBlocking(false);
+            _channel.socket().setTcpNoDelay(true);
+            _key = _channel.register(_selector, 0);
+
+            if(!_channel.connect(endpoint)){
+                _key.interestOps(SelectionKey.OP_CONNECT);
+                while(!_channel.finishConnect()){
+                    _await(deadline, "Connection timed out: " + endpoint);
+                }
+            }
+            _key.interestOps(0);
+        }catch(IOException ex){
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, long timeoutMillis) throws IOException {
+
+        if(_channel == null){
+            throw new IOException("Not connected");
+        }
+
+        long deadline = 0;
+        while(buffer.hasRemaining()){
+            if(_channel.write(buffer) == 0){
+                if(deadline == 0){
+                    deadline = System.nanoTime() + timeoutMillis * 1000000L;
+                    _key.interestOps(SelectionKey.OP_WRITE);
+                }
+                _await(deadline, "Write timed out");
+            }
+        }
+
+        if(deadline != 0){
+            _key.interestOps(0);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, long timeoutMillis) throws IOException {
+
+        if(_channel == null){
+            throw new IOException("Not connected");
+        }
+
+        int count = _channel.read(buffer);
+        if(count == 0 && timeoutMillis > 0){
+            _key.interestOps(SelectionKey.OP_READ);
+            try {
+                if(_selector.select(timeoutMillis) > 0){
+                    _selector.selectedKeys().clear();
+                    count = _channel.read(buffer);
+                }
+            }finally{
+                _key.interestOps(0);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public boolean await(long timeoutMillis) throws IOException {
+
+        if(_channel == null){
+            throw new IOException("Not connected");
+        }
+
+        _key.interestOps(SelectionKey.OP_READ);
+        try {
+            int count = timeoutMillis < 0 ? _selector.selectNow() : _selector.select(timeoutMillis);
+            _selector.selectedKeys().clear();
+            return count > 0;
+        }finally{
+            _key.interestOps(0);
+        }
+    }
+
+    @Override
+    public void wakeup(){
+
+        Selector selector = _selector;
+        if(selector != null){
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public boolean isConnected(){
+        return _channel != null && _channel.isConnected();
+    }
+
+    /**
+     * @return The underlying channel, or null if not connected
+     */
+    SocketChannel getChannel(){
+        return _channel;
+    }
+
+    @Override
+    public void close(){
+
+        if(_channel != null){
+            try {
+                _channel.close();
+            }catch(IOException ex){
+                // Nothing to do, the channel is discarded anyway
+            }
+            _channel = null;
+            _key = null;
+        }
+
+        if(_selector != null){
+            try {
+                _selector.close();
+            }catch(IOException ex){
+                // Nothing to do, the selector is discarded anyway
+            }
+            _selector = null;
+        }
+    }
+
+    private void _await(long deadline, String timeoutMessage) throws IOException {
+
+        long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+        if(remainingMillis <= 0 || _selector.select(remainingMillis) == 0
+                && System.nanoTime() >= deadline){
+            throw new SocketTimeoutException(timeoutMessage);
+        }
+        _selector.selectedKeys().clear();
+    }
+}
@@ -0,0 +1,207 @@
+package com.dpm.microvacapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable command for the Microvacbot.
+ *
+ * The fixed commands and the most common expressions are shared instances with their
+ * text encoded once, so sending them does not allocate nor format strings in any
+ * protocol. The speed commands are shared too, created on first use, and their text
+ * is written digit by digit straight into the buffer of the text protocol.
+ */
+public final class Command {
+
+    private final static int CACHED_EXPRESSIONS = 16;
+
+    /**
+     * Highest wheel speed, forwards or backwards, of {@link #speed(int, int)}.
+     */
+    public final static int MAX_SPEED = 100;
+
+    private final static byte[] SPEED_PREFIX = "SPD:".getBytes();
+    private final static int SPEED_TEXT_LENGTH = SPEED_PREFIX.length + 8;
+    private final static int SPEED_VALUES = 2 * MAX_SPEED + 1;
+
+    public final static int TYPE_MOTION = 0;
+    public final static int TYPE_STOP = 1;
+    public final static int TYPE_EXPRESSION = 2;
+    public final static int TYPE_RAW = 3;
+    public final static int TYPE_CONTROL = 4;
+    public final static int TYPE_HEARTBEAT = 5;
+
+    public final static Command FORWARDS = new Command(TYPE_MOTION, BinaryWireCodec.OP_FORWARDS, "FWD", 0);
+    public final static Command BACKWARDS = new Command(TYPE_MOTION, BinaryWireCodec.OP_BACKWARDS, "BAK", 0);
+    public final static Command TURN_LEFT = new Command(TYPE_MOTION, BinaryWireCodec.OP_TURN_LEFT, "TLE", 0);
+    public final static Command TURN_RIGHT = new Command(TYPE_MOTION, BinaryWireCodec.OP_TURN_RIGHT, "TRI", 0);
+    public final static Command STOP = new Command(TYPE_STOP, BinaryWireCodec.OP_STOP, "STP", 0);
+
+    final static Command PING = new Command(TYPE_HEARTBEAT, BinaryWireCodec.OP_PING, "PNG", 0);
+
+    private final static Command[] EXPRESSIONS = new Command[CACHED_EXPRESSIONS];
+    // Created on first use. The commands are immutable, so two threads creating the
+    // same one at once is harmless.
+    private final static Command[] SPEEDS = new Command[SPEED_VALUES * SPEED_VALUES];
+
+    static {
+        for(int i = 0; i < CACHED_EXPRESSIONS; i++){
+            EXPRESSIONS[i] = new Command(TYPE_EXPRESSION, BinaryWireCodec.OP_EXPRESSION, "EXP:" + i, i);
+        }
+    }
+
+    private final int _type;
+    private final byte _opcode;
+    // Built on demand for speeds, outside the text protocol. A String is immutable, so
+    // it can be shared without synchronization.
+    private String _text;
+    private final byte[] _textBytes;
+    private final int _argument;
+
+    private Command(int type, byte opcode, String text, int argument){
+
+        _type = type;
+        _opcode = opcode;
+        _text = text;
+        _textBytes = text != null ? text.getBytes() : null;
+        _argument = argument;
+    }
+
+    /**
+     * @param expressionId Expression to show
+     * @return The shared instance for the usual expressions, or a new one otherwise
+     */
+    public static Command expression(int expressionId){
+
+        return expressionId >= 0 && expressionId < CACHED_EXPRESSIONS
+                ? EXPRESSIONS[expressionId]
+                : new Command(TYPE_EXPRESSION, BinaryWireCodec.OP_EXPRESSION, "EXP:" + expressionId,
+                        expressionId);
+    }
+
+    /**
+     * Proportional motion, setting the speed of each wheel. It is a motion, so it
+     * supersedes any pending one.
+     *
+     * The text is "SPD:" and both speeds with sign and three digits ("SPD:+050-030"), so
+     * its length is fixed. In the binary protocol the argument holds the left speed in
+     * its second byte and the right one in the first, both as signed bytes.
+     *
+     * @param left Speed of the left wheel, from -{@link #MAX_SPEED} to {@link #MAX_SPEED}
+     * @param right Speed of the right wheel, in the same range
+     * @return The shared instance
+     */
+    public static Command speed(int left, int right){
+
+        left = Math.max(-MAX_SPEED, Math.min(MAX_SPEED, left));
+        right = Math.max(-MAX_SPEED, Math.min(MAX_SPEED, right));
+
+        int index = (left + MAX_SPEED) * SPEED_VALUES + right + MAX_SPEED;
+        Command command = SPEEDS[index];
+        if(command == null){
+            command = new Command(TYPE_MOTION, BinaryWireCodec.OP_SPEED, null,
+                    (left & 0xFF) << 8 | (right & 0xFF));
+            SPEEDS[index] = command;
+        }
+
+        return command;
+    }
+
+    /**
+     * @param text Command as it is written to the socket
+     * @return A command that is written verbatim
+     */
+    public static Command raw(String text){
+
+        return new Command(TYPE_RAW, BinaryWireCodec.OP_RAW, text, 0);
+    }
+
+    /**
+     * @param name Name of the control action
+     * @return A command handled by the writer itself, which never reaches the socket
+     */
+    static Command control(String name){
+
+        return new Command(TYPE_CONTROL, (byte)0, name, 0);
+    }
+
+    public int getType() { return _type; }
+
+    /**
+     * @return Whether the command is written ahead of everything pending: the stops, and
+     * any emergency command to come
+     */
+    public boolean isUrgent() { return _type == TYPE_STOP; }
+
+    /**
+     * @return Opcode in the binary protocol
+     */
+    public byte getOpcode() { return _opcode; }
+
+    public int getArgument() { return _argument; }
+
+    public String getText(){
+
+        if(_text == null){
+            byte[] text = new byte[SPEED_TEXT_LENGTH];
+            putText(ByteBuffer.wrap(text));
+            _text = new String(text);
+        }
+
+        return _text;
+    }
+
+    /**
+     * @return Speed of the left wheel of a speed command
+     */
+    public int getLeftSpeed() { return (byte)(_argument >> 8); }
+
+    /**
+     * @return Speed of the right wheel of a speed command
+     */
+    public int getRightSpeed() { return (byte)_argument; }
+
+    /**
+     * @return Text encoding of the command. Must not be modified. Speeds allocate it, so
+     * {@link #putText(ByteBuffer)} is preferred for them.
+     */
+    byte[] getTextBytes(){
+
+        return _textBytes != null ? _textBytes : getText().getBytes();
+    }
+
+    /**
+     * @return Length of the text encoding of the command
+     */
+    int getTextLength(){
+        return _opcode == BinaryWireCodec.OP_SPEED ? SPEED_TEXT_LENGTH : getTextBytes().length;
+    }
+
+    /**
+     * Writes the text encoding of the command, without allocating.
+     *
+     * @param buffer Target buffer, at its current position
+     */
+    void putText(ByteBuffer buffer){
+
+        if(_opcode == BinaryWireCodec.OP_SPEED){
+            // "SPD:" and both speeds with sign and three digits
+            buffer.put(SPEED_PREFIX);
+            _putSpeed(buffer, getLeftSpeed());
+            _putSpeed(buffer, getRightSpeed());
+        }else{
+            buffer.put(getTextBytes());
+        }
+    }
+
+    private static void _putSpeed(ByteBuffer buffer, int speed){
+
+        buffer.put((byte)(speed < 0 ? '-' : '+'));
+        speed = Math.abs(speed);
+        buffer.put((byte)('0' + speed / 100));
+        buffer.put((byte)('0' + speed / 10 % 10));
+        buffer.put((byte)('0' + speed % 10));
+    }
+
+    @Override
+    public String toString() { return getText(); }
+}
@@ -0,0 +1,203 @@
+package com.dpm.microvacapp;
+
+import com.dpm.framework.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of the commands from the input which produced them to their bytes leaving
+ * the app, in three stages:
+ *
+ * <ul>
+ *     <li>{@link #STAGE_INPUT}: from the input, as a button tap or a sensor sample, until
+ *     the command is queued.</li>
+ *     <li>{@link #STAGE_QUEUE}: from being queued until its write has completed, that is,
+ *     the socket has accepted all its bytes.</li>
+ *     <li>{@link #STAGE_TOTAL}: both together.</li>
+ * </ul>
+ *
+ * The times go into fixed-size histograms, in microseconds, and the commands queued,
+ * written, coalesced and dropped into counters. Recording takes no lock and allocates
+ * nothing, so it is always on. A {@link Snapshot} copies them for reading, and
+ * optionally resets them, from any thread.
+ */
+public class CommandLatencyStats {
+
+    public final static int STAGE_INPUT = 0;
+    public final static int STAGE_QUEUE = 1;
+    public final static int STAGE_TOTAL = 2;
+    public final static int STAGE_COUNT = 3;
+
+    public final static int COUNTER_QUEUED = 0;
+    public final static int COUNTER_WRITTEN = 1;
+    public final static int COUNTER_COALESCED = 2;
+    public final static int COUNTER_DROPPED = 3;
+    public final static int COUNTER_COUNT = 4;
+
+    private final static String[] STAGE_NAMES = {"input", "queue", "total"};
+    private final static String[] COUNTER_NAMES = {"queued", "written", "coalesced", "dropped"};
+
+    /**
+     * The statistics of an interval, copied so they do not change while read.
+     */
+    public static class Snapshot {
+
+        private final LatencyHistogram[] _histograms = new LatencyHistogram[STAGE_COUNT];
+        private final long[] _counters = new long[COUNTER_COUNT];
+        private final long _intervalNanos;
+
+        Snapshot(long intervalNanos){
+
+            _intervalNanos = intervalNanos;
+            for(int i = 0; i < STAGE_COUNT; i++){
+                _histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        /**
+         * @param stage One of the STAGE_* constants
+         * @return Its times, in microseconds
+         */
+        public LatencyHistogram getHistogram(int stage){
+            return _histograms[stage];
+        }
+
+        /**
+         * @param counter One of the COUNTER_* constants
+         */
+        public long getCount(int counter){
+            return _counters[counter];
+        }
+
+        /**
+         * @return Time from the start of the statistics, or their last reset, until the snapshot
+         */
+        public long getIntervalMillis(){
+            return _intervalNanos / 1000000L;
+        }
+
+        /**
+         * Writes the counters, followed by the histogram of each stage in CSV.
+         *
+         * @param out Destination
+         * @throws IOException If the destination fails
+         */
+        public void export(Appendable out) throws IOException {
+
+            out.append("# interval_ms=").append(Long.toString(getIntervalMillis()));
+            for(int i = 0; i < COUNTER_COUNT; i++){
+                out.append(' ').append(COUNTER_NAMES[i]).append('=').append(Long.toString(_counters[i]));
+            }
+            out.append('\n');
+            for(int i = 0; i < STAGE_COUNT; i++){
+                out.append("# stage=").append(STAGE_NAMES[i]).append('\n');
+                _histograms[i].export(out);
+            }
+        }
+
+        @Override
+        public String toString(){
+
+            StringBuilder text = new StringBuilder();
+            text.append(_counters[COUNTER_QUEUED]).append(" queued, ")
+                    .append(_counters[COUNTER_WRITTEN]).append(" written, ")
+                    .append(_counters[COUNTER_COALESCED]).append(" coalesced, ")
+                    .append(_counters[COUNTER_DROPPED]).append(" dropped in ")
+                    .append(getIntervalMillis()).append(" ms");
+            for(int i = 0; i < STAGE_COUNT; i++){
+                LatencyHistogram histogram = _histograms[i];
+                text.append("; ").append(STAGE_NAMES[i])
+                        .append(" p50 ").append(histogram.getValueAtPercentile(50))
+                        .append(" us, p99 ").append(histogram.getValueAtPercentile(99))
+                        .append(" us, max ").append(histogram.getMax()).append(" us");
+            }
+
+            return text.toString();
+        }
+    }
+
+    private final LatencyHistogram[] _histograms = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicLongArray _counters = new AtomicLongArray(COUNTER_COUNT);
+    private volatile long _startTime = System.nanoTime();
+
+    public CommandLatencyStats(){
+
+        for(int i = 0; i < STAGE_COUNT; i++){
+            _histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param originTime System.nanoTime() of the input
+     * @param queuedTime System.nanoTime() when the command was queued
+     */
+    public void recordQueued(long originTime, long queuedTime){
+
+        _counters.incrementAndGet(COUNTER_QUEUED);
+        _histograms[STAGE_INPUT].record((queuedTime - originTime) / 1000L);
+    }
+
+    /**
+     * @param originTime System.nanoTime() of the input
+     * @param queuedTime System.nanoTime() when the command was queued
+     * @param writtenTime System.nanoTime() when its write completed
+     */
+    public void recordWritten(long originTime, long queuedTime, long writtenTime){
+
+        _counters.incrementAndGet(COUNTER_WRITTEN);
+        _histograms[STAGE_QUEUE].record((writtenTime - queuedTime) / 1000L);
+        _histograms[STAGE_TOTAL].record((writtenTime - originTime) / 1000L);
+    }
+
+    /**
+     * Counts a pending motion replaced by a newer one or a stop, and never written.
+     */
+    public void recordCoalesced(){
+        _counters.incrementAndGet(COUNTER_COALESCED);
+    }
+
+    /**
+     * Counts a command rejected because the queue was full.
+     */
+    public void recordDropped(){
+        _counters.incrementAndGet(COUNTER_DROPPED);
+    }
+
+    /**
+     * @return Copy of the statistics since the start or the last reset
+     */
+    public Snapshot snapshot(){
+
+        Snapshot snapshot = new Snapshot(System.nanoTime() - _startTime);
+        for(int i = 0; i < STAGE_COUNT; i++){
+            snapshot._histograms[i].add(_histograms[i]);
+        }
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            snapshot._counters[i] = _counters.get(i);
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Takes the statistics since the start or the last reset and starts over, without
+     * losing what is recorded meanwhile, so consecutive snapshots cover the whole time.
+     *
+     * @return The statistics taken
+     */
+    public Snapshot snapshotAndReset(){
+
+        long now = System.nanoTime();
+        Snapshot snapshot = new Snapshot(now - _startTime);
+        _startTime = now;
+        for(int i = 0; i < STAGE_COUNT; i++){
+            _histograms[i].moveTo(snapshot._histograms[i]);
+        }
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            snapshot._counters[i] = _counters.getAndSet(i, 0);
+        }
+
+        return snapshot;
+    }
+}
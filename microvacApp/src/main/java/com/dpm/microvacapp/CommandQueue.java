@@ -0,0 +1,156 @@
+package com.dpm.microvacapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free FIFO queue of commands, or of their encoded frames, with many
+ * producers and a single consumer.
+ *
+ * Each slot carries a sequence number telling whether it is free for the producer of a
+ * given position or ready for the consumer, so neither side needs a lock
+ * (D. Vyukov's bounded queue).
+ *
+ * Each entry can carry two timestamps, such as when its input happened and when it was
+ * queued, which the consumer reads after polling it.
+ */
+public class CommandQueue<E> {
+
+    private final int _capacity;
+    private final int _mask;
+    private final AtomicReferenceArray<E> _slots;
+    private final AtomicLongArray _sequences;
+    // Published by the sequence of their slot, as the commands
+    private final long[] _originTimes;
+    private final long[] _queuedTimes;
+    private long _polledOriginTime;
+    private long _polledQueuedTime;
+    private final AtomicLong _tail = new AtomicLong();
+    private volatile long _head = 0;
+
+    /**
+     * @param capacity Maximum number of pending commands. It is rounded up to a power of two.
+     */
+    public CommandQueue(int capacity){
+
+        if(capacity < 1){
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity){
+            size <<= 1;
+        }
+
+        _capacity = size;
+        _mask = size - 1;
+        _slots = new AtomicReferenceArray<E>(size);
+        _sequences = new AtomicLongArray(size);
+        _originTimes = new long[size];
+        _queuedTimes = new long[size];
+        for(int i = 0; i < size; i++){
+            _sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Appends a command. Can be called from any thread.
+     *
+     * @param command Command to append
+     * @return false if the queue is full
+     */
+    public boolean offer(E command){
+
+        return offer(command, 0, 0);
+    }
+
+    /**
+     * Appends a command with its timestamps. Can be called from any thread.
+     *
+     * @param command Command to append
+     * @param originTime Time of the input which produced it
+     * @param queuedTime Time it is queued
+     * @return false if the queue is full
+     */
+    public boolean offer(E command, long originTime, long queuedTime){
+
+        long position = _tail.get();
+        while(true){
+            int index = (int)position & _mask;
+            long difference = _sequences.get(index) - position;
+            if(difference == 0){
+                if(_tail.compareAndSet(position, position + 1)){
+                    break;
+                }
+                position = _tail.get();
+            }else if(difference < 0){
+                return false;
+            }else{
+                position = _tail.get();
+            }
+        }
+
+        int index = (int)position & _mask;
+        _originTimes[index] = originTime;
+        _queuedTimes[index] = queuedTime;
+        _slots.lazySet(index, command);
+        _sequences.lazySet(index, position + 1);
+
+        return true;
+    }
+
+    /**
+     * Removes the oldest command. Must be called only from the consumer thread.
+     *
+     * @return The oldest command, or null if there is none ready
+     */
+    public E poll(){
+
+        long position = _head;
+        int index = (int)position & _mask;
+        if(_sequences.get(index) != position + 1){
+            return null;
+        }
+
+        E command = _slots.get(index);
+        _polledOriginTime = _originTimes[index];
+        _polledQueuedTime = _queuedTimes[index];
+        _slots.lazySet(index, null);
+        _sequences.lazySet(index, position + _capacity);
+        _head = position + 1;
+
+        return command;
+    }
+
+    /**
+     * @return Origin time of the command last polled. Only for the consumer thread.
+     */
+    public long getPolledOriginTime(){
+        return _polledOriginTime;
+    }
+
+    /**
+     * @return Queued time of the command last polled. Only for the consumer thread.
+     */
+    public long getPolledQueuedTime(){
+        return _polledQueuedTime;
+    }
+
+    /**
+     * @return Number of pending commands. It is only an estimation while producers are active.
+     */
+    public int size(){
+
+        long size = _tail.get() - _head;
+        return size < 0 ? 0 : (int)Math.min(size, _capacity);
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    public int getCapacity(){
+        return _capacity;
+    }
+}
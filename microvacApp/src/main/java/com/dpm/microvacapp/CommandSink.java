@@ -0,0 +1,21 @@
+package com.dpm.microvacapp;
+
+/**
+ * Anything commands can be sent to, such as the robot commander.
+ */
+public interface CommandSink {
+
+    /**
+     * @param command Command
+     * @return false if the command has been rejected
+     */
+    boolean send(Command command);
+
+    /**
+     * @param command Command
+     * @param originTime System.nanoTime() of the input which produced the command, as a
+     *                   button tap or a sensor sample, to measure its latency from there
+     * @return false if the command has been rejected
+     */
+    boolean send(Command command, long originTime);
+}
@@ -0,0 +1,1122 @@
+package com.dpm.microvacapp;
+
+import com.dpm.framework.Event;
+import com.dpm.framework.LatencyHistogram;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Long-lived thread which owns the robot socket and writes the queued commands in
+ * strict FIFO order. Connecting and closing go through the same queue, so they are
+ * ordered with respect to the commands sent before and after them.
+ *
+ * Motion commands share a single slot, so only the newest pending motion is written
+ * (latest wins). The queue just holds a marker telling where the motion goes in the
+ * stream. A marker which does not fit in a full queue is kept aside and taken once the
+ * queue is empty, unless its motion can still be taken back and rejected.
+ *
+ * Urgent commands, the stops, go through a priority lane instead, and are written
+ * ahead of everything pending, as soon as the write in progress ends. A stop also
+ * clears the motion slot, invalidating its marker, so no motion sent before it is
+ * written after it. It is never coalesced.
+ *
+ * The socket is a non-blocking {@link ChannelTransport}, so a wrong address or a stalled
+ * robot never hangs the thread longer than the configured timeouts. Connection results
+ * are raised through {@link #connectionChanged}, on the writer thread.
+ *
+ * Right after connecting, the binary protocol is offered to the robot
+ * ({@link BinaryWireCodec}). The text protocol is kept if the robot does not answer in
+ * time, as the old firmware does.
+ *
+ * In datagram mode, the commands go over UDP instead ({@link DatagramWireCodec}), so a
+ * lost packet does not delay the following ones. Motion commands are sent once, since a
+ * newer one supersedes them anyway; the rest are sent {@link #REDUNDANT_COPIES} times.
+ *
+ * When an established connection is lost, it is opened again after a jittered
+ * exponential backoff, until it succeeds or is closed. Once reconnected, the last motion
+ * or stop is written again, so the robot resumes the state the user expects.
+ *
+ * Optionally, a heartbeat is sent to robots supporting it, and its echo gives an
+ * estimation of the round trip time. If nothing is received for
+ * {@link #HEARTBEAT_MISSES} intervals, the connection is considered lost, which detects
+ * a half-open socket long before TCP would.
+ *
+ * Whatever else the robot sends is read too, even while busy writing, and its
+ * telemetry is handed to {@link #telemetry}.
+ *
+ * Optionally, the commands are paced by an {@link AdaptiveRateLimiter}, fed with the
+ * time of each write and the round trips of the heartbeat, so a slow robot is not
+ * flooded. A command waiting for its token holds the ones behind it, so the newer
+ * motions coalesce meanwhile and the queue stays bounded. Stops, connects and closes
+ * are never held back.
+ *
+ * The latency of every command, from its input to the completion of its write, is
+ * recorded in {@link #getLatencyStats()}.
+ */
+public class CommandWriter implements Runnable, InboundFrameParser.Listener {
+
+    private final static String THREAD_NAME = CommandWriter.class.getSimpleName();
+
+    public final static long DEFAULT_CONNECT_TIMEOUT = 5000;
+    public final static long DEFAULT_WRITE_TIMEOUT = 1000;
+    public final static long DEFAULT_NEGOTIATION_TIMEOUT = 300;
+
+    public final static int PROTOCOL_AUTO = 0;
+    public final static int PROTOCOL_TEXT = 1;
+    public final static int PROTOCOL_BINARY = 2;
+
+    private final static int WRITE_BUFFER_SIZE = 256;
+    private final static int READ_BUFFER_SIZE = 256;
+
+    private final static long NO_TIMER = Long.MAX_VALUE;
+
+    /**
+     * Maximum time without reading the connection while there are commands to write.
+     */
+    private final static long READ_INTERVAL_NANOS = 1000000L;
+
+    /**
+     * Times a stop or an expression is sent in datagram mode.
+     */
+    public final static int REDUNDANT_COPIES = 3;
+    private final static long RESEND_INTERVAL_NANOS = 10000000L;
+    private final static int RESEND_SLOTS = 16;
+
+    public final static long DEFAULT_MIN_RECONNECT_DELAY = 250;
+    public final static long DEFAULT_MAX_RECONNECT_DELAY = 8000;
+
+    /**
+     * Heartbeat intervals without receiving anything before the connection is lost.
+     */
+    public final static int HEARTBEAT_MISSES = 3;
+
+    /**
+     * Slots kept free for connect and close requests and the motion marker when the
+     * queue is under pressure.
+     */
+    private final static int CONTROL_RESERVE = 8;
+
+    /**
+     * Urgent commands which can be pending at once. The writer takes them before
+     * anything else, so more are only pending if it is stuck.
+     */
+    private final static int URGENT_CAPACITY = 16;
+
+    private final static Command CONNECT = Command.control("CONNECT");
+    private final static Command CLOSE = Command.control("CLOSE");
+    private final static Command MOTION = Command.control("MOTION");
+
+    /**
+     * Motion waiting in the slot, with the times it was produced and queued, so they are
+     * swapped together.
+     */
+    private static class PendingMotion {
+
+        final Command command;
+        final long originTime;
+        final long queuedTime;
+
+        PendingMotion(Command command, long originTime, long queuedTime){
+            this.command = command;
+            this.originTime = originTime;
+            this.queuedTime = queuedTime;
+        }
+    }
+
+    private final CommandQueue<Command> _queue;
+    private final CommandQueue<Command> _urgentQueue = new CommandQueue<Command>(URGENT_CAPACITY);
+    private final AtomicBoolean _isWaiting = new AtomicBoolean(false);
+
+    private final AtomicReference<PendingMotion> _pendingMotion = new AtomicReference<PendingMotion>();
+    private final AtomicInteger _staleMotionMarkers = new AtomicInteger();
+    // Markers which did not fit in the queue, taken once it is empty
+    private final AtomicInteger _overflowMotionMarkers = new AtomicInteger();
+    private final AtomicLong _coalescedCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
+    private final CommandLatencyStats _latencyStats = new CommandLatencyStats();
+
+    private volatile Thread _thread;
+    private volatile boolean _isRunning = false;
+    private volatile boolean _isBound = false;
+    private volatile InetSocketAddress _endpoint;
+    private volatile long _connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile long _writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    private volatile long _negotiationTimeout = DEFAULT_NEGOTIATION_TIMEOUT;
+    private volatile int _protocol = PROTOCOL_AUTO;
+    private volatile WireCodec _codec = TextWireCodec.INSTANCE;
+    private volatile boolean _isDatagramMode = false;
+    private int _sequence = 0;
+    private int _datagramSequence = 0;
+
+    private final ChannelTransport _streamTransport = new ChannelTransport();
+    private final DatagramTransport _datagramTransport = new DatagramTransport();
+    private volatile RobotTransport _transport = _streamTransport;
+    private final ByteBuffer _writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final ByteBuffer _readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final InboundFrameParser _parser = new InboundFrameParser(this);
+
+    // Redundant copies pending to be sent in datagram mode
+    private final Command[] _resendCommands = new Command[RESEND_SLOTS];
+    private final int[] _resendSequences = new int[RESEND_SLOTS];
+    private final int[] _resendTimestamps = new int[RESEND_SLOTS];
+    private final int[] _resendsLeft = new int[RESEND_SLOTS];
+    private final long[] _resendDueTimes = new long[RESEND_SLOTS];
+    private int _resendCount = 0;
+
+    private volatile boolean _isAutoReconnect = true;
+    private volatile long _minReconnectDelay = DEFAULT_MIN_RECONNECT_DELAY;
+    private volatile long _maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+    private final Random _random = new Random();
+    private long _reconnectTime = NO_TIMER;
+    private int _reconnectAttempts = 0;
+    private long _outageStartTime;
+    private Command _lastMotion = null;
+    private volatile long _lastOutageMillis = 0;
+    private volatile long _totalOutageMillis = 0;
+    private volatile int _outageCount = 0;
+
+    private volatile long _heartbeatInterval = 0;
+    private long _activeHeartbeatInterval = 0;
+    private boolean _isHeartbeatSupported = false;
+    private long _nextHeartbeatTime;
+    private long _lastReceivedTime;
+    private long _lastReadTime;
+    private boolean _isPingPending = false;
+    private int _pingSequence;
+    private long _pingSentTime;
+    private volatile long _smoothedRtt = 0;
+    private volatile long _rttVariance = 0;
+    private final AtomicLong _missedHeartbeats = new AtomicLong();
+    private final LatencyHistogram _rttHistogram = new LatencyHistogram();
+
+    private volatile AdaptiveRateLimiter _rateLimiter;
+    // Command taken from the queue which waits for a token of the rate limiter
+    private Command _heldCommand = null;
+    private long _heldOriginTime;
+    private long _heldQueuedTime;
+    // A stop taken while disconnected, to be written once connected
+    private boolean _isStopUnsent = false;
+
+    /**
+     * Raised when the connection is established, fails, is lost or is closed.
+     */
+    public final Event<ConnectionEventArgs> connectionChanged = new Event<ConnectionEventArgs>();
+
+    /**
+     * Telemetry received from the robot, raised on the writer thread.
+     */
+    public final TelemetryReader telemetry;
+
+    public CommandWriter(int queueCapacity){
+
+        this(queueCapacity, TelemetryReader.DEFAULT_HISTORY_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity Maximum number of commands waiting to be written
+     * @param telemetryCapacity Number of recent telemetry samples kept
+     */
+    public CommandWriter(int queueCapacity, int telemetryCapacity){
+
+        telemetry = new TelemetryReader(telemetryCapacity);
+        _queue = new CommandQueue<Command>(queueCapacity + CONTROL_RESERVE);
+    }
+
+    public synchronized void start(){
+
+        if(!_isRunning){
+            _isRunning = true;
+            _thread = new Thread(this, THREAD_NAME);
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+    }
+
+    /**
+     * Stops the writer thread. Pending commands are discarded and the socket is closed.
+     */
+    public synchronized void shutdown(){
+
+        if(_isRunning){
+            _isRunning = false;
+            LockSupport.unpark(_thread);
+            _transport.wakeup();
+            _thread = null;
+        }
+    }
+
+    public void connect(String address, int port){
+
+        _endpoint = InetSocketAddress.createUnresolved(address, port);
+        _enqueueControl(CONNECT);
+    }
+
+    public void close(){
+
+        _enqueueControl(CLOSE);
+    }
+
+    /**
+     * Queues a command to be written.
+     *
+     * @param command Command
+     * @return false if the queue is full and the command has been rejected
+     */
+    public boolean enqueue(Command command){
+
+        long now = System.nanoTime();
+        return _enqueue(command, now, now);
+    }
+
+    /**
+     * Queues a command to be written, timing it from its input.
+     *
+     * @param command Command
+     * @param originTime System.nanoTime() of the input which produced it
+     * @return false if the queue is full and the command has been rejected
+     */
+    public boolean enqueue(Command command, long originTime){
+
+        return _enqueue(command, originTime, System.nanoTime());
+    }
+
+    private boolean _enqueue(Command command, long originTime, long queuedTime){
+
+        boolean done;
+        if(command.isUrgent()){
+            done = _enqueueUrgent(command, originTime, queuedTime);
+        }else if(command.getType() == Command.TYPE_MOTION){
+            done = _enqueueMotion(command, originTime, queuedTime);
+        }else{
+            done = _queue.size() < _queue.getCapacity() - CONTROL_RESERVE
+                    && _queue.offer(command, originTime, queuedTime);
+        }
+
+        if(done){
+            _latencyStats.recordQueued(originTime, queuedTime);
+            _wakeUp();
+        }else{
+            _droppedCount.incrementAndGet();
+            _latencyStats.recordDropped();
+        }
+
+        return done;
+    }
+
+    private boolean _enqueueMotion(Command command, long originTime, long queuedTime){
+
+        PendingMotion motion = new PendingMotion(command, originTime, queuedTime);
+        PendingMotion previous = _pendingMotion.getAndSet(motion);
+        if(previous != null){
+            // The marker already queued will write this one instead
+            _coalescedCount.incrementAndGet();
+            _latencyStats.recordCoalesced();
+            return true;
+        }
+
+        if(_queue.offer(MOTION)){
+            return true;
+        }
+
+        // Without a marker the slot would never be written. It is only taken back while
+        // nobody else relies on that marker.
+        if(_pendingMotion.compareAndSet(motion, null)){
+            return false;
+        }
+
+        // A newer motion was coalesced into this one, or a stop cleared it taking its
+        // marker for queued: the marker is still owed, so the writer takes it later
+        _overflowMotionMarkers.incrementAndGet();
+        return true;
+    }
+
+    private boolean _enqueueUrgent(Command command, long originTime, long queuedTime){
+
+        // Supersedes the pending motion. Counted before clearing the slot, so the writer
+        // never sees a cleared slot without its marker being accounted as stale.
+        _staleMotionMarkers.incrementAndGet();
+        if(_pendingMotion.getAndSet(null) != null){
+            _coalescedCount.incrementAndGet();
+            _latencyStats.recordCoalesced();
+        }else{
+            _staleMotionMarkers.decrementAndGet();
+        }
+
+        return _urgentQueue.offer(command, originTime, queuedTime);
+    }
+
+    /**
+     * @return Number of commands waiting to be written
+     */
+    public int getQueueDepth(){
+        return _queue.size() + _urgentQueue.size();
+    }
+
+    public int getQueueCapacity(){
+        return _queue.getCapacity() - CONTROL_RESERVE;
+    }
+
+    /**
+     * @return Number of pending motion commands replaced by a newer motion or a stop
+     */
+    public long getCoalescedCount(){
+        return _coalescedCount.get();
+    }
+
+    /**
+     * @return Number of commands rejected because the queue was full
+     */
+    public long getDroppedCount(){
+        return _droppedCount.get();
+    }
+
+    /**
+     * @return Latency of the commands from their input until written, with the counters
+     * of commands queued, written, coalesced and dropped
+     */
+    public CommandLatencyStats getLatencyStats(){
+        return _latencyStats;
+    }
+
+    public boolean isBound(){
+        return _isBound;
+    }
+
+    /**
+     * @param timeoutMillis Maximum time to wait for the connection to be established
+     */
+    public void setConnectTimeout(long timeoutMillis){
+        _connectTimeout = timeoutMillis;
+    }
+
+    public long getConnectTimeout(){
+        return _connectTimeout;
+    }
+
+    /**
+     * @param timeoutMillis Maximum time a write may wait for the socket before the
+     *                      connection is considered lost
+     */
+    public void setWriteTimeout(long timeoutMillis){
+        _writeTimeout = timeoutMillis;
+    }
+
+    public long getWriteTimeout(){
+        return _writeTimeout;
+    }
+
+    /**
+     * @param protocol PROTOCOL_AUTO to negotiate it on connection, PROTOCOL_TEXT or
+     *                 PROTOCOL_BINARY to force it. Applied on the next connection.
+     */
+    public void setProtocol(int protocol){
+        _protocol = protocol;
+    }
+
+    /**
+     * @param timeoutMillis Maximum time to wait for the robot to accept the binary protocol
+     */
+    public void setNegotiationTimeout(long timeoutMillis){
+        _negotiationTimeout = timeoutMillis;
+    }
+
+    /**
+     * @return The codec used by the current connection
+     */
+    public WireCodec getCodec(){
+        return _codec;
+    }
+
+    /**
+     * Switches between TCP and UDP. If connected, the connection is opened again in the
+     * new mode, keeping its place in the command stream.
+     *
+     * @param isDatagramMode true for UDP
+     */
+    public void setDatagramMode(boolean isDatagramMode){
+
+        if(_isDatagramMode != isDatagramMode){
+            _isDatagramMode = isDatagramMode;
+            if(_endpoint != null && _isBound){
+                _enqueueControl(CONNECT);
+            }
+        }
+    }
+
+    public boolean isDatagramMode(){
+        return _isDatagramMode;
+    }
+
+    /**
+     * @param isAutoReconnect Whether a lost connection is opened again automatically
+     */
+    public void setAutoReconnect(boolean isAutoReconnect){
+        _isAutoReconnect = isAutoReconnect;
+    }
+
+    /**
+     * @param minDelayMillis Delay before the first reconnection attempt
+     * @param maxDelayMillis Maximum delay between attempts, reached by doubling the first
+     */
+    public void setReconnectDelays(long minDelayMillis, long maxDelayMillis){
+        _minReconnectDelay = minDelayMillis;
+        _maxReconnectDelay = maxDelayMillis;
+    }
+
+    /**
+     * @return Time from losing the connection until it was recovered, for the last outage
+     */
+    public long getLastOutageMillis(){
+        return _lastOutageMillis;
+    }
+
+    /**
+     * @return Time spent recovering from all the outages so far
+     */
+    public long getTotalOutageMillis(){
+        return _totalOutageMillis;
+    }
+
+    /**
+     * @return Number of outages recovered from
+     */
+    public int getOutageCount(){
+        return _outageCount;
+    }
+
+    /**
+     * @param intervalMillis Time between heartbeats, or 0 to disable them. Only robots
+     *                       answering them get heartbeats, see
+     *                       {@link BinaryWireCodec#HEARTBEAT_VERSION}.
+     */
+    public void setHeartbeatInterval(long intervalMillis){
+
+        _heartbeatInterval = intervalMillis;
+        _wakeUp();
+    }
+
+    public long getHeartbeatInterval(){
+        return _heartbeatInterval;
+    }
+
+    /**
+     * @return Smoothed round trip time in microseconds, as TCP estimates it (RFC 6298),
+     * or 0 if no heartbeat has been answered yet
+     */
+    public long getSmoothedRttMicros(){
+        return _smoothedRtt / 1000L;
+    }
+
+    /**
+     * @return Variation of the round trip time in microseconds
+     */
+    public long getRttVarianceMicros(){
+        return _rttVariance / 1000L;
+    }
+
+    /**
+     * @return Number of heartbeats not answered before the next one was sent
+     */
+    public long getMissedHeartbeats(){
+        return _missedHeartbeats.get();
+    }
+
+    /**
+     * @return Round trip times of the heartbeats, in microseconds
+     */
+    public LatencyHistogram getRttHistogram(){
+        return _rttHistogram;
+    }
+
+    /**
+     * Writes the round trip statistics, followed by the histogram in CSV.
+     *
+     * @param out Destination
+     * @throws IOException If the destination fails
+     */
+    public void exportRttStats(Appendable out) throws IOException {
+
+        out.append("# smoothed_rtt_us=").append(Long.toString(getSmoothedRttMicros()))
+                .append(" rtt_variance_us=").append(Long.toString(getRttVarianceMicros()))
+                .append(" missed_heartbeats=").append(Long.toString(getMissedHeartbeats()))
+                .append('\n');
+        _rttHistogram.export(out);
+    }
+
+    /**
+     * @param rateLimiter Limiter pacing the commands written, or null to write them as
+     *                    fast as the connection takes them
+     */
+    public void setRateLimiter(AdaptiveRateLimiter rateLimiter){
+
+        _rateLimiter = rateLimiter;
+        _wakeUp();
+    }
+
+    public AdaptiveRateLimiter getRateLimiter(){
+        return _rateLimiter;
+    }
+
+    private void _enqueueControl(Command command){
+
+        if(_queue.offer(command)){
+            _wakeUp();
+        }else{
+            _droppedCount.incrementAndGet();
+        }
+    }
+
+    private void _wakeUp(){
+
+        if(_isWaiting.get() && _isWaiting.compareAndSet(true, false)){
+            LockSupport.unpark(_thread);
+            _transport.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+
+        while(_isRunning){
+            long nextTime = _resendCount > 0 ? _resend() : NO_TIMER;
+            if(_reconnectTime != NO_TIMER){
+                if(_reconnectTime - System.nanoTime() <= 0){
+                    _reconnect();
+                }
+                nextTime = Math.min(nextTime, _reconnectTime);
+            }
+            if(_isBound && (_isPingPending || System.nanoTime() - _lastReadTime > READ_INTERVAL_NANOS)){
+                // Even while busy, so the echo is timed when it arrives and the robot
+                // never blocks sending its telemetry
+                _receive(-1);
+            }
+            nextTime = Math.min(nextTime, _heartbeat());
+
+            // Ahead of everything, even a command waiting for its token
+            Command command = _urgentQueue.poll();
+            if(command != null){
+                _process(command, _urgentQueue.getPolledOriginTime(), _urgentQueue.getPolledQueuedTime());
+                continue;
+            }
+
+            long originTime = _heldOriginTime;
+            long queuedTime = _heldQueuedTime;
+            command = _heldCommand;
+            _heldCommand = null;
+            if(command == null && (command = _queue.poll()) != null){
+                originTime = _queue.getPolledOriginTime();
+                queuedTime = _queue.getPolledQueuedTime();
+            }
+            if(command == null && _overflowMotionMarkers.get() > 0){
+                _overflowMotionMarkers.decrementAndGet();
+                command = MOTION;
+            }
+            if(command != null){
+                long tokenTime = _throttle(command);
+                if(tokenTime != NO_TIMER){
+                    // Waits for its token, still serving the timers and the robot
+                    _heldCommand = command;
+                    _heldOriginTime = originTime;
+                    _heldQueuedTime = queuedTime;
+                    nextTime = Math.min(nextTime, tokenTime);
+                    command = null;
+                }
+            }
+
+            if(command != null){
+                _process(command, originTime, queuedTime);
+            }else{
+                _isWaiting.set(true);
+                if((_heldCommand != null || _queue.isEmpty() && _overflowMotionMarkers.get() == 0)
+                        && _urgentQueue.isEmpty() && _isRunning){
+                    _await(nextTime);
+                }
+                _isWaiting.set(false);
+            }
+        }
+
+        _closeSocket();
+    }
+
+    /**
+     * Waits for a command, the next timer or bytes from the robot.
+     */
+    private void _await(long nextTime){
+
+        if(!_isBound){
+            if(nextTime == NO_TIMER){
+                LockSupport.park(this);
+            }else{
+                LockSupport.parkNanos(this, nextTime - System.nanoTime());
+            }
+            return;
+        }
+
+        long timeoutMillis = 0;
+        if(nextTime != NO_TIMER){
+            long remaining = nextTime - System.nanoTime();
+            timeoutMillis = remaining <= 0 ? -1 : (remaining + 999999L) / 1000000L;
+        }
+        _receive(timeoutMillis);
+    }
+
+    /**
+     * Reads and parses what the robot has sent.
+     *
+     * @param timeoutMillis As in {@link RobotTransport#await(long)}
+     */
+    private void _receive(long timeoutMillis){
+
+        try {
+            boolean isReadable = _transport.await(timeoutMillis);
+            _lastReadTime = System.nanoTime();
+            if(!isReadable){
+                return;
+            }
+
+            boolean isDatagram = _codec instanceof DatagramWireCodec;
+            boolean isText = _codec == TextWireCodec.INSTANCE;
+            ByteBuffer buffer = _readBuffer;
+            while(true){
+                buffer.clear();
+                int count = _transport.read(buffer, 0);
+                if(count < 0){
+                    throw new EOFException("Connection closed by the robot");
+                }
+                if(count == 0){
+                    break;
+                }
+                _lastReceivedTime = System.nanoTime();
+                buffer.flip();
+                if(isDatagram){
+                    _parser.parseDatagram(buffer);
+                }else if(!isText){
+                    _parser.parseStream(buffer);
+                }
+            }
+        }catch(IOException ex){
+            _onConnectionLost(ex);
+        }
+    }
+
+    @Override
+    public void onFrame(byte opcode, int sequence, int payload){
+
+        if(opcode == BinaryWireCodec.OP_PONG && _isPingPending && sequence == _pingSequence){
+            _isPingPending = false;
+            long rtt = System.nanoTime() - _pingSentTime;
+            if(_smoothedRtt == 0){
+                _smoothedRtt = rtt;
+                _rttVariance = rtt / 2;
+            }else{
+                _rttVariance = (3 * _rttVariance + Math.abs(_smoothedRtt - rtt)) / 4;
+                _smoothedRtt = (7 * _smoothedRtt + rtt) / 8;
+            }
+            _rttHistogram.record(rtt / 1000L);
+            AdaptiveRateLimiter limiter = _rateLimiter;
+            if(limiter != null){
+                limiter.onRoundTrip(rtt, _pingSentTime + rtt);
+            }
+        }else{
+            telemetry.onFrame(opcode, sequence, payload, _lastReceivedTime);
+        }
+    }
+
+    /**
+     * Sends the heartbeat if it is due, and checks that the robot is still answering.
+     *
+     * @return When the next heartbeat or check is due, or NO_TIMER
+     */
+    private long _heartbeat(){
+
+        long interval = _heartbeatInterval * 1000000L;
+        if(!_isBound || !_isHeartbeatSupported || interval <= 0){
+            _activeHeartbeatInterval = 0;
+            return NO_TIMER;
+        }
+
+        long now = System.nanoTime();
+        if(interval != _activeHeartbeatInterval){
+            // Enabled or changed on an idle connection: the robot gets the whole grace
+            // period from now, not from the last time it sent something
+            _activeHeartbeatInterval = interval;
+            _lastReceivedTime = now;
+            _nextHeartbeatTime = now;
+        }
+        long deadline = _lastReceivedTime + interval * HEARTBEAT_MISSES;
+        if(deadline - now <= 0){
+            _onConnectionLost(new SocketTimeoutException("The robot stopped answering"));
+            return NO_TIMER;
+        }
+
+        if(_nextHeartbeatTime - now <= 0){
+            if(_isPingPending){
+                _missedHeartbeats.incrementAndGet();
+                AdaptiveRateLimiter limiter = _rateLimiter;
+                if(limiter != null){
+                    // Its round trip is at least the time it has been waiting
+                    limiter.onRoundTrip(now - _pingSentTime, now);
+                }
+            }
+            _isPingPending = true;
+            _pingSequence = _codec instanceof DatagramWireCodec
+                    ? _datagramSequence + 1
+                    : _sequence & 0xFFFF;
+            _pingSentTime = now;
+            _nextHeartbeatTime = now + interval;
+            _write(Command.PING);
+        }
+
+        return Math.min(_nextHeartbeatTime, deadline);
+    }
+
+    /**
+     * @return NO_TIMER if the command can be processed now, otherwise when the rate
+     * limiter has a token for it
+     */
+    private long _throttle(Command command){
+
+        AdaptiveRateLimiter limiter = _rateLimiter;
+        if(limiter == null || !_isBound){
+            return NO_TIMER;
+        }
+
+        boolean isLimited = command == MOTION
+                ? _staleMotionMarkers.get() == 0
+                : !command.isUrgent() && command.getType() != Command.TYPE_CONTROL;
+        if(!isLimited){
+            return NO_TIMER;
+        }
+
+        return limiter.tryAcquire(System.nanoTime()) ? NO_TIMER : limiter.getNextTokenTime();
+    }
+
+    private void _process(Command command, long originTime, long queuedTime){
+
+        if(command == MOTION){
+            _writeMotion();
+        }else if(command == CONNECT){
+            _reconnectTime = NO_TIMER;
+            Command unsentStop = _isStopUnsent ? _lastMotion : null;
+            _lastMotion = null;
+            _openSocket();
+            if(unsentStop != null && _isBound){
+                // It jumped ahead of this connect while disconnected
+                _lastMotion = unsentStop;
+                _isStopUnsent = false;
+                _write(unsentStop);
+            }
+        }else if(command == CLOSE){
+            _reconnectTime = NO_TIMER;
+            _isStopUnsent = false;
+            _closeSocket();
+        }else{
+            if(command.getType() == Command.TYPE_STOP){
+                _lastMotion = command;
+                _isStopUnsent = !_isBound;
+            }
+            _write(command);
+            if(_isBound){
+                _latencyStats.recordWritten(originTime, queuedTime, System.nanoTime());
+            }
+        }
+    }
+
+    private void _writeMotion(){
+
+        if(_staleMotionMarkers.get() > 0){
+            // Its motion was cleared by a stop queued behind this marker
+            _staleMotionMarkers.decrementAndGet();
+            return;
+        }
+
+        PendingMotion motion = _pendingMotion.getAndSet(null);
+        if(motion != null){
+            _lastMotion = motion.command;
+            _write(motion.command);
+            if(_isBound){
+                _latencyStats.recordWritten(motion.originTime, motion.queuedTime, System.nanoTime());
+            }
+        }else{
+            // A stop has cleared the slot after the check above
+            _staleMotionMarkers.decrementAndGet();
+        }
+    }
+
+    private void _write(Command command){
+
+        if(!_isBound){
+            return;
+        }
+
+        WireCodec codec = _codec;
+        int length = codec.encodedLength(command);
+        ByteBuffer buffer = length <= _writeBuffer.capacity()
+                ? _writeBuffer
+                : ByteBuffer.allocate(length);
+        buffer.clear();
+        if(codec instanceof DatagramWireCodec){
+            int sequence = ++_datagramSequence;
+            int timestamp = ((DatagramWireCodec)codec).getTimestamp();
+            ((DatagramWireCodec)codec).encode(command, sequence, timestamp, buffer);
+            buffer.flip();
+            _send(buffer);
+            if(_isBound && command.getType() != Command.TYPE_MOTION
+                    && command.getType() != Command.TYPE_HEARTBEAT){
+                _scheduleResend(command, sequence, timestamp);
+            }
+        }else{
+            codec.encode(command, _sequence++ & 0xFFFF, buffer);
+            buffer.flip();
+            _send(buffer);
+        }
+    }
+
+    private void _send(ByteBuffer buffer){
+
+        AdaptiveRateLimiter limiter = _rateLimiter;
+        long start = limiter != null ? System.nanoTime() : 0;
+        try {
+            _transport.write(buffer, _writeTimeout);
+            if(limiter != null){
+                long now = System.nanoTime();
+                limiter.onWrite(now - start, now);
+            }
+        }catch(IOException ex)
+        {
+            _onConnectionLost(ex);
+        }
+    }
+
+    private void _onConnectionLost(IOException cause){
+
+        _isBound = false;
+        _resendCount = 0;
+        _isPingPending = false;
+        _transport.close();
+        connectionChanged.rise(this, new ConnectionEventArgs(
+                ConnectionEventArgs.STATE_LOST, _endpoint, cause));
+
+        if(_isAutoReconnect){
+            _outageStartTime = System.nanoTime();
+            _reconnectAttempts = 0;
+            _scheduleReconnect();
+        }
+    }
+
+    private void _scheduleResend(Command command, int sequence, int timestamp){
+
+        if(_resendCount == RESEND_SLOTS){
+            // No room, the oldest one gets its copies right now
+            _resendDueTimes[0] = 0;
+            _resend();
+            if(_resendCount == RESEND_SLOTS){
+                _removeResend(0);
+            }
+        }
+
+        int slot = _resendCount++;
+        _resendCommands[slot] = command;
+        _resendSequences[slot] = sequence;
+        _resendTimestamps[slot] = timestamp;
+        _resendsLeft[slot] = REDUNDANT_COPIES - 1;
+        _resendDueTimes[slot] = System.nanoTime() + RESEND_INTERVAL_NANOS;
+    }
+
+    /**
+     * Sends the redundant copies which are due.
+     *
+     * @return When the next copy is due, or NO_TIMER
+     */
+    private long _resend(){
+
+        long now = System.nanoTime();
+        long nextTime = NO_TIMER;
+        DatagramWireCodec codec = _codec instanceof DatagramWireCodec
+                ? (DatagramWireCodec)_codec
+                : null;
+
+        int slot = 0;
+        while(slot < _resendCount){
+            if(codec == null || !_isBound){
+                _resendCount = 0;
+                break;
+            }
+            if(_resendDueTimes[slot] - now <= 0){
+                ByteBuffer buffer = _writeBuffer;
+                buffer.clear();
+                codec.encode(_resendCommands[slot], _resendSequences[slot],
+                        _resendTimestamps[slot], buffer);
+                buffer.flip();
+                _send(buffer);
+                if(!_isBound){
+                    return NO_TIMER;
+                }
+                _resendDueTimes[slot] = now + RESEND_INTERVAL_NANOS;
+                if(--_resendsLeft[slot] == 0){
+                    _removeResend(slot);
+                    continue;
+                }
+            }
+            if(_resendDueTimes[slot] < nextTime){
+                nextTime = _resendDueTimes[slot];
+            }
+            slot++;
+        }
+
+        return nextTime;
+    }
+
+    private void _removeResend(int slot){
+
+        _resendCount--;
+        for(int i = slot; i < _resendCount; i++){
+            _resendCommands[i] = _resendCommands[i + 1];
+            _resendSequences[i] = _resendSequences[i + 1];
+            _resendTimestamps[i] = _resendTimestamps[i + 1];
+            _resendsLeft[i] = _resendsLeft[i + 1];
+            _resendDueTimes[i] = _resendDueTimes[i + 1];
+        }
+        _resendCommands[_resendCount] = null;
+    }
+
+    private void _openSocket(){
+
+        _closeSocket();
+
+        InetSocketAddress endpoint = _endpoint;
+        connectionChanged.rise(this, new ConnectionEventArgs(
+                ConnectionEventArgs.STATE_CONNECTING, endpoint, null));
+        IOException error = _tryOpenSocket(endpoint);
+        connectionChanged.rise(this, new ConnectionEventArgs(error == null
+                ? ConnectionEventArgs.STATE_CONNECTED
+                : ConnectionEventArgs.STATE_CONNECT_FAILED, endpoint, error));
+    }
+
+    /**
+     * @return null on success, or the cause of the failure
+     */
+    private IOException _tryOpenSocket(InetSocketAddress endpoint){
+
+        _transport = _isDatagramMode ? _datagramTransport : _streamTransport;
+        try {
+            _transport.connect(endpoint, _connectTimeout);
+            _isHeartbeatSupported = _isDatagramMode;
+            _codec = _isDatagramMode ? new DatagramWireCodec() : _negotiateCodec();
+            _sequence = 0;
+            _parser.reset();
+            _isPingPending = false;
+            _lastReceivedTime = System.nanoTime();
+            _nextHeartbeatTime = _lastReceivedTime;
+            AdaptiveRateLimiter limiter = _rateLimiter;
+            if(limiter != null){
+                limiter.reset(_lastReceivedTime);
+            }
+            _isBound = true;
+            return null;
+        }catch (IOException ex)
+        {
+            _transport.close();
+            return ex;
+        }
+    }
+
+    private void _scheduleReconnect(){
+
+        // Full jitter over the upper half, so many phones do not retry in lockstep
+        long delay = Math.min(_maxReconnectDelay,
+                _minReconnectDelay << Math.min(_reconnectAttempts, 20));
+        delay = delay / 2 + (long)(_random.nextDouble() * (delay / 2));
+        _reconnectTime = System.nanoTime() + delay * 1000000L;
+
+        connectionChanged.rise(this, new ConnectionEventArgs(
+                ConnectionEventArgs.STATE_RECONNECTING, _endpoint, null));
+    }
+
+    private void _reconnect(){
+
+        _reconnectTime = NO_TIMER;
+        _reconnectAttempts++;
+
+        InetSocketAddress endpoint = _endpoint;
+        if(_tryOpenSocket(endpoint) != null){
+            _scheduleReconnect();
+            return;
+        }
+
+        long outageMillis = (System.nanoTime() - _outageStartTime) / 1000000L;
+        _lastOutageMillis = outageMillis;
+        _totalOutageMillis += outageMillis;
+        _outageCount++;
+        connectionChanged.rise(this, new ConnectionEventArgs(
+                ConnectionEventArgs.STATE_CONNECTED, endpoint, null, outageMillis));
+
+        if(_lastMotion != null){
+            _isStopUnsent = false;
+            _write(_lastMotion);
+        }
+    }
+
+    private WireCodec _negotiateCodec() throws IOException {
+
+        int protocol = _protocol;
+        if(protocol != PROTOCOL_AUTO){
+            _isHeartbeatSupported = protocol == PROTOCOL_BINARY;
+            return protocol == PROTOCOL_BINARY ? BinaryWireCodec.INSTANCE : TextWireCodec.INSTANCE;
+        }
+
+        ByteBuffer buffer = _writeBuffer;
+        buffer.clear();
+        buffer.put(BinaryWireCodec.HELLO);
+        buffer.flip();
+        _transport.write(buffer, _writeTimeout);
+
+        int replyLength = BinaryWireCodec.HELLO_REPLY.length + 1;
+        buffer.clear();
+        buffer.limit(replyLength);
+        long deadline = System.nanoTime() + _negotiationTimeout * 1000000L;
+        while(buffer.hasRemaining()){
+            long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+            if(remainingMillis <= 0 || _transport.read(buffer, remainingMillis) < 0){
+                break;
+            }
+        }
+
+        if(buffer.position() == replyLength){
+            boolean isAccepted = true;
+            for(int i = 0; i < BinaryWireCodec.HELLO_REPLY.length; i++){
+                isAccepted &= buffer.get(i) == BinaryWireCodec.HELLO_REPLY[i];
+            }
+            int version = buffer.get(replyLength - 1);
+            // Every version understands the frames of the first one
+            if(isAccepted && version >= 1){
+                _isHeartbeatSupported = version >= BinaryWireCodec.HEARTBEAT_VERSION;
+                return BinaryWireCodec.INSTANCE;
+            }
+        }
+
+        return TextWireCodec.INSTANCE;
+    }
+
+    private void _closeSocket(){
+
+        if(_isBound){
+            _isBound = false;
+            _resendCount = 0;
+            _isPingPending = false;
+            _transport.close();
+            connectionChanged.rise(this, new ConnectionEventArgs(
+                    ConnectionEventArgs.STATE_DISCONNECTED, _endpoint, null));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.dpm.microvacapp;
+
+import com.dpm.framework.EventArgs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Arguments of the connection state change event.
+ */
+public class ConnectionEventArgs extends EventArgs {
+
+    public final static int STATE_CONNECTED = 0;
+    public final static int STATE_CONNECT_FAILED = 1;
+    public final static int STATE_LOST = 2;
+    public final static int STATE_DISCONNECTED = 3;
+    public final static int STATE_CONNECTING = 4;
+    public final static int STATE_RECONNECTING = 5;
+
+    private final int _state;
+    private final InetSocketAddress _endpoint;
+    private final IOException _error;
+    private final long _outageMillis;
+
+    public ConnectionEventArgs(int state, InetSocketAddress endpoint, IOException error){
+
+        this(state, endpoint, error, 0);
+    }
+
+    public ConnectionEventArgs(int state, InetSocketAddress endpoint, IOException error,
+                               long outageMillis){
+
+        _state = state;
+        _endpoint = endpoint;
+        _error = error;
+        _outageMillis = outageMillis;
+    }
+
+    /**
+     * @return One of the STATE_* constants
+     */
+    public int getState() { return _state; }
+
+    public InetSocketAddress getEndpoint() { return _endpoint; }
+
+    /**
+     * @return Cause of a failed or lost connection, otherwise null
+     */
+    public IOException getError() { return _error; }
+
+    /**
+     * @return When connected again after losing the connection, the time it took to recover
+     */
+    public long getOutageMillis() { return _outageMillis; }
+
+    @Override
+    public String toString() {
+
+        String[] names = {"connected", "connect failed", "lost", "disconnected", "connecting",
+                "reconnecting"};
+        return names[_state] + " " + _endpoint
+                + (_outageMillis > 0 ? " after " + _outageMillis + " ms outage" : "")
+                + (_error != null ? ": " + _error.getMessage() : "");
+    }
+}
@@ -0,0 +1,142 @@
+package com.dpm.microvacapp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * UDP connection to the robot. Every write is sent as a single datagram, so a lost or
+ * late one never holds back the following ones as it happens with TCP.
+ *
+ * There is no handshake, so connecting never fails for an unreachable robot; the loss is
+ * only noticed when the network reports the port as unreachable. The timeout only bounds
+ * the lookup of a host name.
+ *
+ * It is not thread-safe; it is meant to be used only from the writer thread.
+ */
+public class DatagramTransport implements RobotTransport {
+
+    private DatagramChannel _channel;
+    private volatile Selector _selector;
+    private SelectionKey _key;
+
+    @Override
+    public void connect(InetSocketAddress endpoint, long timeoutMillis) throws IOException {
+
+        close();
+
+        endpoint = EndpointResolver.resolve(endpoint, System.nanoTime() + timeoutMillis * 1000000L);
+
+        _selector = Selector.open();
+        _channel = DatagramChannel.open();
+        try {
+            _channel.configureBlocking(false);
+            _channel.connect(endpoint);
+            _key = _channel.register(_selector, 0);
+        }catch(IOException ex){
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, long timeoutMillis) throws IOException {
+
+        if(_channel == null){
+            throw new IOException("Not connected");
+        }
+
+        if(_channel.write(buffer) == 0){
+            // The send buffer is full; datagrams are sent whole or not at all
+            _key.interestOps(SelectionKey.OP_WRITE);
+            try {
+                if(_selector.select(timeoutMillis) > 0){
+                    _selector.selectedKeys().clear();
+                    _channel.write(buffer);
+                }
+            }finally{
+                _key.interestOps(0);
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, long timeoutMillis) throws IOException {
+
+        if(_channel == null){
+            throw new IOException("Not connected");
+        }
+
+        int count = _channel.read(buffer);
+        if(count == 0 && timeoutMillis > 0){
+            _key.interestOps(SelectionKey.OP_READ);
+            try {
+                if(_selector.select(timeoutMillis) > 0){
+                    _selector.selectedKeys().clear();
+                    count = _channel.read(buffer);
+                }
+            }finally{
+                _key.interestOps(0);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public boolean await(long timeoutMillis) throws IOException {
+
+        if(_channel == null){
+            throw new IOException("Not connected");
+        }
+
+        _key.interestOps(SelectionKey.OP_READ);
+        try {
+            int count = timeoutMillis < 0 ? _selector.selectNow() : _selector.select(timeoutMillis);
+            _selector.selectedKeys().clear();
+            return count > 0;
+        }finally{
+            _key.interestOps(0);
+        }
+    }
+
+    @Override
+    public void wakeup(){
+
+        Selector selector = _selector;
+        if(selector != null){
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public boolean isConnected(){
+        return _channel != null && _channel.isConnected();
+    }
+
+    @Override
+    public void close(){
+
+        if(_channel != null){
+            try {
+                _channel.close();
+            }catch(IOException ex){
+                // Nothing to do, the channel is discarded anyway
+            }
+            _channel = null;
+            _key = null;
+        }
+
+        if(_selector != null){
+            try {
+                _selector.close();
+            }catch(IOException ex){
+                // Nothing to do, the selector is discarded anyway
+            }
+            _selector = null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.dpm.microvacapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Protocol of the UDP control channel. Each datagram holds one command:
+ *
+ * <pre>
+ * +-------------+--------------+--------+--------------------+
+ * | sequence    | timestamp    | opcode | payload (optional) |
+ * | 4 bytes, BE | 4 bytes, BE  | 1 byte | unsigned varint    |
+ * +-------------+--------------+--------+--------------------+
+ * </pre>
+ *
+ * The sequence number grows monotonically while the app runs, also across
+ * reconnections, and the timestamp is given in milliseconds since the connection was
+ * opened. The robot must apply a motion or a stop only if its sequence number is greater
+ * than the one of the last motion or stop applied, so late or reordered datagrams are
+ * discarded. Stops and expressions are sent several times with the same sequence
+ * number and timestamp, so the robot applies only the first copy received. It should
+ * forget the sequence numbers after some seconds without datagrams.
+ *
+ * Opcodes and payloads are the same as in {@link BinaryWireCodec}.
+ */
+public class DatagramWireCodec implements WireCodec {
+
+    public final static int HEADER_LENGTH = 8;
+
+    private final long _epochNanos = System.nanoTime();
+
+    @Override
+    public void encode(Command command, int sequence, ByteBuffer buffer) {
+
+        encode(command, sequence, getTimestamp(), buffer);
+    }
+
+    /**
+     * Encodes a command with a given timestamp, as needed for the redundant copies.
+     */
+    public void encode(Command command, int sequence, int timestamp, ByteBuffer buffer) {
+
+        buffer.putInt(sequence);
+        buffer.putInt(timestamp);
+
+        byte opcode = command.getOpcode();
+        buffer.put(opcode);
+        if(opcode == BinaryWireCodec.OP_RAW){
+            byte[] bytes = command.getTextBytes();
+            BinaryWireCodec.putVarint(buffer, bytes.length);
+            buffer.put(bytes);
+        }else if((opcode & BinaryWireCodec.PAYLOAD_FLAG) != 0){
+            BinaryWireCodec.putVarint(buffer, command.getArgument());
+        }
+    }
+
+    @Override
+    public int encodedLength(Command command) {
+
+        // The same frame as in the binary protocol, without its two byte sequence number
+        return HEADER_LENGTH + BinaryWireCodec.INSTANCE.encodedLength(command) - 2;
+    }
+
+    /**
+     * @return Milliseconds since the codec was created
+     */
+    public int getTimestamp(){
+
+        return (int)((System.nanoTime() - _epochNanos) / 1000000L);
+    }
+}
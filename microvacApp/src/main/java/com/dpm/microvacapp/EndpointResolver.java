@@ -0,0 +1,77 @@
+package com.dpm.microvacapp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Looks up the address of the robot on a helper thread, so the thread connecting gives
+ * up at its connect deadline even if the name server never answers. An abandoned lookup
+ * ends on its own and its result is ignored.
+ */
+final class EndpointResolver {
+
+    private final static String THREAD_NAME = EndpointResolver.class.getSimpleName();
+
+    private final static ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private EndpointResolver(){
+    }
+
+    /**
+     * @param endpoint Robot address, looked up if unresolved
+     * @param deadline System.nanoTime() by which the lookup has to be done
+     * @return The resolved address
+     * @throws UnknownHostException If the host is unknown
+     * @throws SocketTimeoutException If the lookup does not end in time
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    static InetSocketAddress resolve(final InetSocketAddress endpoint, long deadline) throws IOException {
+
+        if(!endpoint.isUnresolved()){
+            return endpoint;
+        }
+
+        Future<InetSocketAddress> lookup = EXECUTOR.submit(new Callable<InetSocketAddress>() {
+            @Override
+            public InetSocketAddress call() {
+                return new InetSocketAddress(endpoint.getHostName(), endpoint.getPort());
+            }
+        });
+
+        InetSocketAddress address;
+        try {
+            address = lookup.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }catch(TimeoutException ex){
+            throw new SocketTimeoutException("Host name resolution timed out: " + endpoint.getHostName());
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted resolving " + endpoint.getHostName());
+        }catch(ExecutionException ex){
+            throw new IOException("Cannot resolve " + endpoint.getHostName(), ex.getCause());
+        }
+
+        if(address.isUnresolved()){
+            throw new UnknownHostException(endpoint.getHostName());
+        }
+
+        return address;
+    }
+}
@@ -0,0 +1,408 @@
+package com.dpm.microvacapp;
+
+import com.dpm.framework.Event;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives several robots at once from a single thread.
+ *
+ * Every robot has its own ordered queue and a non-blocking connection, and the thread
+ * serves all of them from one selector, writing to each one only what its socket
+ * accepts. A robot which is slow or gone therefore only delays its own commands, and
+ * dozens of robots need no more threads than one. Only IPv4 addresses are taken without
+ * a lookup; host names and anything else are looked up on helper threads, as a lookup
+ * blocks.
+ *
+ * A broadcast is queued to every robot as the same {@link SharedFrame}, so it is encoded
+ * once per protocol and then just copied to each socket. To make that possible, the
+ * sequence numbers are shared by the whole fleet: each robot sees them increasing, but
+ * not consecutive.
+ *
+ * Connection changes are raised through {@link #connectionChanged} on the fleet thread,
+ * with the {@link FleetRobot} as sender.
+ */
+public class FleetCommander implements Runnable {
+
+    private final static String THREAD_NAME = FleetCommander.class.getSimpleName();
+    private final static String RESOLVER_THREAD_NAME = THREAD_NAME + "Resolver";
+
+    public final static int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final static int READ_BUFFER_SIZE = 256;
+    private final static long NO_TIMER = Long.MAX_VALUE;
+
+    private final int _queueCapacity;
+    private final Selector _selector;
+    private final AtomicBoolean _isWaiting = new AtomicBoolean(false);
+    private final AtomicInteger _sequence = new AtomicInteger();
+    private volatile FleetRobot[] _robots = new FleetRobot[0];
+    private volatile boolean _isRunning = false;
+    private Thread _thread;
+
+    private volatile long _connectTimeout = CommandWriter.DEFAULT_CONNECT_TIMEOUT;
+    private volatile long _writeTimeout = CommandWriter.DEFAULT_WRITE_TIMEOUT;
+    private volatile long _negotiationTimeout = CommandWriter.DEFAULT_NEGOTIATION_TIMEOUT;
+    private volatile int _protocol = CommandWriter.PROTOCOL_AUTO;
+    private volatile boolean _isAutoReconnect = true;
+    private volatile long _minReconnectDelay = CommandWriter.DEFAULT_MIN_RECONNECT_DELAY;
+    private volatile long _maxReconnectDelay = CommandWriter.DEFAULT_MAX_RECONNECT_DELAY;
+    private final Random _random = new Random();
+
+    // One thread per lookup at once, so a slow one does not delay the others. They end
+    // when idle.
+    private final ExecutorService _resolverExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, RESOLVER_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Used only by the fleet thread
+    private final ByteBuffer _readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer _scratchBuffer = ByteBuffer.allocate(WireCodec.MAX_FRAME_LENGTH);
+
+    /**
+     * Raised when the connection to a robot is established, fails, is lost or is closed.
+     */
+    public final Event<ConnectionEventArgs> connectionChanged = new Event<ConnectionEventArgs>();
+
+    public FleetCommander() throws IOException {
+
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity Maximum number of commands waiting for each robot
+     * @throws IOException If the selector cannot be opened
+     */
+    public FleetCommander(int queueCapacity) throws IOException {
+
+        _queueCapacity = queueCapacity;
+        _selector = Selector.open();
+    }
+
+    public synchronized void start(){
+
+        if(!_isRunning){
+            _isRunning = true;
+            _thread = new Thread(this, THREAD_NAME);
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+    }
+
+    /**
+     * Stops the fleet thread, closing every connection.
+     */
+    public synchronized void shutdown(){
+
+        if(_isRunning){
+            _isRunning = false;
+            _selector.wakeup();
+            _thread = null;
+        }
+    }
+
+    /**
+     * Adds a robot and starts connecting to it. An IPv4 address is taken as is; anything
+     * else, a host name or an IPv6 address, is looked up on a helper thread on each
+     * connection attempt.
+     *
+     * @param address Address or host name of the robot
+     * @param port TCP port
+     * @return The robot, to send it commands or remove it
+     */
+    public FleetRobot add(String address, int port){
+
+        InetAddress literal = _parseIpv4(address);
+        InetSocketAddress endpoint = literal != null
+                ? new InetSocketAddress(literal, port)
+                : InetSocketAddress.createUnresolved(address, port);
+        FleetRobot robot = new FleetRobot(this, endpoint, _queueCapacity);
+        synchronized (this){
+            FleetRobot[] robots = new FleetRobot[_robots.length + 1];
+            System.arraycopy(_robots, 0, robots, 0, _robots.length);
+            robots[_robots.length] = robot;
+            _robots = robots;
+        }
+        wakeUp();
+
+        return robot;
+    }
+
+    /**
+     * @return The robots of the fleet. The array must not be modified.
+     */
+    public FleetRobot[] getRobots(){
+        return _robots;
+    }
+
+    /**
+     * Queues the command to all the robots. It is encoded only once.
+     *
+     * @param command Command
+     * @return Number of robots which have accepted it; the rest had their queue full
+     */
+    public int broadcast(Command command){
+
+        SharedFrame frame = new SharedFrame(command, nextSequence());
+        int accepted = 0;
+        for(FleetRobot robot: _robots){
+            if(robot.offer(frame)){
+                accepted++;
+            }
+        }
+        if(accepted > 0){
+            wakeUp();
+        }
+
+        return accepted;
+    }
+
+    /**
+     * @param timeoutMillis Maximum time to wait for a connection to be established
+     */
+    public void setConnectTimeout(long timeoutMillis){
+        _connectTimeout = timeoutMillis;
+    }
+
+    public long getConnectTimeout(){
+        return _connectTimeout;
+    }
+
+    /**
+     * @param timeoutMillis Maximum time a robot may accept no bytes at all while there
+     *                      are some to write, before its connection is considered lost
+     */
+    public void setWriteTimeout(long timeoutMillis){
+        _writeTimeout = timeoutMillis;
+    }
+
+    public long getWriteTimeout(){
+        return _writeTimeout;
+    }
+
+    /**
+     * @param timeoutMillis Maximum time to wait for a robot to accept the binary protocol
+     */
+    public void setNegotiationTimeout(long timeoutMillis){
+        _negotiationTimeout = timeoutMillis;
+    }
+
+    long getNegotiationTimeout(){
+        return _negotiationTimeout;
+    }
+
+    /**
+     * @param protocol As in {@link CommandWriter#setProtocol(int)}
+     */
+    public void setProtocol(int protocol){
+        _protocol = protocol;
+    }
+
+    int getProtocol(){
+        return _protocol;
+    }
+
+    /**
+     * @param isAutoReconnect Whether a lost connection is opened again automatically
+     */
+    public void setAutoReconnect(boolean isAutoReconnect){
+        _isAutoReconnect = isAutoReconnect;
+    }
+
+    public boolean isAutoReconnect(){
+        return _isAutoReconnect;
+    }
+
+    /**
+     * @param minDelayMillis Delay before the first reconnection attempt
+     * @param maxDelayMillis Maximum delay between attempts, reached by doubling the first
+     */
+    public void setReconnectDelays(long minDelayMillis, long maxDelayMillis){
+        _minReconnectDelay = minDelayMillis;
+        _maxReconnectDelay = maxDelayMillis;
+    }
+
+    int nextSequence(){
+        return _sequence.getAndIncrement();
+    }
+
+    /**
+     * @param attempts Failed attempts so far
+     * @return Delay before the next attempt, with the same jitter as the writer
+     */
+    long getReconnectDelay(int attempts){
+
+        long delay = Math.min(_maxReconnectDelay, _minReconnectDelay << Math.min(attempts, 20));
+        return delay / 2 + (long)(_random.nextDouble() * (delay / 2));
+    }
+
+    ByteBuffer getReadBuffer(){
+        return _readBuffer;
+    }
+
+    ByteBuffer getScratchBuffer(){
+        return _scratchBuffer;
+    }
+
+    /**
+     * @param resolver Lookup of a robot's address, run on a helper thread
+     */
+    void resolve(Runnable resolver){
+        _resolverExecutor.execute(resolver);
+    }
+
+    /**
+     * @return The address of an IPv4 literal, four octets from 0 to 255, built without a
+     * lookup; or null for anything else, IPv6 literals included, left to the resolver
+     */
+    private static InetAddress _parseIpv4(String address){
+
+        byte[] octets = new byte[4];
+        int count = 0;
+        int value = -1;
+        for(int i = 0; i <= address.length(); i++){
+            char c = i < address.length() ? address.charAt(i) : '.';
+            if(c == '.'){
+                if(value < 0 || count == octets.length){
+                    return null;
+                }
+                octets[count++] = (byte)value;
+                value = -1;
+            }else if(c >= '0' && c <= '9'){
+                value = (value < 0 ? 0 : value * 10) + c - '0';
+                if(value > 255){
+                    return null;
+                }
+            }else{
+                return null;
+            }
+        }
+        if(count != octets.length){
+            return null;
+        }
+
+        try {
+            return InetAddress.getByAddress(address, octets);
+        }catch(UnknownHostException ex){
+            // Only thrown for a wrong number of octets
+            return null;
+        }
+    }
+
+    SelectionKey register(SocketChannel channel, FleetRobot robot) throws IOException {
+        return channel.register(_selector, 0, robot);
+    }
+
+    void raise(FleetRobot robot, int state, IOException error, long outageMillis){
+
+        connectionChanged.rise(robot, new ConnectionEventArgs(state, robot.getEndpoint(), error,
+                outageMillis));
+    }
+
+    void wakeUp(){
+
+        if(_isWaiting.get() && _isWaiting.compareAndSet(true, false)){
+            _selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run(){
+
+        while(_isRunning){
+            long now = System.nanoTime();
+            long nextTime = NO_TIMER;
+            FleetRobot[] robots = _robots;
+            boolean hasClosed = false;
+            for(FleetRobot robot: robots){
+                nextTime = Math.min(nextTime, robot.service(now));
+                hasClosed |= robot.isClosed();
+            }
+            if(hasClosed){
+                _removeClosed();
+            }
+
+            _isWaiting.set(true);
+            boolean hasWork = false;
+            for(FleetRobot robot: robots){
+                hasWork |= robot.hasPendingWrites();
+            }
+            try {
+                if(hasWork || !_isRunning){
+                    _selector.selectNow();
+                }else if(nextTime == NO_TIMER){
+                    _selector.select();
+                }else{
+                    long remaining = nextTime - System.nanoTime();
+                    if(remaining > 0){
+                        _selector.select((remaining + 999999L) / 1000000L);
+                    }else{
+                        _selector.selectNow();
+                    }
+                }
+            }catch(IOException ex){
+                // The selector only fails if it is closed
+                break;
+            }
+            _isWaiting.set(false);
+
+            Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                if(key.isValid()){
+                    ((FleetRobot)key.attachment()).onReady(key);
+                }
+            }
+        }
+
+        for(FleetRobot robot: _robots){
+            robot.close();
+            robot.service(System.nanoTime());
+        }
+        _removeClosed();
+        try {
+            _selector.close();
+        }catch(IOException ex){
+            // Nothing to do, the selector is discarded anyway
+        }
+    }
+
+    private synchronized void _removeClosed(){
+
+        int count = 0;
+        for(FleetRobot robot: _robots){
+            if(!robot.isClosed()){
+                count++;
+            }
+        }
+
+        FleetRobot[] robots = new FleetRobot[count];
+        int i = 0;
+        for(FleetRobot robot: _robots){
+            if(!robot.isClosed()){
+                robots[i++] = robot;
+            }
+        }
+        _robots = robots;
+    }
+}
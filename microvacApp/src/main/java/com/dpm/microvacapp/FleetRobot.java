@@ -0,0 +1,538 @@
+package com.dpm.microvacapp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A robot of a {@link FleetCommander}, with its own ordered queue of commands.
+ *
+ * The public methods can be called from any thread. The connection itself is driven
+ * only by the fleet thread, as a non-blocking state machine, so a robot which is slow,
+ * unreachable or gone only fills its own queue. Its host name, which may take long to
+ * resolve or never resolve, is looked up on a helper thread of the fleet, and the
+ * result is picked up by the fleet thread.
+ */
+public class FleetRobot {
+
+    private final static int STATE_IDLE = 0;
+    private final static int STATE_RESOLVING = 1;
+    private final static int STATE_CONNECTING = 2;
+    private final static int STATE_NEGOTIATING = 3;
+    private final static int STATE_BOUND = 4;
+    private final static int STATE_CLOSED = 5;
+
+    private final static int REQUEST_NONE = 0;
+    private final static int REQUEST_CONNECT = 1;
+    private final static int REQUEST_CLOSE = 2;
+
+    private final static int WRITE_BUFFER_SIZE = 512;
+    private final static long NO_TIMER = Long.MAX_VALUE;
+
+    /**
+     * Looks up the address of the robot on a helper thread, and wakes the fleet thread up
+     * when done. Each attempt has its own, so the result of an abandoned one is ignored.
+     */
+    private static class Resolver implements Runnable {
+
+        private final FleetCommander _fleet;
+        private final String _hostName;
+        private final int _port;
+        private volatile InetSocketAddress _address;
+
+        Resolver(FleetCommander fleet, InetSocketAddress endpoint){
+            _fleet = fleet;
+            _hostName = endpoint.getHostName();
+            _port = endpoint.getPort();
+        }
+
+        @Override
+        public void run() {
+            _address = new InetSocketAddress(_hostName, _port);
+            _fleet.wakeUp();
+        }
+
+        /**
+         * @return The address, unresolved if the host is unknown, or null until done
+         */
+        InetSocketAddress getAddress(){
+            return _address;
+        }
+    }
+
+    private final FleetCommander _fleet;
+    private final InetSocketAddress _endpoint;
+    private final CommandQueue<SharedFrame> _queue;
+    private final AtomicLong _droppedCount = new AtomicLong();
+    private volatile int _request = REQUEST_CONNECT;
+    private volatile boolean _isBound = false;
+    private volatile WireCodec _codec = TextWireCodec.INSTANCE;
+
+    // Owned by the fleet thread
+    private int _state = STATE_IDLE;
+    private SocketChannel _channel;
+    private SelectionKey _key;
+    private final ByteBuffer _writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final ByteBuffer _replyBuffer = ByteBuffer.allocate(BinaryWireCodec.HELLO_REPLY.length + 1);
+    private SharedFrame _partialFrame;
+    private int _partialOffset;
+    private Resolver _resolver;
+    private long _deadline = NO_TIMER;
+    private long _stallStartTime = 0;
+    private boolean _isStalled = false;
+    private long _reconnectTime = NO_TIMER;
+    private int _reconnectAttempts = 0;
+    private long _outageStartTime;
+    private boolean _isRecovering = false;
+
+    FleetRobot(FleetCommander fleet, InetSocketAddress endpoint, int queueCapacity){
+
+        _fleet = fleet;
+        _endpoint = endpoint;
+        _queue = new CommandQueue<SharedFrame>(queueCapacity);
+    }
+
+    /**
+     * Queues a command for this robot only.
+     *
+     * @param command Command
+     * @return false if the queue is full or the robot has been removed
+     */
+    public boolean send(Command command){
+
+        boolean done = offer(new SharedFrame(command, _fleet.nextSequence()));
+        if(done){
+            _fleet.wakeUp();
+        }
+
+        return done;
+    }
+
+    /**
+     * Closes the connection and removes the robot from the fleet.
+     */
+    public void close(){
+
+        _request = REQUEST_CLOSE;
+        _fleet.wakeUp();
+    }
+
+    public InetSocketAddress getEndpoint(){
+        return _endpoint;
+    }
+
+    public boolean isBound(){
+        return _isBound;
+    }
+
+    /**
+     * @return The codec used by the current connection
+     */
+    public WireCodec getCodec(){
+        return _codec;
+    }
+
+    /**
+     * @return Number of commands waiting to be written
+     */
+    public int getQueueDepth(){
+        return _queue.size();
+    }
+
+    /**
+     * @return Number of commands rejected because this robot's queue was full
+     */
+    public long getDroppedCount(){
+        return _droppedCount.get();
+    }
+
+    @Override
+    public String toString(){
+        return _endpoint.toString();
+    }
+
+    boolean offer(SharedFrame frame){
+
+        if(_request != REQUEST_CLOSE && _queue.offer(frame)){
+            return true;
+        }
+
+        _droppedCount.incrementAndGet();
+        return false;
+    }
+
+    boolean isClosed(){
+        return _state == STATE_CLOSED;
+    }
+
+    /**
+     * @return Whether there are frames that could be written right away
+     */
+    boolean hasPendingWrites(){
+        return _state == STATE_BOUND && !_isStalled && (_partialFrame != null || !_queue.isEmpty());
+    }
+
+    /**
+     * Handles the requests and timers, and writes what the socket accepts.
+     * Called by the fleet thread on every turn.
+     *
+     * @return When the next timer is due, or NO_TIMER
+     */
+    long service(long now){
+
+        int request = _request;
+        if(request == REQUEST_CLOSE){
+            _close();
+            return NO_TIMER;
+        }
+        if(request == REQUEST_CONNECT){
+            _request = REQUEST_NONE;
+            _isRecovering = false;
+            _open(now);
+        }
+
+        switch(_state){
+            case STATE_IDLE:
+                // The commands sent while disconnected are discarded, as the writer does
+                _discardQueue();
+                if(_reconnectTime != NO_TIMER && _reconnectTime - now <= 0){
+                    _reconnectTime = NO_TIMER;
+                    _reconnectAttempts++;
+                    _open(now);
+                }
+                return _state == STATE_IDLE ? _reconnectTime : _deadline;
+            case STATE_RESOLVING:
+                InetSocketAddress address = _resolver.getAddress();
+                if(address != null){
+                    _resolver = null;
+                    if(address.isUnresolved()){
+                        _onOpenFailed(new UnknownHostException(_endpoint.getHostName()));
+                    }else{
+                        _connect(address, now);
+                    }
+                    return service(now);
+                }
+                if(_deadline - now <= 0){
+                    _resolver = null;
+                    _onOpenFailed(new SocketTimeoutException("Host name resolution timed out: " + _endpoint));
+                    return _reconnectTime;
+                }
+                return _deadline;
+            case STATE_CONNECTING:
+                if(_deadline - now <= 0){
+                    _onOpenFailed(new SocketTimeoutException("Connection timed out: " + _endpoint));
+                    return _reconnectTime;
+                }
+                return _deadline;
+            case STATE_NEGOTIATING:
+                if(_deadline - now <= 0){
+                    if(_writeBuffer.position() > 0){
+                        // Part of the hello is unsent, so the robot would read the
+                        // text frames after a truncated one
+                        _onOpenFailed(new SocketTimeoutException("Protocol negotiation timed out"));
+                        return _reconnectTime;
+                    }
+                    // The old firmware does not answer
+                    _onNegotiated(TextWireCodec.INSTANCE);
+                    return service(now);
+                }
+                return _deadline;
+            case STATE_BOUND:
+                if(!_isStalled){
+                    _flush();
+                }
+                if(_isStalled){
+                    long timeout = _fleet.getWriteTimeout() * 1000000L;
+                    if(now - _stallStartTime >= timeout){
+                        _onLost(new SocketTimeoutException("Write timed out"));
+                        return _reconnectTime;
+                    }
+                    return _stallStartTime + timeout;
+                }
+                return NO_TIMER;
+            default:
+                return NO_TIMER;
+        }
+    }
+
+    /**
+     * Handles the readiness reported by the selector.
+     */
+    void onReady(SelectionKey key){
+
+        try {
+            if(key.isConnectable()){
+                if(_channel.finishConnect()){
+                    _onConnected();
+                }
+                return;
+            }
+            if(key.isReadable()){
+                _receive();
+            }
+            if(_channel != null && key.isWritable()){
+                _isStalled = false;
+                _flush();
+            }
+        }catch(IOException ex){
+            if(_state == STATE_CONNECTING){
+                _onOpenFailed(ex);
+            }else{
+                _onLost(ex);
+            }
+        }
+    }
+
+    private void _open(long now){
+
+        _closeChannel();
+        _fleet.raise(this, _isRecovering
+                ? ConnectionEventArgs.STATE_RECONNECTING
+                : ConnectionEventArgs.STATE_CONNECTING, null, 0);
+
+        if(_endpoint.isUnresolved()){
+            // Looked up again on every attempt, as the address may have changed
+            _resolver = new Resolver(_fleet, _endpoint);
+            _state = STATE_RESOLVING;
+            _deadline = now + _fleet.getConnectTimeout() * 1000000L;
+            _fleet.resolve(_resolver);
+        }else{
+            _connect(_endpoint, now);
+        }
+    }
+
+    private void _connect(InetSocketAddress endpoint, long now){
+
+        try {
+            _channel = SocketChannel.open();
+            _channel.configureBlocking(false);
+            _channel.socket().setTcpNoDelay(true);
+            _key = _fleet.register(_channel, this);
+            _writeBuffer.clear();
+            _partialFrame = null;
+            _isStalled = false;
+            _state = STATE_CONNECTING;
+            if(_channel.connect(endpoint)){
+                _onConnected();
+            }else{
+                _key.interestOps(SelectionKey.OP_CONNECT);
+                _deadline = now + _fleet.getConnectTimeout() * 1000000L;
+            }
+        }catch(IOException ex){
+            _onOpenFailed(ex);
+        }
+    }
+
+    private void _onConnected() throws IOException {
+
+        int protocol = _fleet.getProtocol();
+        if(protocol != CommandWriter.PROTOCOL_AUTO){
+            _onNegotiated(protocol == CommandWriter.PROTOCOL_BINARY
+                    ? BinaryWireCodec.INSTANCE
+                    : TextWireCodec.INSTANCE);
+            return;
+        }
+
+        _state = STATE_NEGOTIATING;
+        _deadline = System.nanoTime() + _fleet.getNegotiationTimeout() * 1000000L;
+        _replyBuffer.clear();
+        _writeBuffer.put(BinaryWireCodec.HELLO);
+        _writeBuffer.flip();
+        _channel.write(_writeBuffer);
+        boolean isWritten = !_writeBuffer.hasRemaining();
+        _writeBuffer.compact();
+        _key.interestOps(isWritten ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void _onNegotiated(WireCodec codec){
+
+        _codec = codec;
+        _state = STATE_BOUND;
+        _deadline = NO_TIMER;
+        _key.interestOps(SelectionKey.OP_READ);
+        _isBound = true;
+
+        long outageMillis = 0;
+        if(_isRecovering){
+            outageMillis = (System.nanoTime() - _outageStartTime) / 1000000L;
+            _isRecovering = false;
+        }
+        _reconnectAttempts = 0;
+        _fleet.raise(this, ConnectionEventArgs.STATE_CONNECTED, null, outageMillis);
+    }
+
+    private void _onOpenFailed(IOException cause){
+
+        _closeChannel();
+        _state = STATE_IDLE;
+        _deadline = NO_TIMER;
+        if(_isRecovering){
+            _scheduleReconnect();
+        }else{
+            _fleet.raise(this, ConnectionEventArgs.STATE_CONNECT_FAILED, cause, 0);
+        }
+    }
+
+    private void _onLost(IOException cause){
+
+        _closeChannel();
+        _state = STATE_IDLE;
+        _isBound = false;
+        _fleet.raise(this, ConnectionEventArgs.STATE_LOST, cause, 0);
+
+        if(_fleet.isAutoReconnect()){
+            _isRecovering = true;
+            _outageStartTime = System.nanoTime();
+            _reconnectAttempts = 0;
+            _scheduleReconnect();
+        }
+    }
+
+    private void _scheduleReconnect(){
+
+        _reconnectTime = System.nanoTime() + _fleet.getReconnectDelay(_reconnectAttempts) * 1000000L;
+    }
+
+    private void _receive() throws IOException {
+
+        if(_state == STATE_NEGOTIATING){
+            if(_channel.read(_replyBuffer) < 0){
+                throw new EOFException("Connection closed by the robot");
+            }
+            if(!_replyBuffer.hasRemaining()){
+                boolean isAccepted = true;
+                for(int i = 0; i < BinaryWireCodec.HELLO_REPLY.length; i++){
+                    isAccepted &= _replyBuffer.get(i) == BinaryWireCodec.HELLO_REPLY[i];
+                }
+                // As the writer: every version understands the frames of the first one
+                int version = _replyBuffer.get(BinaryWireCodec.HELLO_REPLY.length);
+                _onNegotiated(isAccepted && version >= 1 ? BinaryWireCodec.INSTANCE : TextWireCodec.INSTANCE);
+            }
+            return;
+        }
+
+        // Nothing is expected from the robot yet; the bytes are read so its side never
+        // blocks, and to notice when it closes the connection.
+        ByteBuffer buffer = _fleet.getReadBuffer();
+        int count;
+        do {
+            buffer.clear();
+            count = _channel.read(buffer);
+        }while(count > 0);
+        if(count < 0){
+            throw new EOFException("Connection closed by the robot");
+        }
+    }
+
+    /**
+     * Writes queued frames until the queue is empty or the socket does not accept more.
+     */
+    private void _flush(){
+
+        if(_state != STATE_BOUND){
+            // Only the hello is flushed while negotiating
+            if(_writeBuffer.position() > 0){
+                _write();
+            }
+            return;
+        }
+
+        ByteBuffer scratch = _fleet.getScratchBuffer();
+        WireCodec codec = _codec;
+        while(true){
+            // Fill the buffer with as many frames as fit, so they go in one write
+            while(_writeBuffer.hasRemaining()){
+                if(_partialFrame == null){
+                    _partialFrame = _queue.poll();
+                    _partialOffset = 0;
+                    if(_partialFrame == null){
+                        break;
+                    }
+                }
+                byte[] bytes = _partialFrame.getBytes(codec, scratch);
+                int length = Math.min(_writeBuffer.remaining(), bytes.length - _partialOffset);
+                _writeBuffer.put(bytes, _partialOffset, length);
+                _partialOffset += length;
+                if(_partialOffset == bytes.length){
+                    _partialFrame = null;
+                }
+            }
+
+            if(_writeBuffer.position() == 0 || !_write()){
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Whether all the buffered bytes have been written
+     */
+    private boolean _write(){
+
+        try {
+            _writeBuffer.flip();
+            int count = _channel.write(_writeBuffer);
+            boolean isDone = !_writeBuffer.hasRemaining();
+            _writeBuffer.compact();
+
+            if(isDone){
+                if(_isStalled || (_key.interestOps() & SelectionKey.OP_WRITE) != 0){
+                    _isStalled = false;
+                    _key.interestOps(SelectionKey.OP_READ);
+                }
+            }else if(!_isStalled || count > 0){
+                // The deadline is counted from the last progress
+                _isStalled = true;
+                _stallStartTime = System.nanoTime();
+                _key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+
+            return isDone;
+        }catch(IOException ex){
+            _onLost(ex);
+            return false;
+        }
+    }
+
+    private void _discardQueue(){
+
+        while(_queue.poll() != null){
+            // Discarded
+        }
+        _partialFrame = null;
+    }
+
+    private void _close(){
+
+        boolean wasBound = _isBound;
+        _closeChannel();
+        _resolver = null;
+        _isBound = false;
+        _state = STATE_CLOSED;
+        _reconnectTime = NO_TIMER;
+        _discardQueue();
+        if(wasBound){
+            _fleet.raise(this, ConnectionEventArgs.STATE_DISCONNECTED, null, 0);
+        }
+    }
+
+    private void _closeChannel(){
+
+        if(_channel != null){
+            try {
+                _channel.close();
+            }catch(IOException ex){
+                // Nothing to do, the channel is discarded anyway
+            }
+            _channel = null;
+            _key = null;
+        }
+        _isStalled = false;
+    }
+}
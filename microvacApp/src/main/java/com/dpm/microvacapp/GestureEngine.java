@@ -0,0 +1,219 @@
+package com.dpm.microvacapp;
+
+/**
+ * Turns the gravity samples of the device into the motion status of gesture driving,
+ * with no dependency on Android, so it can be tuned and checked on any JVM.
+ *
+ * The samples go through a low-pass filter first, whose time constant is counted from
+ * the sample times, so the result does not depend on the sensor rate. The tilt angles of
+ * the filtered gravity are then classified as in the original driver: tilting beyond the
+ * trigger angle starts a motion, forwards and backwards taking precedence over the
+ * turns, and the robot stops once both angles are within the release angle.
+ *
+ * On top of that, a motion is held while its own angle stays beyond the release angle,
+ * so the noise around the trigger angle does not switch between motions either.
+ *
+ * It is not thread safe; it is meant to be fed from the sensor thread.
+ */
+public class GestureEngine {
+
+    public final static int NO_TRANSITION = MotionStateMachine.NO_TRANSITION;
+
+    public final static double DEFAULT_TRIGGER_ANGLE = Math.toRadians(45);
+    public final static double DEFAULT_RELEASE_ANGLE = Math.toRadians(30);
+    public final static long DEFAULT_FILTER_TIME_CONSTANT = 80;
+
+    private double _triggerAngle = DEFAULT_TRIGGER_ANGLE;
+    private double _releaseAngle = DEFAULT_RELEASE_ANGLE;
+    private long _timeConstantNanos = DEFAULT_FILTER_TIME_CONSTANT * 1000000L;
+
+    private final float[] _gravity = new float[3];
+    private final double[] _angles = new double[2];
+    private boolean _hasSample = false;
+    private long _lastTime;
+    private int _status = MotionStateMachine.STATUS_STOP;
+    private long _transitionCount = 0;
+
+    /**
+     * @param triggerAngle Tilt which starts a motion, in radians
+     * @param releaseAngle Tilt below which a motion ends, in radians. The difference with
+     *                     the trigger angle is the hysteresis.
+     */
+    public void setAngles(double triggerAngle, double releaseAngle){
+
+        if(releaseAngle > triggerAngle){
+            throw new IllegalArgumentException("The release angle cannot be greater than the trigger angle");
+        }
+
+        _triggerAngle = triggerAngle;
+        _releaseAngle = releaseAngle;
+    }
+
+    public double getTriggerAngle(){
+        return _triggerAngle;
+    }
+
+    public double getReleaseAngle(){
+        return _releaseAngle;
+    }
+
+    /**
+     * @param timeConstantMillis Time constant of the low-pass filter, 0 not to filter
+     */
+    public void setFilterTimeConstant(long timeConstantMillis){
+        _timeConstantNanos = timeConstantMillis * 1000000L;
+    }
+
+    public long getFilterTimeConstant(){
+        return _timeConstantNanos / 1000000L;
+    }
+
+    /**
+     * Sets the status and restarts the filter, as when gesture driving starts.
+     *
+     * @param status One of the MotionStateMachine.STATUS_* constants
+     */
+    public void reset(int status){
+
+        _status = status;
+        _hasSample = false;
+    }
+
+    /**
+     * @param x Gravity on the x axis of the device
+     * @param y Gravity on the y axis
+     * @param z Gravity on the z axis
+     * @param nanoTime Time of the sample, in ns
+     * @return The new status if it has changed, or {@link #NO_TRANSITION}
+     */
+    public int update(float x, float y, float z, long nanoTime){
+
+        float[] gravity = _gravity;
+        if(!_hasSample || _timeConstantNanos <= 0){
+            gravity[0] = x;
+            gravity[1] = y;
+            gravity[2] = z;
+            _hasSample = true;
+        }else{
+            long elapsed = Math.max(0, nanoTime - _lastTime);
+            float alpha = (float)elapsed / (_timeConstantNanos + elapsed);
+            gravity[0] += alpha * (x - gravity[0]);
+            gravity[1] += alpha * (y - gravity[1]);
+            gravity[2] += alpha * (z - gravity[2]);
+        }
+        _lastTime = nanoTime;
+
+        TiltAngles.compute(gravity, _angles);
+        int status = _classify(_angles[TiltAngles.PITCH], _angles[TiltAngles.ROLL]);
+        if(status == _status){
+            return NO_TRANSITION;
+        }
+
+        _status = status;
+        _transitionCount++;
+
+        return status;
+    }
+
+    /**
+     * Runs a series of samples, such as a recording, without allocating.
+     *
+     * @param samples Gravity samples, x, y and z one after the other
+     * @param nanoTimes Time of each sample
+     * @param count Number of samples
+     * @param transitionIndexes Receives the index of the sample of each transition, or
+     *                          null if not needed
+     * @param statuses Receives the status after each transition, or null. Transitions
+     *                 beyond the length of the arrays are counted but not written.
+     * @return Number of transitions
+     */
+    public int process(float[] samples, long[] nanoTimes, int count, int[] transitionIndexes, int[] statuses){
+
+        int transitions = 0;
+        for(int i = 0; i < count; i++){
+            int status = update(samples[3 * i], samples[3 * i + 1], samples[3 * i + 2], nanoTimes[i]);
+            if(status != NO_TRANSITION){
+                if(transitionIndexes != null && transitions < transitionIndexes.length){
+                    transitionIndexes[transitions] = i;
+                }
+                if(statuses != null && transitions < statuses.length){
+                    statuses[transitions] = status;
+                }
+                transitions++;
+            }
+        }
+
+        return transitions;
+    }
+
+    /**
+     * @return Current status, one of the MotionStateMachine.STATUS_* constants
+     */
+    public int getStatus(){
+        return _status;
+    }
+
+    /**
+     * @return Angle driving forwards and backwards of the filtered gravity, in radians
+     */
+    public double getPitch(){
+        return _angles[TiltAngles.PITCH];
+    }
+
+    /**
+     * @return Angle driving the turns of the filtered gravity, in radians
+     */
+    public double getRoll(){
+        return _angles[TiltAngles.ROLL];
+    }
+
+    /**
+     * @return Number of transitions since created
+     */
+    public long getTransitionCount(){
+        return _transitionCount;
+    }
+
+    private int _classify(double pitch, double roll){
+
+        // The current motion is held while its angle is beyond the release angle
+        switch(_status){
+            case MotionStateMachine.STATUS_BACKWARDS:
+                if(pitch > _releaseAngle){
+                    return _status;
+                }
+                break;
+            case MotionStateMachine.STATUS_FORWARDS:
+                if(pitch < -_releaseAngle){
+                    return _status;
+                }
+                break;
+            case MotionStateMachine.STATUS_RIGHT:
+                if(roll > _releaseAngle){
+                    return _status;
+                }
+                break;
+            case MotionStateMachine.STATUS_LEFT:
+                if(roll < -_releaseAngle){
+                    return _status;
+                }
+                break;
+            default:
+                break;
+        }
+
+        if(pitch > _triggerAngle){
+            return MotionStateMachine.STATUS_BACKWARDS;
+        }else if(pitch < -_triggerAngle){
+            return MotionStateMachine.STATUS_FORWARDS;
+        }else if(roll > _triggerAngle){
+            return MotionStateMachine.STATUS_RIGHT;
+        }else if(roll < -_triggerAngle){
+            return MotionStateMachine.STATUS_LEFT;
+        }else if(Math.abs(pitch) < _releaseAngle && Math.abs(roll) < _releaseAngle){
+            return MotionStateMachine.STATUS_STOP;
+        }
+
+        return _status;
+    }
+}
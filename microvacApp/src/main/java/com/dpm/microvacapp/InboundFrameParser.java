@@ -0,0 +1,136 @@
+package com.dpm.microvacapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser of the frames sent by the robot in the binary protocol, and of the
+ * datagrams of the UDP channel. Frames may be split across reads; the parser keeps its
+ * state between calls and does not allocate.
+ */
+public class InboundFrameParser {
+
+    /**
+     * Receives the parsed frames.
+     */
+    public interface Listener {
+
+        /**
+         * @param opcode Opcode of the frame
+         * @param sequence Sequence number of the frame
+         * @param payload Payload, or 0 if the opcode has none
+         */
+        void onFrame(byte opcode, int sequence, int payload);
+    }
+
+    private final static int STATE_OPCODE = 0;
+    private final static int STATE_SEQUENCE_HIGH = 1;
+    private final static int STATE_SEQUENCE_LOW = 2;
+    private final static int STATE_PAYLOAD = 3;
+    private final static int STATE_SKIP = 4;
+
+    private final Listener _listener;
+    private int _state = STATE_OPCODE;
+    private byte _opcode;
+    private int _sequence;
+    private int _payload;
+    private int _payloadShift;
+
+    public InboundFrameParser(Listener listener){
+
+        _listener = listener;
+    }
+
+    /**
+     * Forgets any partial frame, as needed for a new connection.
+     */
+    public void reset(){
+
+        _state = STATE_OPCODE;
+    }
+
+    /**
+     * Parses the bytes of a stream connection.
+     *
+     * @param buffer Received bytes, from its position to its limit. They are all consumed.
+     */
+    public void parseStream(ByteBuffer buffer){
+
+        while(buffer.hasRemaining()){
+            int value = buffer.get() & 0xff;
+            switch(_state){
+                case STATE_OPCODE:
+                    _opcode = (byte)value;
+                    _state = STATE_SEQUENCE_HIGH;
+                    break;
+                case STATE_SEQUENCE_HIGH:
+                    _sequence = value << 8;
+                    _state = STATE_SEQUENCE_LOW;
+                    break;
+                case STATE_SEQUENCE_LOW:
+                    _sequence |= value;
+                    if((_opcode & BinaryWireCodec.PAYLOAD_FLAG) == 0){
+                        _complete(0);
+                    }else{
+                        _payload = 0;
+                        _payloadShift = 0;
+                        _state = STATE_PAYLOAD;
+                    }
+                    break;
+                case STATE_PAYLOAD:
+                    _payload |= (value & 0x7F) << _payloadShift;
+                    _payloadShift += 7;
+                    if((value & 0x80) == 0){
+                        if(_opcode == BinaryWireCodec.OP_RAW && _payload > 0){
+                            // Raw frames carry their length; the bytes are skipped
+                            _state = STATE_SKIP;
+                        }else{
+                            _complete(_payload);
+                        }
+                    }
+                    break;
+                default:
+                    if(--_payload == 0){
+                        _complete(0);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Parses a whole datagram of the UDP channel, see {@link DatagramWireCodec}.
+     *
+     * @param buffer The datagram, from its position to its limit
+     */
+    public void parseDatagram(ByteBuffer buffer){
+
+        if(buffer.remaining() < DatagramWireCodec.HEADER_LENGTH + 1){
+            return;
+        }
+
+        int sequence = buffer.getInt();
+        buffer.getInt();
+        byte opcode = buffer.get();
+        int payload = 0;
+        if((opcode & BinaryWireCodec.PAYLOAD_FLAG) != 0){
+            int shift = 0;
+            int value;
+            do {
+                if(!buffer.hasRemaining()){
+                    return;
+                }
+                value = buffer.get();
+                payload |= (value & 0x7F) << shift;
+                shift += 7;
+            }while((value & 0x80) != 0);
+        }
+
+        _listener.onFrame(opcode, sequence, payload);
+    }
+
+    private void _complete(int payload){
+
+        _state = STATE_OPCODE;
+        _listener.onFrame(_opcode, _sequence, payload);
+    }
+}
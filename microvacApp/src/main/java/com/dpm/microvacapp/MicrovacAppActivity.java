@@ -8,6 +8,9 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -17,6 +20,10 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import com.dpm.framework.EventDispatcher;
+
+import java.io.File;
+import java.io.IOException;
 
 public class MicrovacAppActivity extends Activity implements SensorEventListener{
 
@@ -26,21 +33,29 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
 
     private final static String KEY_MOTION_STATUS = "motion_status";
     private final static String KEY_ADDRESS = "address";
+    private final static String KEY_DATAGRAM_MODE = "datagram_mode";
+    private final static String KEY_PROPORTIONAL_DRIVING = "proportional_driving";
+
+    private final static long HEARTBEAT_INTERVAL = 1000;
 
-    private final static int MOTION_STATUS_STOP = 0;
-    private final static int MOTION_STATUS_FORWARDS = 1;
-    private final static int MOTION_STATUS_BACKWARDS = 2;
-    private final static int MOTION_STATUS_LEFT = 3;
-    private final static int MOTION_STATUS_RIGHT = 4;
+    private final static String SESSIONS_DIRECTORY = "sessions";
 
-    private int _motionStatus = MOTION_STATUS_STOP;
+    private final static String SENSOR_THREAD_NAME = "GestureDriver";
 
     private RobotCommander _robotCommander;
+    private MotionStateMachine _motionState;
+    private ProportionalDriver _proportionalDriver;
+    private volatile boolean _isProportionalDriving;
+    private SessionRecorder _sessionRecorder;
     private SensorManager _sensorManager;
     private Sensor _sensor;
 
-    private final static double TRIGGER_ANGLE = Math.toRadians(45);
-    private final static double STOP_ANGLE = Math.toRadians(30);
+    // The sensor events are handled on their own thread, so they never wait for the UI
+    // nor delay its frames. Its state is allocated once.
+    private HandlerThread _sensorThread;
+    private Handler _sensorHandler;
+    private final GestureEngine _gestureEngine = new GestureEngine();
+    private final AdaptiveSamplingController _samplingController = new AdaptiveSamplingController();
 
     private View[] _driveButtons;
 
@@ -57,7 +72,11 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
         _sensor = _sensorManager != null
                 ? _sensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY)
                 : null;
-        if(_sensor == null){
+        if(_sensor != null){
+            _sensorThread = new HandlerThread(SENSOR_THREAD_NAME, Process.THREAD_PRIORITY_DISPLAY);
+            _sensorThread.start();
+            _sensorHandler = new Handler(_sensorThread.getLooper());
+        }else{
             Log.i(LOG_TAG, "No sensor found.");
             Toast.makeText(this, "No sensor", Toast.LENGTH_SHORT).show();
 
@@ -67,10 +86,29 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
         }
 
         _robotCommander = new RobotCommander();
+        _robotCommander.setDatagramMode(getPreferences(MODE_PRIVATE).getBoolean(KEY_DATAGRAM_MODE, false));
+        _robotCommander.setHeartbeatInterval(HEARTBEAT_INTERVAL);
+        _motionState = new MotionStateMachine(_robotCommander);
+        _proportionalDriver = new ProportionalDriver(_robotCommander);
+        _isProportionalDriving = getPreferences(MODE_PRIVATE).getBoolean(KEY_PROPORTIONAL_DRIVING, false);
+        // Its files are created on its own thread
+        _sessionRecorder = new SessionRecorder(new File(getFilesDir(), SESSIONS_DIRECTORY));
+        _robotCommander.setSessionRecorder(_sessionRecorder);
+        _robotCommander.connectionChanged.add(new EventDispatcher<ConnectionEventArgs>() {
+            @Override
+            public void dispatch(Object o, final ConnectionEventArgs args) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        _onConnectionChanged(args);
+                    }
+                });
+            }
+        });
 
         TextView ipEditText = (TextView)findViewById(R.id.ipEditText);
         if(savedInstanceState != null) {
-            _motionStatus = savedInstanceState.getInt(KEY_MOTION_STATUS, MOTION_STATUS_STOP);
+            _motionState.reset(savedInstanceState.getInt(KEY_MOTION_STATUS, MotionStateMachine.STATUS_STOP));
             ipEditText.setText(savedInstanceState.getCharSequence(KEY_ADDRESS));
         }else {
             ipEditText.setText(getPreferences(MODE_PRIVATE).getString(KEY_ADDRESS, ""));
@@ -103,19 +141,56 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
 
         if(_sensor != null) {
             _hideDriveButtons();
-            _sensorManager.registerListener(this, _sensor, SensorManager.SENSOR_DELAY_UI);
+            // Registered on the sensor thread, which also changes the rate later on
+            _sensorHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    _gestureEngine.reset(_motionState.getStatus());
+                    _proportionalDriver.reset();
+                    int rate = _samplingController.start(System.nanoTime());
+                    _registerSensor(rate);
+                }
+            });
         }
     }
 
     private void _stopGestureDriverIfExists(){
 
         if(_sensor != null){
-            _sensorManager.unregisterListener(this, _sensor);
+            _sensorHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    _sensorManager.unregisterListener(MicrovacAppActivity.this, _sensor);
+                    // After the last sensor event: the proportional driver sends its speeds
+                    // without the state machine, which has to send the STOP anyway
+                    _proportionalDriver.reset();
+                    _motionState.stop();
+                    _samplingController.stop(System.nanoTime());
+                    StringBuilder stats = new StringBuilder("Sensor sampling: ");
+                    try {
+                        _samplingController.exportStats(stats);
+                    }catch(IOException ex){
+                        // Not thrown by a StringBuilder
+                    }
+                    Log.i(LOG_TAG, stats.toString());
+                }
+            });
         }
 
         _showDriveButtons();
     }
 
+    /**
+     * Runs on the sensor thread.
+     *
+     * @param rate One of the AdaptiveSamplingController.RATE_* constants
+     */
+    private void _registerSensor(int rate){
+
+        _sensorManager.unregisterListener(this, _sensor);
+        _sensorManager.registerListener(this, _sensor, _samplingController.getPeriodMicros(rate), _sensorHandler);
+    }
+
     private void _tryConnect(){
 
         String address = ((TextView)findViewById(R.id.ipEditText)).getText().toString().trim();
@@ -131,10 +206,48 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
         }
     }
 
+    private void _onConnectionChanged(ConnectionEventArgs args){
+
+        int status;
+        switch(args.getState()){
+            case ConnectionEventArgs.STATE_CONNECTING:
+                status = R.string.connection_status_connecting;
+                break;
+            case ConnectionEventArgs.STATE_CONNECTED:
+                status = R.string.connection_status_connected;
+                break;
+            case ConnectionEventArgs.STATE_CONNECT_FAILED:
+                status = R.string.connection_status_failed;
+                break;
+            case ConnectionEventArgs.STATE_LOST:
+                status = R.string.connection_status_lost;
+                break;
+            case ConnectionEventArgs.STATE_RECONNECTING:
+                status = R.string.connection_status_reconnecting;
+                break;
+            default:
+                status = R.string.connection_status_disconnected;
+                break;
+        }
+        ((TextView)findViewById(R.id.connection_status_text)).setText(getString(status));
+
+        if(args.getState() == ConnectionEventArgs.STATE_CONNECTED && args.getOutageMillis() > 0){
+            Log.i(LOG_TAG, "Connection recovered in " + args.getOutageMillis() + " ms");
+        }else if(args.getState() == ConnectionEventArgs.STATE_CONNECT_FAILED){
+            _stopGestureDriverIfExists();
+            ((ToggleButton)findViewById(R.id.connect_toggle)).setChecked(false);
+            findViewById(R.id.ipEditText).setEnabled(true);
+            Toast.makeText(this, getString(status), Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private void _disconnect(){
 
         _stopGestureDriverIfExists();
+        // Queued before the close, so it is written before the connection goes down
+        _motionState.stop();
         _robotCommander.close();
+        Log.i(LOG_TAG, "Command latency: " + _robotCommander.getLatencyStats().snapshotAndReset());
     }
 
     @Override
@@ -142,7 +255,7 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
         super.onSaveInstanceState(outState);
         Log.d(LOG_TAG, "onSaveInstanceState()");
         if(outState != null) {
-            outState.putInt(KEY_MOTION_STATUS, _motionStatus);
+            outState.putInt(KEY_MOTION_STATUS, _motionState.getStatus());
             outState.putCharSequence(KEY_ADDRESS, ((TextView)findViewById(R.id.ipEditText))
                     .getText());
         }
@@ -153,7 +266,7 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
         super.onRestoreInstanceState(savedInstanceState);
         Log.d(LOG_TAG, "onRestoreInstanceState()");
         if(savedInstanceState != null) {
-            _motionStatus = savedInstanceState.getInt(KEY_MOTION_STATUS, MOTION_STATUS_STOP);
+            _motionState.reset(savedInstanceState.getInt(KEY_MOTION_STATUS, MotionStateMachine.STATUS_STOP));
             ((TextView)findViewById(R.id.ipEditText))
                     .setText(savedInstanceState.getCharSequence(KEY_ADDRESS));
         }
@@ -176,46 +289,40 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
     @Override
     protected void onDestroy(){
         Log.d(LOG_TAG, "onDestroy()");
+        if(_sensorThread != null){
+            _sensorManager.unregisterListener(this);
+            _sensorThread.quit();
+        }
+        _robotCommander.shutdown();
+        if(_sessionRecorder != null){
+            _sessionRecorder.close();
+            if(_sessionRecorder.getFailure() != null){
+                Log.w(LOG_TAG, "Session not recorded", _sessionRecorder.getFailure());
+            }
+        }
         super.onDestroy();
     }
 
     private void _sendStop(){
-        if(_motionStatus != MOTION_STATUS_STOP)
-        {
-            _robotCommander.sendStop();
-            _motionStatus = MOTION_STATUS_STOP;
-        }
+        // Sent even if the state machine is already stopped, as the proportional
+        // driver may have left the robot moving
+        _motionState.stop();
     }
 
     private void _sendForwards(){
-        if(_motionStatus != MOTION_STATUS_FORWARDS)
-        {
-            _robotCommander.sendForwards();
-            _motionStatus = MOTION_STATUS_FORWARDS;
-        }
+        _motionState.moveTo(MotionStateMachine.STATUS_FORWARDS);
     }
 
     private void _sendBackwards(){
-        if(_motionStatus != MOTION_STATUS_BACKWARDS)
-        {
-            _robotCommander.sendBackwards();
-            _motionStatus = MOTION_STATUS_BACKWARDS;
-        }
+        _motionState.moveTo(MotionStateMachine.STATUS_BACKWARDS);
     }
 
     private void _sendTurnRight(){
-        if(_motionStatus != MOTION_STATUS_RIGHT)
-        {
-            _robotCommander.sendTurnRight();
-            _motionStatus = MOTION_STATUS_RIGHT;
-        }
+        _motionState.moveTo(MotionStateMachine.STATUS_RIGHT);
     }
 
     private void _sendTurnLeft(){
-        if(_motionStatus != MOTION_STATUS_LEFT) {
-            _robotCommander.sendTurnLeft();
-            _motionStatus = MOTION_STATUS_LEFT;
-        }
+        _motionState.moveTo(MotionStateMachine.STATUS_LEFT);
     }
 
     public void onForwardsButtonClick(View view)
@@ -249,7 +356,6 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
         if(button.isChecked())
         {
             _tryConnect();
-            //TODO: In case of the connection is not possible, the toggle button must be shown as off.
             findViewById(R.id.ipEditText).setEnabled(false);
 
         }else
@@ -286,27 +392,40 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
         }
     }
 
+    /**
+     * Runs on the sensor thread.
+     */
     @Override
     public void onSensorChanged(SensorEvent sensorEvent)
     {
-        double[] angles = new double[2];
-
-        angles[0] = Math.atan2(sensorEvent.values[1], sensorEvent.values[2]);
-        angles[1] = Math.atan2(-sensorEvent.values[0],
-                Math.sqrt(sensorEvent.values[1] * sensorEvent.values[1]
-                        + sensorEvent.values[2] * sensorEvent.values[2]));
-
-        if(angles[0] > TRIGGER_ANGLE){
-            _sendBackwards();
-        }else if(angles[0] < -TRIGGER_ANGLE){
-            _sendForwards();
-        }else if(angles[1] > TRIGGER_ANGLE){
-            _sendTurnRight();
-        }else if(angles[1] < -TRIGGER_ANGLE){
-            Log.d(LOG_TAG, "TLE");
-            _sendTurnLeft();
-        }else if(Math.abs(angles[0]) < STOP_ANGLE && Math.abs(angles[1]) < STOP_ANGLE){
-            _sendStop();
+        // The latency of the commands is measured from here: the clock of the sensor
+        // timestamps is not the same on every device
+        long originTime = System.nanoTime();
+        float[] values = sensorEvent.values;
+        int status = _gestureEngine.update(values[0], values[1], values[2], sensorEvent.timestamp);
+
+        boolean isMoving = _isProportionalDriving
+                ? _proportionalDriver.getLeftSpeed() != 0 || _proportionalDriver.getRightSpeed() != 0
+                : _gestureEngine.getStatus() != MotionStateMachine.STATUS_STOP;
+        int rate = _samplingController.update(_gestureEngine.getPitch(), _gestureEngine.getRoll(), isMoving,
+                originTime);
+        if(rate != AdaptiveSamplingController.NO_CHANGE){
+            _registerSensor(rate);
+        }
+
+        if(_isProportionalDriving){
+            _proportionalDriver.update(_gestureEngine.getPitch(), _gestureEngine.getRoll(),
+                    originTime);
+            return;
+        }
+
+        if(status == GestureEngine.NO_TRANSITION){
+            return;
+        }
+        int previousStatus = _motionState.moveTo(status, originTime);
+        if(previousStatus != MotionStateMachine.NO_TRANSITION && _sessionRecorder != null){
+            _sessionRecorder.recordTransition(previousStatus, status,
+                    (float)_gestureEngine.getPitch(), (float)_gestureEngine.getRoll());
         }
     }
 
@@ -320,6 +439,8 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
     public boolean onCreateOptionsMenu(Menu menu) {
 
         getMenuInflater().inflate(R.menu.main_menu, menu);
+        menu.findItem(R.id.main_menu_datagram_mode).setChecked(_robotCommander.isDatagramMode());
+        menu.findItem(R.id.main_menu_proportional_driving).setChecked(_isProportionalDriving);
 
         return true;
     }
@@ -329,6 +450,26 @@ public class MicrovacAppActivity extends Activity implements SensorEventListener
 
         if (item.getItemId() == R.id.main_menu_about) {
             startActivity(new Intent(this, AboutActivity.class));
+        }else if (item.getItemId() == R.id.main_menu_datagram_mode) {
+            boolean isDatagramMode = !item.isChecked();
+            item.setChecked(isDatagramMode);
+            _robotCommander.setDatagramMode(isDatagramMode);
+            getPreferences(MODE_PRIVATE).edit().putBoolean(KEY_DATAGRAM_MODE, isDatagramMode).apply();
+        }else if (item.getItemId() == R.id.main_menu_proportional_driving) {
+            _isProportionalDriving = !item.isChecked();
+            item.setChecked(_isProportionalDriving);
+            if(_sensorHandler != null){
+                _sensorHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        _gestureEngine.reset(MotionStateMachine.STATUS_STOP);
+                        _proportionalDriver.reset();
+                    }
+                });
+            }
+            // In one step, so a transition from the sensor thread cannot come in between
+            _motionState.stop();
+            getPreferences(MODE_PRIVATE).edit().putBoolean(KEY_PROPORTIONAL_DRIVING, _isProportionalDriving).apply();
         }else
         {
                 return super.onOptionsItemSelected(item);
@@ -0,0 +1,106 @@
+package com.dpm.microvacapp;
+
+/**
+ * Motion status of the robot as driven by the buttons or the gestures, shared by the UI
+ * and the sensor threads.
+ *
+ * The status changes and its command is sent in a single step, under a short lock, so
+ * the commands are queued in the same order as the transitions, and the last command
+ * queued is always that of the current status. Repeating the current status sends
+ * nothing. Sending only queues the command, so the lock is held briefly and allocates
+ * nothing.
+ */
+public class MotionStateMachine {
+
+    public final static int STATUS_STOP = 0;
+    public final static int STATUS_FORWARDS = 1;
+    public final static int STATUS_BACKWARDS = 2;
+    public final static int STATUS_LEFT = 3;
+    public final static int STATUS_RIGHT = 4;
+
+    /**
+     * Returned by {@link #moveTo(int)} when the status was already the requested one.
+     */
+    public final static int NO_TRANSITION = -1;
+
+    private final static Command[] COMMANDS = {
+            Command.STOP, Command.FORWARDS, Command.BACKWARDS, Command.TURN_LEFT, Command.TURN_RIGHT
+    };
+
+    private final CommandSink _sink;
+    private final Object _lock = new Object();
+    private volatile int _status = STATUS_STOP;
+
+    /**
+     * @param sink Where the commands of the transitions are sent
+     */
+    public MotionStateMachine(CommandSink sink){
+
+        _sink = sink;
+    }
+
+    /**
+     * Changes the status, sending its command, unless it is the current one.
+     *
+     * @param status One of the STATUS_* constants
+     * @return The previous status, or {@link #NO_TRANSITION}
+     */
+    public int moveTo(int status){
+
+        return moveTo(status, System.nanoTime());
+    }
+
+    /**
+     * As {@link #moveTo(int)}, for an input which happened earlier.
+     *
+     * @param status One of the STATUS_* constants
+     * @param originTime System.nanoTime() of the input which requested the status
+     * @return The previous status, or {@link #NO_TRANSITION}
+     */
+    public int moveTo(int status, long originTime){
+
+        synchronized (_lock){
+            int previous = _status;
+            if(previous == status){
+                return NO_TRANSITION;
+            }
+            _status = status;
+            _sink.send(COMMANDS[status], originTime);
+
+            return previous;
+        }
+    }
+
+    /**
+     * Sends a stop even if the status already is {@link #STATUS_STOP}, as when the robot
+     * may be moving by other means.
+     *
+     * @return The previous status
+     */
+    public int stop(){
+
+        synchronized (_lock){
+            int previous = _status;
+            _status = STATUS_STOP;
+            _sink.send(Command.STOP, System.nanoTime());
+
+            return previous;
+        }
+    }
+
+    /**
+     * Sets the status without sending anything, as when it is restored.
+     *
+     * @param status One of the STATUS_* constants
+     */
+    public void reset(int status){
+
+        synchronized (_lock){
+            _status = status;
+        }
+    }
+
+    public int getStatus(){
+        return _status;
+    }
+}
@@ -0,0 +1,178 @@
+package com.dpm.microvacapp;
+
+/**
+ * Gesture driving with continuous control: the tilt of the device is mapped to the speed
+ * of each wheel, instead of to the five fixed motions.
+ *
+ * Tilting forwards or backwards sets the common speed and tilting sideways the
+ * difference between the wheels, both growing from zero at the dead zone angle to full
+ * at the full speed angle.
+ *
+ * The sensor reports far more often than the speeds need to change, so a new speed is
+ * sent only when a wheel has changed by the deadband or more since the last one sent,
+ * and not more often than the maximum rate. Stopping is exempt from both, so the robot
+ * always stops as soon as the device is level.
+ *
+ * It is meant to be fed from a single thread, such as the sensor listener.
+ */
+public class ProportionalDriver {
+
+    public final static double DEFAULT_DEAD_ZONE_ANGLE = Math.toRadians(10);
+    public final static double DEFAULT_FULL_SPEED_ANGLE = Math.toRadians(45);
+    public final static int DEFAULT_DEADBAND = 5;
+    public final static int DEFAULT_MAX_RATE = 20;
+
+    private final CommandSink _sink;
+    private double _deadZoneAngle = DEFAULT_DEAD_ZONE_ANGLE;
+    private double _fullSpeedAngle = DEFAULT_FULL_SPEED_ANGLE;
+    private int _deadband = DEFAULT_DEADBAND;
+    private long _minIntervalNanos = 1000000000L / DEFAULT_MAX_RATE;
+
+    private boolean _hasSent = false;
+    private int _leftSpeed = 0;
+    private int _rightSpeed = 0;
+    private long _lastSendTime;
+    private long _sentCount = 0;
+    private long _suppressedCount = 0;
+
+    /**
+     * @param sink Where the speeds are sent, such as the robot commander
+     */
+    public ProportionalDriver(CommandSink sink){
+
+        _sink = sink;
+    }
+
+    /**
+     * @param deadZoneAngle Tilt below which a wheel does not move, in radians
+     * @param fullSpeedAngle Tilt from which the speed is full, in radians
+     */
+    public void setAngles(double deadZoneAngle, double fullSpeedAngle){
+
+        if(fullSpeedAngle <= deadZoneAngle){
+            throw new IllegalArgumentException("The full speed angle must be greater than the dead zone");
+        }
+
+        _deadZoneAngle = deadZoneAngle;
+        _fullSpeedAngle = fullSpeedAngle;
+    }
+
+    /**
+     * @param deadband Smallest change of a wheel speed which is sent
+     */
+    public void setDeadband(int deadband){
+        _deadband = deadband;
+    }
+
+    public int getDeadband(){
+        return _deadband;
+    }
+
+    /**
+     * @param commandsPerSecond Maximum rate of speed commands
+     */
+    public void setMaxRate(int commandsPerSecond){
+        _minIntervalNanos = 1000000000L / commandsPerSecond;
+    }
+
+    public int getMaxRate(){
+        return (int)(1000000000L / _minIntervalNanos);
+    }
+
+    /**
+     * Forgets the last speed sent, so the next update sends its speed anyway. To be
+     * called when gesture driving starts.
+     */
+    public void reset(){
+
+        _hasSent = false;
+    }
+
+    /**
+     * Sends the speed for the current tilt, if it has changed enough.
+     *
+     * @param pitch Tilt forwards (negative) or backwards (positive), in radians
+     * @param roll Tilt to the left (negative) or to the right (positive), in radians
+     * @param nanoTime Time of the sample, as System.nanoTime(). It is also the origin of
+     *                 the command sent, to measure its latency.
+     * @return true if a command has been sent
+     */
+    public boolean update(double pitch, double roll, long nanoTime){
+
+        double throttle = -_scale(pitch);
+        double turn = _scale(roll);
+        int left = _toSpeed(throttle + turn);
+        int right = _toSpeed(throttle - turn);
+
+        boolean isStop = left == 0 && right == 0;
+        if(_hasSent){
+            if(left == _leftSpeed && right == _rightSpeed){
+                return false;
+            }
+            if(!isStop && (Math.abs(left - _leftSpeed) < _deadband && Math.abs(right - _rightSpeed) < _deadband
+                    || nanoTime - _lastSendTime < _minIntervalNanos)){
+                _suppressedCount++;
+                return false;
+            }
+        }
+
+        if(!_sink.send(isStop ? Command.STOP : Command.speed(left, right), nanoTime)){
+            // Tried again on the next sample
+            return false;
+        }
+        _hasSent = true;
+        _leftSpeed = left;
+        _rightSpeed = right;
+        _lastSendTime = nanoTime;
+        _sentCount++;
+
+        return true;
+    }
+
+    /**
+     * @return Speed of the left wheel last sent
+     */
+    public int getLeftSpeed(){
+        return _leftSpeed;
+    }
+
+    /**
+     * @return Speed of the right wheel last sent
+     */
+    public int getRightSpeed(){
+        return _rightSpeed;
+    }
+
+    /**
+     * @return Number of commands sent
+     */
+    public long getSentCount(){
+        return _sentCount;
+    }
+
+    /**
+     * @return Number of speed changes not sent, by the deadband or the maximum rate
+     */
+    public long getSuppressedCount(){
+        return _suppressedCount;
+    }
+
+    /**
+     * @return The angle mapped to [-1, 1], with the dead zone
+     */
+    private double _scale(double angle){
+
+        double magnitude = Math.abs(angle);
+        if(magnitude <= _deadZoneAngle){
+            return 0;
+        }
+
+        double scaled = Math.min(1, (magnitude - _deadZoneAngle) / (_fullSpeedAngle - _deadZoneAngle));
+        return angle < 0 ? -scaled : scaled;
+    }
+
+    private static int _toSpeed(double value){
+
+        return (int)Math.round(Math.max(-1, Math.min(1, value)) * Command.MAX_SPEED);
+    }
+}
@@ -0,0 +1,107 @@
+package com.dpm.microvacapp;
+
+import com.dpm.framework.LatencyHistogram;
+
+import java.io.IOException;
+
+/**
+ * Outcome of replaying a session: throughput, and how late each command was sent with
+ * respect to its schedule.
+ */
+public class ReplayReport {
+
+    private final Command[] _commands;
+    private final long[] _scheduledNanos;
+    private final long[] _driftNanos;
+    private final boolean[] _isRejected;
+    private final LatencyHistogram _driftHistogram;
+    private final long _elapsedNanos;
+    private final double _speed;
+
+    ReplayReport(Command[] commands, long[] scheduledNanos, long[] driftNanos, boolean[] isRejected,
+                 LatencyHistogram driftHistogram, long elapsedNanos, double speed){
+
+        _commands = commands;
+        _scheduledNanos = scheduledNanos;
+        _driftNanos = driftNanos;
+        _isRejected = isRejected;
+        _driftHistogram = driftHistogram;
+        _elapsedNanos = elapsedNanos;
+        _speed = speed;
+    }
+
+    public int getCommandCount(){
+        return _commands.length;
+    }
+
+    /**
+     * @return Number of commands the target rejected
+     */
+    public int getRejectedCount(){
+
+        int count = 0;
+        for(boolean isRejected: _isRejected){
+            if(isRejected){
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    public long getElapsedMillis(){
+        return _elapsedNanos / 1000000L;
+    }
+
+    /**
+     * @return Commands sent per second
+     */
+    public double getThroughput(){
+        return _elapsedNanos == 0 ? 0 : _commands.length * 1e9 / _elapsedNanos;
+    }
+
+    /**
+     * @param index Index of a command
+     * @return How late it was sent, in nanoseconds
+     */
+    public long getDriftNanos(int index){
+        return _driftNanos[index];
+    }
+
+    /**
+     * @return How late the commands were sent, in microseconds
+     */
+    public LatencyHistogram getDriftHistogram(){
+        return _driftHistogram;
+    }
+
+    /**
+     * Writes the summary, followed by every command with its drift, as CSV.
+     *
+     * @param out Destination
+     * @throws IOException If the destination fails
+     */
+    public void export(Appendable out) throws IOException {
+
+        out.append("# ").append(toString()).append('\n');
+        out.append("index,command,scheduled_us,drift_us,rejected\n");
+        for(int i = 0; i < _commands.length; i++){
+            out.append(Integer.toString(i)).append(',')
+                    .append(_commands[i].getText()).append(',')
+                    .append(Long.toString(_scheduledNanos[i] / 1000L)).append(',')
+                    .append(Long.toString(_driftNanos[i] / 1000L)).append(',')
+                    .append(_isRejected[i] ? "1" : "0").append('\n');
+        }
+    }
+
+    @Override
+    public String toString(){
+
+        return String.format("%d commands at %s in %d ms, %.0f per second, %d rejected, "
+                        + "drift p50 %d us, p99 %d us, max %d us",
+                _commands.length, _speed == SessionReplayer.SPEED_MAX ? "max speed" : _speed + "x",
+                getElapsedMillis(), getThroughput(), getRejectedCount(),
+                _driftHistogram.getValueAtPercentile(50), _driftHistogram.getValueAtPercentile(99),
+                _driftHistogram.getMax());
+    }
+}
@@ -2,109 +2,321 @@ package com.dpm.microvacapp;
 
 import android.util.Log;
 
+import com.dpm.framework.Event;
+import com.dpm.framework.EventDispatcher;
+import com.dpm.framework.LatencyHistogram;
+
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 
-public class RobotCommander {
+public class RobotCommander implements CommandSink {
 
     private final String LOG_TAG = RobotCommander.class.getSimpleName();
 
-    private Socket _socket;
+    private final static int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final CommandWriter _writer;
+    private final AdaptiveRateLimiter _rateLimiter = new AdaptiveRateLimiter();
+    private volatile SessionRecorder _sessionRecorder;
+
+    /**
+     * Raised on the writer thread when the connection is established, fails, is lost or
+     * is closed.
+     */
+    public final Event<ConnectionEventArgs> connectionChanged;
 
-    private boolean _isBound = false;
+    /**
+     * Telemetry sent by the robot. Its event is raised on the writer thread.
+     */
+    public final TelemetryReader telemetry;
 
     public RobotCommander(){
 
+        this(DEFAULT_QUEUE_CAPACITY);
     }
 
-    public void connect(final String address, final int port) {
-        new Thread(new Runnable(){
-            @Override
-            public void run() {
+    /**
+     * @param queueCapacity Maximum number of commands waiting to be written
+     */
+    public RobotCommander(int queueCapacity){
 
-                if(_socket != null)
-                {
-                    close();
+        _writer = new CommandWriter(queueCapacity);
+        _writer.setRateLimiter(_rateLimiter);
+        connectionChanged = _writer.connectionChanged;
+        telemetry = _writer.telemetry;
+        connectionChanged.add(new EventDispatcher<ConnectionEventArgs>() {
+            @Override
+            public void dispatch(Object o, ConnectionEventArgs args) {
+                if(args.getError() != null) {
+                    Log.e(LOG_TAG, args.toString(), args.getError());
+                }else if(args.getState() == ConnectionEventArgs.STATE_CONNECTED){
+                    Log.i(LOG_TAG, args.toString() + ", " + (isDatagramMode() ? "datagram"
+                            : isBinaryProtocol() ? "binary" : "text") + " protocol");
+                }else{
+                    Log.i(LOG_TAG, args.toString());
                 }
 
-                _socket = new Socket();
-
-                try {
-                    _socket.connect(new InetSocketAddress(address, port));
-                    _isBound = true;
-                }catch (IOException ex)
-                {
-                    Log.e(LOG_TAG, ex.getMessage(), ex);
+                SessionRecorder recorder = _sessionRecorder;
+                if(recorder != null){
+                    recorder.recordConnection(args.getState(), args.getOutageMillis());
                 }
             }
-        }).start();
+        });
+        _writer.start();
+    }
+
+    public void connect(final String address, final int port) {
+
+        _writer.connect(address, port);
     }
 
     public void close(){
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if(_isBound){
-                    try {
-                        _socket.close();
-                        _isBound = false;
-                    }catch (IOException ex)
-                    {
-                        Log.e(LOG_TAG, ex.getMessage(), ex);
-                    }
-                }
-            }
-        }).start();
+        _writer.close();
     }
 
-    public void send(final String cmd){
+    /**
+     * @param timeoutMillis Maximum time to wait for the connection to be established
+     */
+    public void setConnectTimeout(long timeoutMillis){
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    if(_isBound) {
-                        _socket.getOutputStream().write(cmd.getBytes());
-                    }
-                }catch(IOException ex)
-                {
-                    _isBound = false;
-                    Log.e(LOG_TAG, ex.getMessage(), ex);
-                }
-            }
-        }).start();
+        _writer.setConnectTimeout(timeoutMillis);
+    }
+
+    /**
+     * @param timeoutMillis Maximum time a write may wait before the connection is
+     *                      considered lost
+     */
+    public void setWriteTimeout(long timeoutMillis){
+
+        _writer.setWriteTimeout(timeoutMillis);
+    }
+
+    /**
+     * Stops the writer thread. The commander cannot be used afterwards.
+     */
+    public void shutdown(){
+
+        _writer.shutdown();
+    }
+
+    /**
+     * @param isAutoReconnect Whether a lost connection is opened again automatically,
+     *                        writing the last motion again once recovered
+     */
+    public void setAutoReconnect(boolean isAutoReconnect){
+
+        _writer.setAutoReconnect(isAutoReconnect);
+    }
+
+    /**
+     * @return Time it took to recover from the last lost connection
+     */
+    public long getLastOutageMillis(){
+
+        return _writer.getLastOutageMillis();
+    }
+
+    /**
+     * @return Time spent recovering from all the lost connections
+     */
+    public long getTotalOutageMillis(){
+
+        return _writer.getTotalOutageMillis();
+    }
+
+    /**
+     * @param protocol CommandWriter.PROTOCOL_AUTO to negotiate it when connecting,
+     *                 CommandWriter.PROTOCOL_TEXT or CommandWriter.PROTOCOL_BINARY to force it
+     */
+    public void setProtocol(int protocol){
+
+        _writer.setProtocol(protocol);
+    }
+
+    /**
+     * @return Whether the current connection uses the binary protocol
+     */
+    public boolean isBinaryProtocol(){
+
+        return _writer.getCodec() == BinaryWireCodec.INSTANCE;
+    }
+
+    /**
+     * Switches between TCP and the low-latency UDP channel. It can be called while
+     * connected; the connection is then opened again in the new mode.
+     *
+     * @param isDatagramMode true for UDP
+     */
+    public void setDatagramMode(boolean isDatagramMode){
+
+        _writer.setDatagramMode(isDatagramMode);
+    }
+
+    public boolean isDatagramMode(){
+
+        return _writer.isDatagramMode();
+    }
+
+    /**
+     * @param intervalMillis Time between heartbeats, or 0 to disable them. A robot not
+     *                       answering for some intervals is considered lost.
+     */
+    public void setHeartbeatInterval(long intervalMillis){
+
+        _writer.setHeartbeatInterval(intervalMillis);
+    }
+
+    /**
+     * @return Smoothed round trip time to the robot, in microseconds, or 0 if unknown
+     */
+    public long getSmoothedRttMicros(){
+
+        return _writer.getSmoothedRttMicros();
+    }
+
+    /**
+     * @return Round trip times measured by the heartbeat, in microseconds
+     */
+    public LatencyHistogram getRttHistogram(){
+
+        return _writer.getRttHistogram();
+    }
+
+    /**
+     * Writes the round trip statistics as CSV.
+     *
+     * @param out Destination
+     * @throws IOException If the destination fails
+     */
+    public void exportRttStats(Appendable out) throws IOException {
+
+        _writer.exportRttStats(out);
+    }
+
+    /**
+     * @return Limiter pacing the commands to what the robot takes, to tune it or read
+     * its current rate. Stops are never limited.
+     */
+    public AdaptiveRateLimiter getRateLimiter(){
+
+        return _rateLimiter;
+    }
+
+    /**
+     * @return Latency of the commands from their input until written to the socket, to
+     * snapshot and reset
+     */
+    public CommandLatencyStats getLatencyStats(){
+
+        return _writer.getLatencyStats();
+    }
+
+    /**
+     * @param recorder Journal where every command sent and every connection change is
+     *                 recorded, or null to stop recording
+     */
+    public void setSessionRecorder(SessionRecorder recorder){
+
+        _sessionRecorder = recorder;
+    }
+
+    /**
+     * Queues a text command.
+     *
+     * @param cmd Command as it is written to the socket
+     * @return false if the queue is full and the command has been rejected
+     */
+    public boolean send(final String cmd){
+
+        return send(Command.raw(cmd));
+    }
+
+    /**
+     * Queues a command.
+     *
+     * @param command Command
+     * @return false if the queue is full and the command has been rejected
+     */
+    @Override
+    public boolean send(Command command){
+
+        return send(command, System.nanoTime());
+    }
+
+    /**
+     * Queues a command, timing its latency from its input.
+     *
+     * @param command Command
+     * @param originTime System.nanoTime() of the input which produced it
+     * @return false if the queue is full and the command has been rejected
+     */
+    @Override
+    public boolean send(Command command, long originTime){
+
+        boolean done = _writer.enqueue(command, originTime);
+        SessionRecorder recorder = _sessionRecorder;
+        if(recorder != null){
+            recorder.recordCommand(command, done);
+        }
+        if(!done){
+            Log.w(LOG_TAG, "Queue full, dropped " + command);
+        }
+
+        return done;
     }
 
     public void sendForwards()
     {
-        send("FWD");
+        send(Command.FORWARDS);
     }
 
     public void sendBackwards()
     {
-        send("BAK");
+        send(Command.BACKWARDS);
     }
 
     public void sendTurnLeft()
     {
-        send("TLE");
+        send(Command.TURN_LEFT);
     }
 
     public void sendTurnRight()
     {
-        send("TRI");
+        send(Command.TURN_RIGHT);
     }
 
     public void sendStop()
     {
-        send("STP");
+        send(Command.STOP);
+    }
+
+    /**
+     * @param left Speed of the left wheel, see {@link Command#speed(int, int)}
+     * @param right Speed of the right wheel
+     */
+    public void sendSpeed(int left, int right)
+    {
+        send(Command.speed(left, right));
     }
 
     public void sendExpression(int expressionId){
-        send(String.format("EXP:%d", expressionId));
+        send(Command.expression(expressionId));
     }
 
-    public boolean isBound() { return _isBound; }
-}
+    public boolean isBound() { return _writer.isBound(); }
+
+    /**
+     * @return Number of commands waiting to be written
+     */
+    public int getQueueDepth() { return _writer.getQueueDepth(); }
+
+    /**
+     * @return Number of pending motion commands replaced by a newer motion or a stop
+     */
+    public long getCoalescedCount() { return _writer.getCoalescedCount(); }
+
+    /**
+     * @return Number of commands rejected because the queue was full
+     */
+    public long getDroppedCount() { return _writer.getDroppedCount(); }
+}
\ No newline at end of file
@@ -0,0 +1,61 @@
+package com.dpm.microvacapp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Connection to the robot used by the writer thread. Implementations are not
+ * thread-safe.
+ */
+public interface RobotTransport {
+
+    /**
+     * Opens the connection, closing the previous one if any.
+     *
+     * @param endpoint Robot address
+     * @param timeoutMillis Maximum time to wait for the connection to be established,
+     *                      including the lookup of a host name
+     * @throws IOException If the connection cannot be established in time
+     */
+    void connect(InetSocketAddress endpoint, long timeoutMillis) throws IOException;
+
+    /**
+     * Writes all the remaining bytes of the buffer.
+     *
+     * @param buffer Bytes to write, preferably a direct buffer
+     * @param timeoutMillis Maximum time to wait while the socket send buffer is full
+     * @throws IOException If the connection fails or the write does not complete in time
+     */
+    void write(ByteBuffer buffer, long timeoutMillis) throws IOException;
+
+    /**
+     * Reads the available bytes, waiting for them if there are none yet.
+     *
+     * @param buffer Target buffer
+     * @param timeoutMillis Maximum time to wait for some bytes
+     * @return Number of bytes read, 0 if none arrived in time or -1 if the robot closed
+     *         the connection
+     * @throws IOException If the connection fails
+     */
+    int read(ByteBuffer buffer, long timeoutMillis) throws IOException;
+
+    /**
+     * Waits until there are bytes to read, the timeout expires or {@link #wakeup()} is called.
+     *
+     * @param timeoutMillis Maximum time to wait, 0 to wait with no limit or a negative
+     *                      value not to wait at all
+     * @return Whether there are bytes to read
+     * @throws IOException If the connection fails
+     */
+    boolean await(long timeoutMillis) throws IOException;
+
+    /**
+     * Makes the thread waiting in {@link #await(long)} return. Can be called from any thread.
+     */
+    void wakeup();
+
+    boolean isConnected();
+
+    void close();
+}
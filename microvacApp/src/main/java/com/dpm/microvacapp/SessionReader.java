@@ -0,0 +1,345 @@
+package com.dpm.microvacapp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reads the records of a journal written by {@link SessionRecorder}, across all its
+ * segments or those of a single session, and in the order they were written.
+ *
+ * The current record is held in the reader itself, so iterating does not allocate.
+ */
+public class SessionReader implements Closeable {
+
+    public final static int ALL_SESSIONS = -1;
+
+    private final File _directory;
+    private final int[] _segments;
+    private int _segmentIndex = -1;
+    private MappedByteBuffer _buffer;
+    private int _position;
+
+    private int _kind;
+    private int _code;
+    private long _nanoTime;
+    private int _argument;
+    private int _payloadStart;
+    private int _payloadLength;
+    private long _segmentWallClock;
+    private long _segmentNanoTime;
+    private int _segmentSession;
+
+    /**
+     * Reads every session in the directory.
+     *
+     * @param directory Directory of the segment files
+     * @throws IOException If it cannot be listed
+     */
+    public SessionReader(File directory) throws IOException {
+
+        this(directory, ALL_SESSIONS);
+    }
+
+    /**
+     * @param directory Directory of the segment files
+     * @param session Session to read, as listed by {@link #listSessions(File)}, or
+     *                {@link #ALL_SESSIONS}
+     * @throws IOException If it cannot be listed
+     */
+    public SessionReader(File directory, int session) throws IOException {
+
+        if(!directory.isDirectory()){
+            throw new IOException("Not a directory: " + directory);
+        }
+
+        _directory = directory;
+        int[] segments = listSegments(directory);
+        if(session != ALL_SESSIONS){
+            int count = 0;
+            for(int index: segments){
+                if(readSession(getSegmentFile(directory, index), index) == session){
+                    segments[count++] = index;
+                }
+            }
+            segments = Arrays.copyOf(segments, count);
+        }
+        _segments = segments;
+    }
+
+    /**
+     * @param directory Directory of a journal
+     * @return Sessions recorded in it, from the oldest
+     * @throws IOException If a segment cannot be read
+     */
+    public static int[] listSessions(File directory) throws IOException {
+
+        int[] segments = listSegments(directory);
+        int[] sessions = new int[segments.length];
+        int count = 0;
+        for(int index: segments){
+            int session = readSession(getSegmentFile(directory, index), index);
+            // The segments of a session follow each other
+            if(session >= 0 && (count == 0 || sessions[count - 1] != session)){
+                sessions[count++] = session;
+            }
+        }
+
+        return Arrays.copyOf(sessions, count);
+    }
+
+    /**
+     * @param directory Directory of a journal
+     * @return Indexes of its segments, in ascending order
+     */
+    static int[] listSegments(File directory){
+
+        String[] names = directory.list();
+        if(names == null){
+            return new int[0];
+        }
+
+        int[] indexes = new int[names.length];
+        int count = 0;
+        for(String name: names){
+            if(name.startsWith(SessionRecorder.FILE_PREFIX) && name.endsWith(SessionRecorder.FILE_EXTENSION)){
+                try {
+                    indexes[count] = Integer.parseInt(name.substring(SessionRecorder.FILE_PREFIX.length(),
+                            name.length() - SessionRecorder.FILE_EXTENSION.length()));
+                    count++;
+                }catch(NumberFormatException ex){
+                    // Not a segment
+                }
+            }
+        }
+
+        int[] segments = Arrays.copyOf(indexes, count);
+        Arrays.sort(segments);
+
+        return segments;
+    }
+
+    /**
+     * @param file A segment file
+     * @param index Its index
+     * @return Its session, or -1 if it has been deleted or is still being created
+     * @throws IOException If it cannot be read or is not a journal
+     */
+    static int readSession(File file, int index) throws IOException {
+
+        RandomAccessFile randomAccessFile;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+        }catch(FileNotFoundException ex){
+            return -1;
+        }
+        byte[] header = new byte[16];
+        try {
+            randomAccessFile.readFully(header);
+        }catch(EOFException ex){
+            return -1;
+        }finally{
+            randomAccessFile.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if(buffer.getInt(0) == 0){
+            return -1;
+        }
+        if(buffer.getInt(0) != SessionRecorder.MAGIC){
+            throw new IOException("Not a session journal: " + file);
+        }
+
+        return _getSession(buffer, index);
+    }
+
+    /**
+     * @return The session in a segment header. The first version had none, so each of
+     * its segments is taken as a session.
+     */
+    private static int _getSession(ByteBuffer header, int index){
+
+        return header.getInt(4) >= 2 ? header.getInt(12) : index;
+    }
+
+    static File getSegmentFile(File directory, int index){
+
+        // ASCII digits whatever the default locale, as listSegments() expects them
+        return new File(directory, SessionRecorder.FILE_PREFIX + String.format(Locale.US, "%06d", index)
+                + SessionRecorder.FILE_EXTENSION);
+    }
+
+    /**
+     * @param file A segment file
+     * @return true if it has no records, or it has been deleted meanwhile
+     * @throws IOException If it cannot be read
+     */
+    static boolean isEmptySegment(File file) throws IOException {
+
+        RandomAccessFile randomAccessFile;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+        }catch(FileNotFoundException ex){
+            return true;
+        }
+        try {
+            if(randomAccessFile.length() < SessionRecorder.FILE_HEADER_LENGTH + 2){
+                return true;
+            }
+            randomAccessFile.seek(SessionRecorder.FILE_HEADER_LENGTH);
+            // The record length, in little-endian order
+            return randomAccessFile.read() == 0 && randomAccessFile.read() == 0;
+        }finally{
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false if there are no more records
+     * @throws IOException If a segment cannot be read or is not a journal
+     */
+    public boolean next() throws IOException {
+
+        while(true){
+            if(_buffer != null && _position + SessionRecorder.RECORD_HEADER_LENGTH <= _buffer.limit()){
+                int length = _buffer.getShort(_position);
+                if(length >= SessionRecorder.RECORD_HEADER_LENGTH && _position + length <= _buffer.limit()){
+                    _kind = _buffer.get(_position + 2);
+                    _code = _buffer.get(_position + 3);
+                    _nanoTime = _buffer.getLong(_position + 4);
+                    _argument = _buffer.getInt(_position + 12);
+                    _payloadStart = _position + SessionRecorder.RECORD_HEADER_LENGTH;
+                    _payloadLength = length - SessionRecorder.RECORD_HEADER_LENGTH;
+                    _position += length;
+                    return true;
+                }
+            }
+
+            if(++_segmentIndex >= _segments.length){
+                _buffer = null;
+                return false;
+            }
+            if(!_open(_segments[_segmentIndex])){
+                // Deleted since listed, as the oldest ones or one mapped ahead unused
+                _buffer = null;
+            }
+        }
+    }
+
+    /**
+     * @return One of the SessionRecorder.KIND_* constants
+     */
+    public int getKind() { return _kind; }
+
+    /**
+     * @return Opcode of a command, motion status or connection state, depending on the kind
+     */
+    public int getCode() { return _code; }
+
+    /**
+     * @return When the record was written, as System.nanoTime() of the session
+     */
+    public long getNanoTime() { return _nanoTime; }
+
+    /**
+     * @return Session of the record, as SessionRecorder.getSession()
+     */
+    public int getSession() { return _segmentSession; }
+
+    /**
+     * @return Wall clock time when the record was written, in ms
+     */
+    public long getWallClockMillis(){
+        return _segmentWallClock + (_nanoTime - _segmentNanoTime) / 1000000L;
+    }
+
+    public int getArgument() { return _argument; }
+
+    public int getPayloadLength() { return _payloadLength; }
+
+    /**
+     * @param offset Offset in the payload
+     * @return The byte of the payload
+     */
+    public byte getPayloadByte(int offset){
+        return _buffer.get(_payloadStart + offset);
+    }
+
+    /**
+     * @param offset Offset in the payload
+     * @return The float of the payload, as the angles of a transition
+     */
+    public float getPayloadFloat(int offset){
+        return _buffer.getFloat(_payloadStart + offset);
+    }
+
+    /**
+     * @return The command of a command record. It allocates only for raw commands, speeds
+     * and uncommon expressions.
+     */
+    public Command getCommand(){
+
+        switch((byte)_code){
+            case BinaryWireCodec.OP_FORWARDS: return Command.FORWARDS;
+            case BinaryWireCodec.OP_BACKWARDS: return Command.BACKWARDS;
+            case BinaryWireCodec.OP_TURN_LEFT: return Command.TURN_LEFT;
+            case BinaryWireCodec.OP_TURN_RIGHT: return Command.TURN_RIGHT;
+            case BinaryWireCodec.OP_STOP: return Command.STOP;
+            case BinaryWireCodec.OP_EXPRESSION: return Command.expression(_argument);
+            case BinaryWireCodec.OP_SPEED: return Command.speed((byte)(_argument >> 8), (byte)_argument);
+            case BinaryWireCodec.OP_RAW:
+                byte[] text = new byte[_payloadLength];
+                for(int i = 0; i < _payloadLength; i++){
+                    text[i] = getPayloadByte(i);
+                }
+                return Command.raw(new String(text));
+            default: return null;
+        }
+    }
+
+    @Override
+    public void close(){
+
+        _buffer = null;
+        _segmentIndex = _segments.length;
+    }
+
+    private boolean _open(int index) throws IOException {
+
+        File file = getSegmentFile(_directory, index);
+        RandomAccessFile randomAccessFile;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+        }catch(FileNotFoundException ex){
+            return false;
+        }
+        try {
+            _buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    randomAccessFile.length());
+        }finally{
+            randomAccessFile.close();
+        }
+        _buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if(_buffer.limit() < SessionRecorder.FILE_HEADER_LENGTH
+                || _buffer.getInt(0) != SessionRecorder.MAGIC){
+            throw new IOException("Not a session journal: " + file);
+        }
+        _segmentWallClock = _buffer.getLong(16);
+        _segmentNanoTime = _buffer.getLong(24);
+        _segmentSession = _getSession(_buffer, index);
+        _position = SessionRecorder.FILE_HEADER_LENGTH;
+
+        return true;
+    }
+}
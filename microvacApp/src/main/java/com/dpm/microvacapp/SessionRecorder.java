@@ -0,0 +1,432 @@
+package com.dpm.microvacapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Append-only journal of a driving session: the commands sent, the gesture driving
+ * transitions and the connection changes, with nanosecond timestamps.
+ *
+ * The journal is a series of memory-mapped segment files. Each one starts with a
+ * header of {@link #FILE_HEADER_LENGTH} bytes:
+ *
+ * <pre>
+ * magic (int) | version (int) | segment index (int) | session (int)
+ * wall clock at creation, ms (long) | System.nanoTime() at creation (long)
+ * </pre>
+ *
+ * followed by the records, in little-endian order:
+ *
+ * <pre>
+ * +---------------+------+------+----------+----------+---------+
+ * | record length | kind | code | nanoTime | argument | payload |
+ * | short         | byte | byte | long     | int      |         |
+ * +---------------+------+------+----------+----------+---------+
+ * </pre>
+ *
+ * A record length of 0 marks the end of the segment.
+ *
+ * Each recorder is a session, identified by the index of its first segment, which every
+ * segment it writes stores at offset 12 of its header (from version 2 on; version 1
+ * segments are each a session of their own). The times of the records can only be
+ * compared within a session, as System.nanoTime() starts over on each run of the app.
+ *
+ * Writers reserve their space with a single atomic add, so recording takes no lock and
+ * allocates nothing, and can be done from any thread. The length of a record is written
+ * last, so a record cut by a crash ends the segment instead of being read half-written.
+ *
+ * The files are created, mapped, flushed and deleted on a background thread, never on
+ * the threads which record. The first segment is opened there after construction, and
+ * the next one is always mapped ahead, so when a segment is full the writer which
+ * overflows it only swaps them. If the next one is not ready yet, the record is dropped
+ * and counted rather than waited for. The oldest segments beyond the limit are deleted
+ * when the recorder opens and on each rollover.
+ */
+public class SessionRecorder implements Closeable {
+
+    public final static int MAGIC = 0x314A564D; // "MVJ1"
+    public final static int VERSION = 2;
+    public final static String FILE_PREFIX = "session-";
+    public final static String FILE_EXTENSION = ".mvj";
+
+    public final static int FILE_HEADER_LENGTH = 32;
+    public final static int RECORD_HEADER_LENGTH = 16;
+    public final static int MAX_PAYLOAD_LENGTH = Short.MAX_VALUE - RECORD_HEADER_LENGTH;
+
+    /**
+     * Command queued. Code: opcode. Argument: argument of the command. Payload: the text
+     * of raw commands.
+     */
+    public final static int KIND_COMMAND = 1;
+    /**
+     * Command rejected because the queue was full. As {@link #KIND_COMMAND}.
+     */
+    public final static int KIND_COMMAND_DROPPED = 2;
+    /**
+     * Gesture driving transition. Code: new motion status. Argument: previous motion
+     * status. Payload: both tilt angles in radians, as floats.
+     */
+    public final static int KIND_TRANSITION = 3;
+    /**
+     * Connection change. Code: ConnectionEventArgs state. Argument: outage in ms.
+     */
+    public final static int KIND_CONNECTION = 4;
+
+    public final static int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public final static int DEFAULT_MAX_SEGMENTS = 8;
+
+    private final static int TRANSITION_PAYLOAD_LENGTH = 8;
+
+    private final static String THREAD_NAME = SessionRecorder.class.getSimpleName();
+
+    /**
+     * A mapped segment file.
+     */
+    private static class Segment {
+
+        final MappedByteBuffer buffer;
+        final int index;
+        final int capacity;
+        final AtomicInteger position = new AtomicInteger(FILE_HEADER_LENGTH);
+
+        Segment(MappedByteBuffer buffer, int index){
+            this.buffer = buffer;
+            this.index = index;
+            this.capacity = buffer.capacity();
+        }
+    }
+
+    private final File _directory;
+    private final int _segmentSize;
+    private final int _maxSegments;
+    // Null until opened, and once closed or failed
+    private final AtomicReference<Segment> _segment = new AtomicReference<Segment>();
+    // Mapped ahead, to be swapped in when the current one is full
+    private final AtomicReference<Segment> _nextSegment = new AtomicReference<Segment>();
+    private final ExecutorService _executor;
+    private final CountDownLatch _opened = new CountDownLatch(1);
+    private volatile int _session = -1;
+    private volatile boolean _isClosed = false;
+    private volatile IOException _failure;
+    private final AtomicLong _recordCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
+
+    public SessionRecorder(File directory){
+
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Does no I/O: the first segment is created on the background thread, and records
+     * made before it is ready are not kept.
+     *
+     * @param directory Directory of the segment files, created if needed
+     * @param segmentSize Size of each segment file, in bytes
+     * @param maxSegments Segments kept; the oldest ones are deleted
+     */
+    public SessionRecorder(File directory, int segmentSize, int maxSegments){
+
+        if(segmentSize < FILE_HEADER_LENGTH + RECORD_HEADER_LENGTH + MAX_PAYLOAD_LENGTH){
+            throw new IllegalArgumentException("segmentSize too small");
+        }
+
+        _directory = directory;
+        _segmentSize = segmentSize;
+        _maxSegments = Math.max(1, maxSegments);
+        _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                _open();
+            }
+        });
+    }
+
+    /**
+     * Waits until the first segment is created.
+     *
+     * @param timeoutMillis Maximum time to wait
+     * @return true if it is recording
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean awaitOpen(long timeoutMillis) throws InterruptedException {
+
+        _opened.await(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        return _segment.get() != null;
+    }
+
+    /**
+     * @param command Command queued
+     * @param isAccepted false if it was dropped
+     */
+    public void recordCommand(Command command, boolean isAccepted){
+
+        byte[] text = command.getType() == Command.TYPE_RAW ? command.getTextBytes() : null;
+        _append(isAccepted ? KIND_COMMAND : KIND_COMMAND_DROPPED, command.getOpcode(),
+                command.getArgument(), text, 0, 0);
+    }
+
+    /**
+     * @param previousStatus Motion status before the transition
+     * @param status New motion status
+     * @param pitch Angle which drives forwards and backwards, in radians
+     * @param roll Angle which drives the turns, in radians
+     */
+    public void recordTransition(int previousStatus, int status, float pitch, float roll){
+
+        _append(KIND_TRANSITION, status, previousStatus, null, pitch, roll);
+    }
+
+    /**
+     * @param state One of the ConnectionEventArgs.STATE_* constants
+     * @param outageMillis Outage recovered from, if any
+     */
+    public void recordConnection(int state, long outageMillis){
+
+        _append(KIND_CONNECTION, state, (int)Math.min(outageMillis, Integer.MAX_VALUE), null, 0, 0);
+    }
+
+    /**
+     * @return Number of records written
+     */
+    public long getRecordCount(){
+        return _recordCount.get();
+    }
+
+    /**
+     * @return Session recorded, or -1 until opened
+     */
+    public int getSession(){
+        return _session;
+    }
+
+    /**
+     * @return Number of records lost because the next segment was not mapped yet
+     */
+    public long getDroppedCount(){
+        return _droppedCount.get();
+    }
+
+    /**
+     * @return The error which stopped the recording, or null
+     */
+    public IOException getFailure(){
+        return _failure;
+    }
+
+    /**
+     * Stops recording. The current segment is flushed, and the one mapped ahead deleted,
+     * on the background thread.
+     */
+    @Override
+    public void close(){
+
+        if(_isClosed){
+            return;
+        }
+        _isClosed = true;
+        final Segment segment = _segment.getAndSet(null);
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(segment != null){
+                    segment.buffer.force();
+                }
+                // Opened while closing
+                Segment opened = _segment.getAndSet(null);
+                if(opened != null){
+                    opened.buffer.force();
+                }
+                Segment next = _nextSegment.getAndSet(null);
+                if(next != null){
+                    SessionReader.getSegmentFile(_directory, next.index).delete();
+                }
+            }
+        });
+        _executor.shutdown();
+    }
+
+    private void _append(int kind, int code, int argument, byte[] text, float pitch, float roll){
+
+        int payloadLength = text != null
+                ? Math.min(text.length, MAX_PAYLOAD_LENGTH)
+                : kind == KIND_TRANSITION ? TRANSITION_PAYLOAD_LENGTH : 0;
+        int length = RECORD_HEADER_LENGTH + payloadLength;
+        long nanoTime = System.nanoTime();
+
+        Segment segment;
+        int start;
+        while(true){
+            segment = _segment.get();
+            if(segment == null){
+                // Not opened yet, closed, or failed
+                return;
+            }
+            start = segment.position.getAndAdd(length);
+            if(start + length <= segment.capacity){
+                break;
+            }
+            if(!_roll(segment)){
+                // Not waited for on the send path
+                _droppedCount.incrementAndGet();
+                return;
+            }
+        }
+
+        // Absolute puts, so concurrent writers never touch the shared position
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.put(start + 2, (byte)kind);
+        buffer.put(start + 3, (byte)code);
+        buffer.putLong(start + 4, nanoTime);
+        buffer.putInt(start + 12, argument);
+        int payload = start + RECORD_HEADER_LENGTH;
+        if(text != null){
+            for(int i = 0; i < payloadLength; i++){
+                buffer.put(payload + i, text[i]);
+            }
+        }else if(kind == KIND_TRANSITION){
+            buffer.putFloat(payload, pitch);
+            buffer.putFloat(payload + 4, roll);
+        }
+        buffer.putShort(start, (short)length);
+        _recordCount.incrementAndGet();
+    }
+
+    /**
+     * Replaces the full segment by the one mapped ahead, and has the background thread
+     * flush it and map the following one.
+     *
+     * @return false if the next segment is not mapped yet
+     */
+    private boolean _roll(final Segment full){
+
+        Segment next = _nextSegment.getAndSet(null);
+        if(next == null){
+            // Unless another writer has already swapped them
+            return _segment.get() != full;
+        }
+        if(!_segment.compareAndSet(full, next)){
+            _nextSegment.set(next);
+            return true;
+        }
+
+        final int index = next.index;
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    full.buffer.force();
+                    _prepare(index);
+                }
+            });
+        }catch(RejectedExecutionException ex){
+            // Closed meanwhile
+        }
+
+        return true;
+    }
+
+    private void _open(){
+
+        try {
+            if(!_directory.isDirectory() && !_directory.mkdirs()){
+                throw new IOException("Cannot create " + _directory);
+            }
+            int lastIndex = -1;
+            for(int index: SessionReader.listSegments(_directory)){
+                lastIndex = Math.max(lastIndex, index);
+            }
+            _session = lastIndex + 1;
+            Segment segment = _createSegment(_session);
+            if(!_isClosed){
+                _segment.set(segment);
+            }
+            _prepare(segment.index);
+        }catch(IOException ex){
+            _failure = ex;
+        }finally{
+            _opened.countDown();
+        }
+    }
+
+    /**
+     * Deletes the segments too old to be kept with the current one, and maps the next.
+     *
+     * @param index Index of the current segment
+     */
+    private void _prepare(int index){
+
+        try {
+            // By the files there are, as the indexes of the segments mapped ahead and
+            // never used are skipped. Those still empty, as one mapped ahead by the
+            // previous recorder until it is closed, do not count unless they are older
+            // than all the kept ones.
+            int[] segments = SessionReader.listSegments(_directory);
+            int kept = 0;
+            for(int i = segments.length - 1; i >= 0; i--){
+                if(segments[i] > index){
+                    continue;
+                }
+                File file = SessionReader.getSegmentFile(_directory, segments[i]);
+                if(kept >= _maxSegments){
+                    if(!file.delete() && file.exists()){
+                        throw new IOException("Cannot delete " + file);
+                    }
+                }else if(segments[i] == index || !SessionReader.isEmptySegment(file)){
+                    kept++;
+                }
+            }
+            if(!_isClosed){
+                _nextSegment.set(_createSegment(index + 1));
+            }
+        }catch(IOException ex){
+            _failure = ex;
+            _segment.set(null);
+        }
+    }
+
+    private Segment _createSegment(int index) throws IOException {
+
+        File file = SessionReader.getSegmentFile(_directory, index);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(_segmentSize);
+            // The mapping stays valid once the file is closed
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, _segmentSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, index);
+            buffer.putInt(12, _session);
+            buffer.putLong(16, System.currentTimeMillis());
+            buffer.putLong(24, System.nanoTime());
+
+            return new Segment(buffer, index);
+        }finally{
+            randomAccessFile.close();
+        }
+    }
+}
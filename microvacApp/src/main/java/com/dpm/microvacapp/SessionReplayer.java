@@ -0,0 +1,239 @@
+package com.dpm.microvacapp;
+
+import com.dpm.framework.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays back the commands of a session recorded by {@link SessionRecorder}, keeping
+ * their original spacing scaled by a speed factor, or as fast as the target accepts
+ * them.
+ *
+ * The session is loaded before starting, so nothing is read nor allocated while
+ * playing. Playing runs on a scheduler thread: each turn sends every command which is
+ * due and schedules the next turn for the next command. The deadlines are absolute
+ * from the start, so a late turn does not delay the following ones.
+ */
+public class SessionReplayer {
+
+    /**
+     * Speed to send the commands with no pause between them.
+     */
+    public final static double SPEED_MAX = Double.POSITIVE_INFINITY;
+
+    private final static String THREAD_NAME = SessionReplayer.class.getSimpleName();
+
+    /**
+     * Deadlines closer than this are waited for spinning, as the scheduler may wake up
+     * later than asked.
+     */
+    private final static long SPIN_NANOS = 200000L;
+
+    /**
+     * At {@link #SPEED_MAX}, time a command the target does not accept is retried for
+     * before it is given up as rejected.
+     */
+    private final static long RETRY_NANOS = 1000000000L;
+
+    private final Command[] _commands;
+    private final long[] _offsets;
+
+    /**
+     * @param commands Commands to replay
+     * @param offsetsNanos Time of each command from the first one, in nanoseconds
+     */
+    public SessionReplayer(Command[] commands, long[] offsetsNanos){
+
+        if(commands.length != offsetsNanos.length){
+            throw new IllegalArgumentException("A time is needed for every command");
+        }
+
+        _commands = commands;
+        _offsets = offsetsNanos;
+    }
+
+    /**
+     * Loads the last session recorded.
+     *
+     * @param directory Directory of the journal
+     * @return The replayer, with no commands if there are no sessions
+     * @throws IOException If the journal cannot be read
+     * @see #load(File, int)
+     */
+    public static SessionReplayer load(File directory) throws IOException {
+
+        int[] sessions = SessionReader.listSessions(directory);
+        if(sessions.length == 0){
+            return new SessionReplayer(new Command[0], new long[0]);
+        }
+
+        return load(directory, sessions[sessions.length - 1]);
+    }
+
+    /**
+     * Loads the commands of a recorded session, accepted or dropped, as all of them were
+     * sent by the user. Only one session can be replayed, as the times of different ones
+     * cannot be compared.
+     *
+     * @param directory Directory of the journal
+     * @param session Session to load, as listed by SessionReader.listSessions()
+     * @return The replayer
+     * @throws IOException If the journal cannot be read
+     */
+    public static SessionReplayer load(File directory, int session) throws IOException {
+
+        List<Command> commands = new ArrayList<Command>();
+        List<Long> times = new ArrayList<Long>();
+        SessionReader reader = new SessionReader(directory, session);
+        try {
+            while(reader.next()){
+                int kind = reader.getKind();
+                if(kind == SessionRecorder.KIND_COMMAND || kind == SessionRecorder.KIND_COMMAND_DROPPED){
+                    Command command = reader.getCommand();
+                    if(command != null){
+                        commands.add(command);
+                        times.add(reader.getNanoTime());
+                    }
+                }
+            }
+        }finally{
+            reader.close();
+        }
+
+        long[] offsets = new long[times.size()];
+        for(int i = 0; i < offsets.length; i++){
+            // Never backwards: concurrent writers may reserve their records in a
+            // different order than they took their times
+            offsets[i] = Math.max(i > 0 ? offsets[i - 1] : 0, times.get(i) - times.get(0));
+        }
+
+        return new SessionReplayer(commands.toArray(new Command[commands.size()]), offsets);
+    }
+
+    public int getCommandCount(){
+        return _commands.length;
+    }
+
+    /**
+     * @return Duration of the session as recorded
+     */
+    public long getDurationMillis(){
+        return _offsets.length == 0 ? 0 : _offsets[_offsets.length - 1] / 1000000L;
+    }
+
+    /**
+     * Plays the session, waiting until done.
+     *
+     * @param target Where the commands are sent
+     * @param speed Speed factor, 1 for the original timing, or {@link #SPEED_MAX}
+     * @return The report
+     * @throws InterruptedException If interrupted while waiting
+     * @throws RuntimeException What the target threw, which stops the replay
+     */
+    public ReplayReport play(final CommandSink target, final double speed) throws InterruptedException {
+
+        if(!(speed > 0)){
+            throw new IllegalArgumentException("speed must be positive");
+        }
+
+        final int count = _commands.length;
+        final long[] scheduled = new long[count];
+        for(int i = 0; i < count; i++){
+            scheduled[i] = speed == SPEED_MAX ? 0 : (long)(_offsets[i] / speed);
+        }
+        final long[] drifts = new long[count];
+        final boolean[] isRejected = new boolean[count];
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, THREAD_NAME);
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MAX_PRIORITY);
+                        return thread;
+                    }
+                });
+        final long start = System.nanoTime();
+        final long[] end = new long[1];
+        final Throwable[] failure = new Throwable[1];
+
+        Runnable turn = new Runnable() {
+
+            private int _next = 0;
+            private long _due = 0;
+
+            @Override
+            public void run() {
+
+                boolean isRescheduled = false;
+                try {
+                    while(_next < count){
+                        long now = System.nanoTime();
+                        if(speed == SPEED_MAX && _due == 0){
+                            // With no schedule, the drift is the time the target took to accept
+                            _due = now;
+                        }
+                        long due = speed == SPEED_MAX ? _due : start + scheduled[_next];
+                        if(due - now > SPIN_NANOS){
+                            scheduler.schedule(this, due - now - SPIN_NANOS, TimeUnit.NANOSECONDS);
+                            isRescheduled = true;
+                            return;
+                        }
+                        while(due - now > 0){
+                            now = System.nanoTime();
+                        }
+
+                        boolean isSent = target.send(_commands[_next]);
+                        if(!isSent && speed == SPEED_MAX && now - due < RETRY_NANOS){
+                            // As fast as possible, but without losing commands
+                            Thread.yield();
+                            continue;
+                        }
+                        isRejected[_next] = !isSent;
+                        drifts[_next] = now - due;
+                        histogram.record((now - due) / 1000L);
+                        _due = 0;
+                        _next++;
+                    }
+
+                    end[0] = System.nanoTime();
+                }catch(Throwable ex){
+                    failure[0] = ex;
+                }finally{
+                    // Either finished or failed, unless another turn is coming
+                    if(!isRescheduled){
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        scheduler.execute(turn);
+        try {
+            done.await();
+        }finally{
+            scheduler.shutdownNow();
+        }
+
+        if(failure[0] instanceof RuntimeException){
+            throw (RuntimeException)failure[0];
+        }
+        if(failure[0] instanceof Error){
+            throw (Error)failure[0];
+        }
+
+        return new ReplayReport(_commands, scheduled, drifts, isRejected, histogram,
+                end[0] - start, speed);
+    }
+}
@@ -0,0 +1,55 @@
+package com.dpm.microvacapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A command queued in the fleet, with the frames it is written as. Each frame is
+ * encoded the first time a robot using its codec needs it and then reused, so a
+ * broadcast is encoded once per protocol however many robots receive it.
+ *
+ * The frames are built only from the fleet thread, so no synchronization is needed.
+ */
+final class SharedFrame {
+
+    private final Command _command;
+    private final int _sequence;
+    private byte[] _textFrame;
+    private byte[] _binaryFrame;
+
+    SharedFrame(Command command, int sequence){
+
+        _command = command;
+        _sequence = sequence;
+    }
+
+    Command getCommand(){
+        return _command;
+    }
+
+    /**
+     * @param codec Codec of the robot connection
+     * @param scratch Buffer to encode the frame, of at least WireCodec.MAX_FRAME_LENGTH bytes
+     * @return The frame. Must not be modified.
+     */
+    byte[] getBytes(WireCodec codec, ByteBuffer scratch){
+
+        boolean isBinary = codec == BinaryWireCodec.INSTANCE;
+        byte[] frame = isBinary ? _binaryFrame : _textFrame;
+        if(frame == null){
+            int length = codec.encodedLength(_command);
+            ByteBuffer buffer = length <= scratch.capacity() ? scratch : ByteBuffer.allocate(length);
+            buffer.clear();
+            codec.encode(_command, _sequence & 0xFFFF, buffer);
+            buffer.flip();
+            frame = new byte[buffer.remaining()];
+            buffer.get(frame);
+            if(isBinary){
+                _binaryFrame = frame;
+            }else{
+                _textFrame = frame;
+            }
+        }
+
+        return frame;
+    }
+}
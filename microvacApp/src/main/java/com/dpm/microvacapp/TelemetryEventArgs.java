@@ -0,0 +1,53 @@
+package com.dpm.microvacapp;
+
+import com.dpm.framework.EventArgs;
+
+/**
+ * Arguments of the telemetry event: a sample sent by the robot.
+ *
+ * The same instance is reused for every sample, so the event does not allocate at high
+ * rates. The values must be copied if they are needed after the dispatch.
+ */
+public class TelemetryEventArgs extends EventArgs {
+
+    private int _type;
+    private int _value;
+    private int _sequence;
+    private long _nanoTime;
+
+    void set(int type, int value, int sequence, long nanoTime){
+
+        _type = type;
+        _value = value;
+        _sequence = sequence;
+        _nanoTime = nanoTime;
+    }
+
+    /**
+     * @return One of the TelemetryReader.TYPE_* constants
+     */
+    public int getType() { return _type; }
+
+    /**
+     * @return Battery voltage in millivolts, the pressed bumpers as a bit mask, or the
+     * sequence number of the command acknowledged
+     */
+    public int getValue() { return _value; }
+
+    /**
+     * @return Sequence number of the frame sent by the robot
+     */
+    public int getSequence() { return _sequence; }
+
+    /**
+     * @return When it was received, as System.nanoTime()
+     */
+    public long getNanoTime() { return _nanoTime; }
+
+    @Override
+    public String toString() {
+
+        String[] names = {"battery", "bumper", "ack"};
+        return names[_type] + " " + _value + " #" + _sequence;
+    }
+}
@@ -0,0 +1,125 @@
+package com.dpm.microvacapp;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring buffer with the most recent telemetry samples, stored in arrays of primitives.
+ *
+ * There is a single writer, the thread reading the robot connection, which never waits
+ * nor allocates. Readers copy the samples and then check that the writer has not
+ * overwritten them meanwhile, discarding those which were. Twice the capacity is
+ * allocated, so that only happens to a reader delayed by a whole capacity of samples.
+ */
+public class TelemetryHistory {
+
+    private final int _capacity;
+    private final int _slots;
+    private final int _mask;
+    private final AtomicIntegerArray _types;
+    private final AtomicIntegerArray _values;
+    private final AtomicLongArray _nanoTimes;
+    private volatile long _count = 0;
+
+    /**
+     * @param capacity Number of samples kept. It is rounded up to a power of two.
+     */
+    public TelemetryHistory(int capacity){
+
+        if(capacity < 1){
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity){
+            size <<= 1;
+        }
+
+        _capacity = size;
+        _slots = size * 2;
+        _mask = _slots - 1;
+        _types = new AtomicIntegerArray(_slots);
+        _values = new AtomicIntegerArray(_slots);
+        _nanoTimes = new AtomicLongArray(_slots);
+    }
+
+    /**
+     * Adds a sample, replacing the oldest one if full. Only from the writer thread.
+     */
+    void add(int type, int value, long nanoTime){
+
+        long count = _count;
+        int index = (int)count & _mask;
+        _types.lazySet(index, type);
+        _values.lazySet(index, value);
+        _nanoTimes.lazySet(index, nanoTime);
+        // The volatile write publishes the sample
+        _count = count + 1;
+    }
+
+    /**
+     * Copies the most recent samples, oldest first. Any of the arrays may be null.
+     *
+     * @param types Types of the samples
+     * @param values Values of the samples
+     * @param nanoTimes Reception times of the samples
+     * @return Number of samples copied, at most the length of the shortest array
+     */
+    public int copyLatest(int[] types, int[] values, long[] nanoTimes){
+
+        int max = Integer.MAX_VALUE;
+        max = types != null ? Math.min(max, types.length) : max;
+        max = values != null ? Math.min(max, values.length) : max;
+        max = nanoTimes != null ? Math.min(max, nanoTimes.length) : max;
+
+        long end = _count;
+        long start = Math.max(0, end - Math.min(max, _capacity));
+        for(long i = start; i < end; i++){
+            int index = (int)i & _mask;
+            int target = (int)(i - start);
+            if(types != null){
+                types[target] = _types.get(index);
+            }
+            if(values != null){
+                values[target] = _values.get(index);
+            }
+            if(nanoTimes != null){
+                nanoTimes[target] = _nanoTimes.get(index);
+            }
+        }
+
+        // Samples overwritten while copying are dropped from the front. The slot of the
+        // next sample may be being written already.
+        long overwritten = _count + 1 - _slots - start;
+        if(overwritten <= 0){
+            return (int)(end - start);
+        }
+        if(overwritten >= end - start){
+            return 0;
+        }
+        int kept = (int)(end - start - overwritten);
+        int offset = (int)overwritten;
+        if(types != null){
+            System.arraycopy(types, offset, types, 0, kept);
+        }
+        if(values != null){
+            System.arraycopy(values, offset, values, 0, kept);
+        }
+        if(nanoTimes != null){
+            System.arraycopy(nanoTimes, offset, nanoTimes, 0, kept);
+        }
+
+        return kept;
+    }
+
+    /**
+     * @return Number of samples received since created
+     */
+    public long getCount(){
+        return _count;
+    }
+
+    public int getCapacity(){
+        return _capacity;
+    }
+}
@@ -0,0 +1,96 @@
+package com.dpm.microvacapp;
+
+import com.dpm.framework.Event;
+
+/**
+ * Turns the telemetry frames sent by the robot into typed samples, which are kept in a
+ * {@link TelemetryHistory} and raised through {@link #telemetryReceived}.
+ *
+ * It is fed by the thread reading the connection, and the event is raised on that
+ * thread. Neither keeping nor raising a sample allocates.
+ */
+public class TelemetryReader {
+
+    public final static int TYPE_BATTERY = 0;
+    public final static int TYPE_BUMPER = 1;
+    public final static int TYPE_ACK = 2;
+
+    public final static int DEFAULT_HISTORY_CAPACITY = 256;
+
+    private final TelemetryHistory _history;
+    private final TelemetryEventArgs _args = new TelemetryEventArgs();
+    private volatile long _lastBatteryMillivolts = 0;
+    private volatile int _bumpers = 0;
+
+    /**
+     * Raised for every sample received. The arguments are reused, see
+     * {@link TelemetryEventArgs}.
+     */
+    public final Event<TelemetryEventArgs> telemetryReceived = new Event<TelemetryEventArgs>();
+
+    public TelemetryReader(){
+
+        this(DEFAULT_HISTORY_CAPACITY);
+    }
+
+    /**
+     * @param historyCapacity Number of recent samples kept
+     */
+    public TelemetryReader(int historyCapacity){
+
+        _history = new TelemetryHistory(historyCapacity);
+    }
+
+    /**
+     * @param opcode Opcode of a frame sent by the robot
+     * @param sequence Sequence number of the frame
+     * @param payload Payload of the frame
+     * @param nanoTime When it was received
+     * @return Whether it was a telemetry frame
+     */
+    boolean onFrame(byte opcode, int sequence, int payload, long nanoTime){
+
+        int type;
+        int value = payload;
+        switch(opcode){
+            case BinaryWireCodec.OP_BATTERY:
+                type = TYPE_BATTERY;
+                _lastBatteryMillivolts = payload;
+                break;
+            case BinaryWireCodec.OP_BUMPER:
+                type = TYPE_BUMPER;
+                _bumpers = payload;
+                break;
+            case BinaryWireCodec.OP_ACK:
+                type = TYPE_ACK;
+                value = sequence;
+                break;
+            default:
+                return false;
+        }
+
+        _history.add(type, value, nanoTime);
+        _args.set(type, value, sequence, nanoTime);
+        telemetryReceived.rise(this, _args);
+
+        return true;
+    }
+
+    public TelemetryHistory getHistory(){
+        return _history;
+    }
+
+    /**
+     * @return Last battery voltage reported, or 0 if none yet
+     */
+    public long getBatteryMillivolts(){
+        return _lastBatteryMillivolts;
+    }
+
+    /**
+     * @return Bit mask of the bumpers pressed, as last reported
+     */
+    public int getBumpers(){
+        return _bumpers;
+    }
+}
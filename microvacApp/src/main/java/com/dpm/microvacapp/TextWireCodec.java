@@ -0,0 +1,29 @@
+package com.dpm.microvacapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Original protocol: three letter ASCII commands with no separator ("FWD", "EXP:2").
+ * It is the fallback for firmware which does not understand the binary protocol.
+ * There is no room for a sequence number, so it is ignored.
+ */
+public class TextWireCodec implements WireCodec {
+
+    public final static TextWireCodec INSTANCE = new TextWireCodec();
+
+    private TextWireCodec(){
+
+    }
+
+    @Override
+    public void encode(Command command, int sequence, ByteBuffer buffer) {
+
+        command.putText(buffer);
+    }
+
+    @Override
+    public int encodedLength(Command command) {
+
+        return command.getTextLength();
+    }
+}
@@ -0,0 +1,30 @@
+package com.dpm.microvacapp;
+
+/**
+ * Tilt of the device from the gravity measured by the accelerometer, as used by gesture
+ * driving.
+ */
+public final class TiltAngles {
+
+    /**
+     * Index of the angle which drives forwards and backwards.
+     */
+    public final static int PITCH = 0;
+    /**
+     * Index of the angle which drives the turns.
+     */
+    public final static int ROLL = 1;
+
+    private TiltAngles(){}
+
+    /**
+     * @param gravity Acceleration on the x, y and z axes of the device
+     * @param angles Receives the pitch and roll, in radians
+     */
+    public static void compute(float[] gravity, double[] angles){
+
+        angles[PITCH] = Math.atan2(gravity[1], gravity[2]);
+        angles[ROLL] = Math.atan2(-gravity[0],
+                Math.sqrt(gravity[1] * gravity[1] + gravity[2] * gravity[2]));
+    }
+}
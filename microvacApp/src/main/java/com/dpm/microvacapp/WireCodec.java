@@ -0,0 +1,29 @@
+package com.dpm.microvacapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of the commands on the robot connection.
+ */
+public interface WireCodec {
+
+    /**
+     * Maximum length of an encoded command, except raw ones.
+     */
+    int MAX_FRAME_LENGTH = 16;
+
+    /**
+     * Writes the command into the buffer, at its current position.
+     *
+     * @param command Command
+     * @param sequence Sequence number of the frame
+     * @param buffer Target buffer
+     */
+    void encode(Command command, int sequence, ByteBuffer buffer);
+
+    /**
+     * @param command Command
+     * @return Length of the encoded command
+     */
+    int encodedLength(Command command);
+}
@@ -0,0 +1,91 @@
+package com.dpm.microvacsim;
+
+import com.dpm.microvacapp.BinaryWireCodec;
+import com.dpm.microvacapp.Command;
+
+/**
+ * Incremental parser of the binary protocol, see {@link BinaryWireCodec}. Commands are
+ * returned with the same text as in the text protocol, so both can be compared.
+ */
+public class BinaryCommandParser {
+
+    private final static int STATE_OPCODE = 0;
+    private final static int STATE_SEQUENCE_HIGH = 1;
+    private final static int STATE_SEQUENCE_LOW = 2;
+    private final static int STATE_PAYLOAD = 3;
+    private final static int STATE_RAW_BYTES = 4;
+
+    private int _state = STATE_OPCODE;
+    private int _opcode;
+    private int _sequence;
+    private int _payload;
+    private int _payloadShift;
+    private final StringBuilder _raw = new StringBuilder();
+
+    /**
+     * @param b Next received byte
+     * @return The command completed by this byte, if any
+     */
+    public String feed(byte b){
+
+        int value = b & 0xff;
+        switch(_state){
+            case STATE_OPCODE:
+                _opcode = value;
+                _state = STATE_SEQUENCE_HIGH;
+                return null;
+            case STATE_SEQUENCE_HIGH:
+                _sequence = value << 8;
+                _state = STATE_SEQUENCE_LOW;
+                return null;
+            case STATE_SEQUENCE_LOW:
+                _sequence |= value;
+                if((_opcode & BinaryWireCodec.PAYLOAD_FLAG) == 0){
+                    return _complete();
+                }
+                _payload = 0;
+                _payloadShift = 0;
+                _raw.setLength(0);
+                _state = STATE_PAYLOAD;
+                return null;
+            case STATE_PAYLOAD:
+                _payload |= (value & 0x7F) << _payloadShift;
+                _payloadShift += 7;
+                if((value & 0x80) != 0){
+                    return null;
+                }
+                if(_opcode == BinaryWireCodec.OP_RAW && _payload > 0){
+                    _state = STATE_RAW_BYTES;
+                    return null;
+                }
+                return _complete();
+            default:
+                _raw.append((char)value);
+                return _raw.length() == _payload ? _complete() : null;
+        }
+    }
+
+    /**
+     * @return Sequence number of the last command returned
+     */
+    public int getSequence(){
+        return _sequence;
+    }
+
+    private String _complete(){
+
+        _state = STATE_OPCODE;
+        switch((byte)_opcode){
+            case BinaryWireCodec.OP_FORWARDS: return "FWD";
+            case BinaryWireCodec.OP_BACKWARDS: return "BAK";
+            case BinaryWireCodec.OP_TURN_LEFT: return "TLE";
+            case BinaryWireCodec.OP_TURN_RIGHT: return "TRI";
+            case BinaryWireCodec.OP_STOP: return "STP";
+            case BinaryWireCodec.OP_PING: return "PNG";
+            case BinaryWireCodec.OP_EXPRESSION: return "EXP:" + _payload;
+            case BinaryWireCodec.OP_SPEED: return Command.speed((byte)(_payload >> 8), (byte)_payload).getText();
+            case BinaryWireCodec.OP_RAW: return _raw.toString();
+            default: return String.format("?%02X", _opcode);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.dpm.microvacsim;
+
+import com.dpm.microvacapp.BinaryWireCodec;
+import com.dpm.microvacapp.Command;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Receiving end of the UDP control channel, as the robot should implement it (see
+ * DatagramWireCodec in the app). Late or reordered motions are discarded by their
+ * sequence number and the redundant copies of the other commands are applied only once.
+ */
+public class DatagramCommandReceiver {
+
+    /**
+     * Receives the commands which are applied.
+     */
+    public interface Listener {
+
+        void onCommand(String command, int sequence, int timestamp);
+    }
+
+    private final static int RECENT_SEQUENCES = 256;
+
+    private final DatagramSocket _socket;
+    private final Listener _listener;
+    private final int[] _recentSequences = new int[RECENT_SEQUENCES];
+    private int _recentIndex = 0;
+    private int _lastMotionSequence = 0;
+    private volatile long _staleCount = 0;
+    private volatile long _duplicateCount = 0;
+
+    /**
+     * @param port UDP port on the loopback interface, 0 for any free port
+     * @param listener Receives the commands applied
+     */
+    public DatagramCommandReceiver(int port, Listener listener) throws IOException {
+
+        _socket = new DatagramSocket(null);
+        _socket.setReuseAddress(true);
+        _socket.bind(new InetSocketAddress("127.0.0.1", port));
+        _listener = listener;
+    }
+
+    public int getPort(){
+        return _socket.getLocalPort();
+    }
+
+    public void start(){
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                _receive();
+            }
+        }, "DatagramCommandReceiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop(){
+        _socket.close();
+    }
+
+    /**
+     * @return Number of motions discarded because a newer one had already been applied
+     */
+    public long getStaleCount(){
+        return _staleCount;
+    }
+
+    /**
+     * @return Number of redundant copies discarded
+     */
+    public long getDuplicateCount(){
+        return _duplicateCount;
+    }
+
+    private void _receive(){
+
+        byte[] data = new byte[512];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        while(!_socket.isClosed()){
+            try {
+                packet.setLength(data.length);
+                _socket.receive(packet);
+                _onDatagram(ByteBuffer.wrap(data, 0, packet.getLength()), packet.getSocketAddress());
+            }catch(IOException ex){
+                // Closed
+            }catch(RuntimeException ex){
+                System.err.println("Malformed datagram: " + ex);
+            }
+        }
+    }
+
+    private void _onDatagram(ByteBuffer datagram, SocketAddress sender) throws IOException {
+
+        int sequence = datagram.getInt();
+        int timestamp = datagram.getInt();
+        byte opcode = datagram.get();
+
+        if(opcode == BinaryWireCodec.OP_PING){
+            // Echoed right away, with the same header
+            ByteBuffer reply = ByteBuffer.allocate(9);
+            reply.putInt(sequence).putInt(timestamp).put(BinaryWireCodec.OP_PONG);
+            _socket.send(new DatagramPacket(reply.array(), reply.capacity(), sender));
+            return;
+        }
+
+        for(int recent: _recentSequences){
+            if(recent == sequence){
+                _duplicateCount++;
+                return;
+            }
+        }
+
+        boolean isMotion = opcode >= BinaryWireCodec.OP_FORWARDS && opcode <= BinaryWireCodec.OP_STOP
+                || opcode == BinaryWireCodec.OP_SPEED;
+        if(isMotion){
+            if(sequence - _lastMotionSequence <= 0){
+                _staleCount++;
+                return;
+            }
+            _lastMotionSequence = sequence;
+        }
+
+        _recentSequences[_recentIndex] = sequence;
+        _recentIndex = (_recentIndex + 1) % RECENT_SEQUENCES;
+
+        String command;
+        switch(opcode){
+            case BinaryWireCodec.OP_FORWARDS: command = "FWD"; break;
+            case BinaryWireCodec.OP_BACKWARDS: command = "BAK"; break;
+            case BinaryWireCodec.OP_TURN_LEFT: command = "TLE"; break;
+            case BinaryWireCodec.OP_TURN_RIGHT: command = "TRI"; break;
+            case BinaryWireCodec.OP_STOP: command = "STP"; break;
+            case BinaryWireCodec.OP_EXPRESSION: command = "EXP:" + _getVarint(datagram); break;
+            case BinaryWireCodec.OP_SPEED:
+                int speeds = _getVarint(datagram);
+                command = Command.speed((byte)(speeds >> 8), (byte)speeds).getText();
+                break;
+            case BinaryWireCodec.OP_RAW:
+                byte[] bytes = new byte[_getVarint(datagram)];
+                datagram.get(bytes);
+                command = new String(bytes);
+                break;
+            default: command = String.format("?%02X", opcode); break;
+        }
+
+        _listener.onCommand(command, sequence, timestamp);
+    }
+
+    private static int _getVarint(ByteBuffer buffer){
+
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }while((b & 0x80) != 0);
+
+        return value;
+    }
+}
@@ -0,0 +1,340 @@
+package com.dpm.microvacsim;
+
+import com.dpm.framework.AsyncEventDispatcher;
+import com.dpm.framework.Event;
+import com.dpm.framework.EventArgs;
+import com.dpm.framework.EventDispatcher;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raises events to dispatchers delivered on executors: a slow dispatcher must not slow
+ * down the producer, each dispatcher must receive its events in order even on a thread
+ * pool, and conflation and the bounded backlog must account for every event. It also
+ * checks that screens registered weakly on a long-lived event are released.
+ */
+public class EventProbe {
+
+    private final static int EVENTS = 100000;
+    private final static long SLOW_DISPATCH_MILLIS = 1;
+    private final static int SCREENS = 20;
+
+    /**
+     * Arguments carrying the order in which they were raised.
+     */
+    private static class SequenceEventArgs extends EventArgs {
+
+        final int sequence;
+
+        SequenceEventArgs(int sequence){
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Checks that the sequences arrive in order, optionally taking its time.
+     */
+    private static class OrderCheckingDispatcher implements EventDispatcher<SequenceEventArgs> {
+
+        private final long _delayMillis;
+        volatile int count = 0;
+        volatile int last = -1;
+        volatile boolean isInOrder = true;
+
+        OrderCheckingDispatcher(long delayMillis){
+            _delayMillis = delayMillis;
+        }
+
+        @Override
+        public void dispatch(Object o, SequenceEventArgs args) {
+
+            if(_delayMillis > 0){
+                try {
+                    Thread.sleep(_delayMillis);
+                }catch(InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                }
+            }
+            isInOrder &= args.sequence > last;
+            last = args.sequence;
+            count++;
+        }
+    }
+
+    /**
+     * Stands for an activity: a large heap and a dispatcher which captures it.
+     */
+    private static class Screen {
+
+        final byte[] views = new byte[1024 * 1024];
+        int updates = 0;
+
+        final EventDispatcher<SequenceEventArgs> dispatcher = new EventDispatcher<SequenceEventArgs>() {
+            @Override
+            public void dispatch(Object o, SequenceEventArgs args) {
+                updates++;
+                views[0] = (byte)args.sequence;
+            }
+        };
+    }
+
+    private boolean _hasFailed = false;
+
+    public static void main(String[] args) throws Exception {
+
+        System.exit(new EventProbe().run() ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            _probeSlowDispatcher(pool);
+            _probeOrdering(pool);
+            _probeConflation(pool);
+            _probeBacklog(pool);
+            _probeRegistration(pool);
+            _probeRetention();
+        }finally{
+            pool.shutdownNow();
+        }
+
+        return !_hasFailed;
+    }
+
+    private void _probeSlowDispatcher(ExecutorService pool) throws Exception {
+
+        // The same events to a fast synchronous dispatcher and a slow asynchronous one
+        Event<SequenceEventArgs> event = new Event<SequenceEventArgs>();
+        OrderCheckingDispatcher fast = new OrderCheckingDispatcher(0);
+        OrderCheckingDispatcher slow = new OrderCheckingDispatcher(SLOW_DISPATCH_MILLIS);
+        event.add(fast);
+        event.add(new AsyncEventDispatcher<SequenceEventArgs>(slow, pool, 256, false));
+
+        int events = 200;
+        long start = System.nanoTime();
+        for(int i = 0; i < events; i++){
+            event.rise(this, new SequenceEventArgs(i));
+        }
+        long riseMillis = (System.nanoTime() - start) / 1000000L;
+        _awaitCount(slow, events, 5000);
+        long deliveryMillis = (System.nanoTime() - start) / 1000000L;
+        _check("Producer not held by a " + SLOW_DISPATCH_MILLIS + " ms dispatcher: " + events
+                        + " events raised in " + riseMillis + " ms, delivered in " + deliveryMillis + " ms",
+                fast.count == events && slow.count == events && slow.isInOrder
+                        && riseMillis < events * SLOW_DISPATCH_MILLIS / 4);
+    }
+
+    private void _probeOrdering(ExecutorService pool) throws Exception {
+
+        // Two producers, and four dispatchers sharing the pool
+        final Event<SequenceEventArgs> event = new Event<SequenceEventArgs>();
+        OrderCheckingDispatcher[] dispatchers = new OrderCheckingDispatcher[4];
+        AsyncEventDispatcher<?>[] asyncDispatchers = new AsyncEventDispatcher<?>[dispatchers.length];
+        for(int i = 0; i < dispatchers.length; i++){
+            dispatchers[i] = new OrderCheckingDispatcher(0);
+            AsyncEventDispatcher<SequenceEventArgs> asyncDispatcher
+                    = new AsyncEventDispatcher<SequenceEventArgs>(dispatchers[i], pool, EVENTS, false);
+            asyncDispatchers[i] = asyncDispatcher;
+            event.add(asyncDispatcher);
+        }
+
+        final Object lock = new Object();
+        final int[] next = {0};
+        Thread[] producers = new Thread[2];
+        for(int i = 0; i < producers.length; i++){
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while(true){
+                        // Taken and raised together, so the order raised is the order taken
+                        synchronized (lock){
+                            if(next[0] >= EVENTS){
+                                return;
+                            }
+                            event.rise(this, new SequenceEventArgs(next[0]++));
+                        }
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        for(Thread producer: producers){
+            producer.join();
+        }
+
+        boolean isInOrder = true;
+        long dropped = 0;
+        for(int i = 0; i < dispatchers.length; i++){
+            _awaitCount(dispatchers[i], EVENTS, 5000);
+            isInOrder &= dispatchers[i].isInOrder && dispatchers[i].count == EVENTS;
+            dropped += asyncDispatchers[i].getDroppedCount();
+        }
+        _check(EVENTS + " events delivered in order to " + dispatchers.length
+                        + " dispatchers on a pool, " + dropped + " dropped",
+                isInOrder && dropped == 0);
+    }
+
+    private void _probeConflation(ExecutorService pool) throws Exception {
+
+        Event<SequenceEventArgs> event = new Event<SequenceEventArgs>();
+        OrderCheckingDispatcher slow = new OrderCheckingDispatcher(SLOW_DISPATCH_MILLIS);
+        AsyncEventDispatcher<SequenceEventArgs> conflating
+                = new AsyncEventDispatcher<SequenceEventArgs>(slow, pool, 1, true);
+        event.add(conflating);
+
+        int events = 2000;
+        for(int i = 0; i < events; i++){
+            event.rise(this, new SequenceEventArgs(i));
+            if(i % 10 == 0){
+                Thread.sleep(0, 100000);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while((slow.last != events - 1 || conflating.hasPending()) && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+        _check("Conflated: " + slow.count + " of " + events + " events delivered, "
+                        + conflating.getConflatedCount() + " superseded, the last one included",
+                slow.isInOrder && slow.last == events - 1 && slow.count < events / 2
+                        && slow.count + conflating.getConflatedCount() == events);
+    }
+
+    private void _probeBacklog(ExecutorService pool) throws Exception {
+
+        // The dispatcher is stuck in its first event
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch isStuck = new CountDownLatch(1);
+        final int[] count = {0};
+        EventDispatcher<SequenceEventArgs> stuck = new EventDispatcher<SequenceEventArgs>() {
+            @Override
+            public void dispatch(Object o, SequenceEventArgs args) {
+                isStuck.countDown();
+                try {
+                    release.await();
+                }catch(InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (count){
+                    count[0]++;
+                }
+            }
+        };
+        int capacity = 16;
+        AsyncEventDispatcher<SequenceEventArgs> bounded
+                = new AsyncEventDispatcher<SequenceEventArgs>(stuck, pool, capacity, false);
+        Event<SequenceEventArgs> event = new Event<SequenceEventArgs>();
+        event.add(bounded);
+
+        event.rise(this, new SequenceEventArgs(0));
+        isStuck.await(1, TimeUnit.SECONDS);
+        int events = 1000;
+        long start = System.nanoTime();
+        for(int i = 1; i < events; i++){
+            event.rise(this, new SequenceEventArgs(i));
+        }
+        long riseMicros = (System.nanoTime() - start) / 1000L;
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(bounded.hasPending() && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+        Thread.sleep(10);
+        int delivered;
+        synchronized (count){
+            delivered = count[0];
+        }
+        _check("Backlog bounded to " + capacity + " behind a stuck dispatcher: " + delivered + " delivered, "
+                        + bounded.getDroppedCount() + " dropped, raised in " + riseMicros + " us",
+                delivered == capacity + 1 && delivered + bounded.getDroppedCount() == events);
+    }
+
+    private void _probeRegistration(ExecutorService pool){
+
+        Event<SequenceEventArgs> event = new Event<SequenceEventArgs>();
+        OrderCheckingDispatcher dispatcher = new OrderCheckingDispatcher(0);
+        boolean isAdded = event.add(dispatcher, pool);
+        _check("Dispatcher on an executor registered and removed as itself",
+                isAdded && event.isRegistered(dispatcher) && !event.add(dispatcher)
+                        && event.remove(dispatcher) && !event.isRegistered(dispatcher));
+    }
+
+    private void _probeRetention() throws Exception {
+
+        // Screens recreated as on each rotation, all listening to the same long-lived event
+        Event<SequenceEventArgs> event = new Event<SequenceEventArgs>();
+        WeakReference<?>[] strong = _createScreens(event, false);
+        WeakReference<?>[] weak = _createScreens(event, true);
+        Screen current = new Screen();
+        event.addWeak(current.dispatcher);
+        int registered = event.getDispatcherCount();
+
+        _collect(weak);
+        _check("Released " + _countReleased(weak) + " of " + SCREENS + " screens registered weakly, "
+                        + _countReleased(strong) + " of " + SCREENS + " registered strongly",
+                _countReleased(weak) == SCREENS && _countReleased(strong) == 0);
+
+        event.rise(this, new SequenceEventArgs(0));
+        _check("Released dispatchers pruned while rising: " + registered + " registered, "
+                        + event.getDispatcherCount() + " left",
+                event.getDispatcherCount() == SCREENS + 1 && current.updates == 1
+                        && event.isRegistered(current.dispatcher));
+    }
+
+    private WeakReference<?>[] _createScreens(Event<SequenceEventArgs> event, boolean isWeak){
+
+        WeakReference<?>[] screens = new WeakReference<?>[SCREENS];
+        for(int i = 0; i < SCREENS; i++){
+            Screen screen = new Screen();
+            if(isWeak){
+                event.addWeak(screen.dispatcher);
+            }else{
+                event.add(screen.dispatcher);
+            }
+            event.rise(this, new SequenceEventArgs(i));
+            screens[i] = new WeakReference<Screen>(screen);
+        }
+
+        return screens;
+    }
+
+    private void _collect(WeakReference<?>[] references) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while(_countReleased(references) < references.length && System.currentTimeMillis() < deadline){
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    private int _countReleased(WeakReference<?>[] references){
+
+        int released = 0;
+        for(WeakReference<?> reference: references){
+            if(reference.get() == null){
+                released++;
+            }
+        }
+
+        return released;
+    }
+
+    private void _awaitCount(OrderCheckingDispatcher dispatcher, int count, long timeoutMillis)
+            throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(dispatcher.count < count && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+    }
+
+    private void _check(String description, boolean isPassed){
+
+        System.out.println((isPassed ? "PASS " : "FAIL ") + description);
+        _hasFailed |= !isPassed;
+    }
+}
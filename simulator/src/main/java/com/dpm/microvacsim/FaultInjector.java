@@ -0,0 +1,148 @@
+package com.dpm.microvacsim;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Network and firmware faults injected by the stand-in robot: a delay before each
+ * command is applied, a processing time which limits the commands applied per second,
+ * commands lost, and connections dropped.
+ *
+ * The settings can be changed while running. The random decisions of each connection
+ * come from its own generator, seeded from {@link #setSeed(long)}, so a run can be
+ * repeated and the connections do not contend for a shared one.
+ */
+public class FaultInjector {
+
+    private volatile long _delayNanos = 0;
+    private volatile long _jitterNanos = 0;
+    private volatile long _processingNanos = 0;
+    private volatile double _lossRate = 0;
+    private volatile double _disconnectRate = 0;
+    private volatile long _seed = 0;
+    private final AtomicInteger _generators = new AtomicInteger();
+    private final AtomicLong _lostCount = new AtomicLong();
+    private final AtomicLong _disconnectCount = new AtomicLong();
+
+    /**
+     * @param delayMicros Time each command takes to be applied once received
+     * @param jitterMicros Random time added to the delay, up to this value
+     */
+    public void setDelay(long delayMicros, long jitterMicros){
+
+        _delayNanos = delayMicros * 1000L;
+        _jitterNanos = jitterMicros * 1000L;
+    }
+
+    public long getDelayMicros(){
+        return _delayNanos / 1000L;
+    }
+
+    public long getJitterMicros(){
+        return _jitterNanos / 1000L;
+    }
+
+    /**
+     * @param processingMicros Time each command keeps a connection busy once applied, as
+     *                         a slow microcontroller would, so the commands received
+     *                         faster queue up behind it
+     */
+    public void setProcessingTime(long processingMicros){
+        _processingNanos = processingMicros * 1000L;
+    }
+
+    public long getProcessingMicros(){
+        return _processingNanos / 1000L;
+    }
+
+    /**
+     * @param lossRate Probability of a command being ignored, from 0 to 1
+     */
+    public void setLossRate(double lossRate){
+        _lossRate = lossRate;
+    }
+
+    public double getLossRate(){
+        return _lossRate;
+    }
+
+    /**
+     * @param disconnectRate Probability of the connection being closed after each
+     *                       command, from 0 to 1
+     */
+    public void setDisconnectRate(double disconnectRate){
+        _disconnectRate = disconnectRate;
+    }
+
+    public double getDisconnectRate(){
+        return _disconnectRate;
+    }
+
+    /**
+     * @param seed Seed of the generators created from now on
+     */
+    public void setSeed(long seed){
+
+        _seed = seed;
+        _generators.set(0);
+    }
+
+    /**
+     * @return Number of commands lost on purpose
+     */
+    public long getLostCount(){
+        return _lostCount.get();
+    }
+
+    /**
+     * @return Number of connections dropped on purpose
+     */
+    public long getDisconnectCount(){
+        return _disconnectCount.get();
+    }
+
+    /**
+     * @return Generator for a new connection
+     */
+    Random newRandom(){
+        return new Random(_seed * 31 + _generators.getAndIncrement());
+    }
+
+    /**
+     * @return true if the next command must be lost
+     */
+    boolean isLost(Random random){
+
+        double lossRate = _lossRate;
+        if(lossRate > 0 && random.nextDouble() < lossRate){
+            _lostCount.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if the connection must be dropped now
+     */
+    boolean isDisconnectDue(Random random){
+
+        double disconnectRate = _disconnectRate;
+        if(disconnectRate > 0 && random.nextDouble() < disconnectRate){
+            _disconnectCount.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Delay of the next command, in ns
+     */
+    long nextDelay(Random random){
+
+        long jitterNanos = _jitterNanos;
+        return _delayNanos + (jitterNanos > 0 ? (long)(random.nextDouble() * jitterNanos) : 0);
+    }
+}
@@ -0,0 +1,177 @@
+package com.dpm.microvacsim;
+
+import com.dpm.framework.EventDispatcher;
+import com.dpm.microvacapp.BinaryWireCodec;
+import com.dpm.microvacapp.Command;
+import com.dpm.microvacapp.ConnectionEventArgs;
+import com.dpm.microvacapp.FleetCommander;
+import com.dpm.microvacapp.FleetRobot;
+import com.dpm.microvacapp.TextWireCodec;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a fleet of stand-in robots, one of which stops reading, and checks that the
+ * broadcasts reach the others complete, in order and on time. Another robot has a host
+ * name which cannot be resolved, and must not hold up the rest, and another replies to
+ * the binary protocol offer with a version which must not be accepted.
+ */
+public class FleetProbe {
+
+    private final static int ROBOTS = 24;
+    private final static int BROADCASTS = 2000;
+    // Reserved, so it never resolves
+    private final static String UNKNOWN_HOST = "robot.invalid";
+    private final static int OLD_VERSION_ROBOT = 2;
+
+    private final BlockingQueue<ConnectionEventArgs> _events
+            = new ArrayBlockingQueue<ConnectionEventArgs>(1024);
+    private final BlockingQueue<ConnectionEventArgs> _unknownHostEvents
+            = new ArrayBlockingQueue<ConnectionEventArgs>(16);
+
+    private boolean _hasFailed = false;
+
+    public static void main(String[] args) throws Exception {
+
+        System.exit(new FleetProbe().run() ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+
+        StandInRobotServer[] servers = new StandInRobotServer[ROBOTS];
+        for(int i = 0; i < ROBOTS; i++){
+            servers[i] = new StandInRobotServer(0);
+            servers[i].start();
+            servers[i].setBinarySupported(i % 2 == 0);
+        }
+        servers[OLD_VERSION_ROBOT].setBinaryVersion(0);
+
+        FleetCommander fleet = new FleetCommander(BROADCASTS);
+        fleet.setWriteTimeout(300);
+        fleet.setAutoReconnect(false);
+        fleet.connectionChanged.add(new EventDispatcher<ConnectionEventArgs>() {
+            @Override
+            public void dispatch(Object o, ConnectionEventArgs args) {
+                if(UNKNOWN_HOST.equals(args.getEndpoint().getHostString())){
+                    _unknownHostEvents.offer(args);
+                }else{
+                    _events.offer(args);
+                }
+            }
+        });
+        fleet.start();
+
+        try {
+            int threadsBefore = Thread.activeCount();
+            for(StandInRobotServer server: servers){
+                fleet.add("127.0.0.1", server.getPort());
+            }
+            int connected = 0;
+            ConnectionEventArgs args;
+            while(connected < ROBOTS && (args = _events.poll(5, TimeUnit.SECONDS)) != null){
+                if(args.getState() == ConnectionEventArgs.STATE_CONNECTED){
+                    connected++;
+                }
+            }
+            _check(connected + " robots connected", connected == ROBOTS);
+            // The stand-in servers add a reader thread for each client
+            _check("No thread added by the fleet for its robots",
+                    Thread.activeCount() - threadsBefore <= ROBOTS);
+            FleetRobot[] robots = fleet.getRobots();
+            _check("Binary protocol version 0 refused",
+                    robots[OLD_VERSION_ROBOT].getCodec() == TextWireCodec.INSTANCE
+                            && robots[0].getCodec() == BinaryWireCodec.INSTANCE);
+
+            // Looked up while the others are driven
+            fleet.add(UNKNOWN_HOST, servers[0].getPort());
+
+            // The first robot stops reading, and gets enough traffic of its own to fill
+            // its socket buffers
+            servers[0].setReading(false);
+            FleetRobot stalled = fleet.getRobots()[0];
+            Command filler = Command.raw(new String(new char[1000]).replace('\0', 'X'));
+            long start = System.nanoTime();
+            for(int i = 0; i < BROADCASTS; i++){
+                fleet.broadcast(Command.expression(i));
+                stalled.send(filler);
+            }
+            // Ends the last expression for the text parser
+            fleet.broadcast(Command.STOP);
+            long sendMillis = (System.nanoTime() - start) / 1000000L;
+
+            long elapsedMillis = 0;
+            boolean isComplete = true;
+            for(int i = 1; i < ROBOTS; i++){
+                List<StandInRobotServer.Arrival> arrivals = _awaitArrivals(servers[i], BROADCASTS + 1, 5000);
+                isComplete &= arrivals.size() == BROADCASTS + 1;
+                for(int j = 0; isComplete && j < BROADCASTS; j++){
+                    isComplete = arrivals.get(j).getCommand().equals("EXP:" + j);
+                }
+                if(!arrivals.isEmpty()){
+                    elapsedMillis = Math.max(elapsedMillis,
+                            (arrivals.get(arrivals.size() - 1).getNanoTime() - start) / 1000000L);
+                }
+            }
+            _check("Broadcasts complete and in order on the other " + (ROBOTS - 1)
+                    + " robots in " + elapsedMillis + " ms (" + sendMillis + " ms queueing)",
+                    isComplete && elapsedMillis < sendMillis + fleet.getWriteTimeout());
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while(stalled.isBound() && System.currentTimeMillis() < deadline){
+                stalled.send(filler);
+                Thread.sleep(0, 100000);
+            }
+            args = _events.poll(1000, TimeUnit.MILLISECONDS);
+            _check("Stalled robot dropped alone: " + args, args != null
+                    && args.getState() == ConnectionEventArgs.STATE_LOST
+                    && args.getEndpoint().getPort() == servers[0].getPort());
+
+            int bound = 0;
+            for(FleetRobot robot: fleet.getRobots()){
+                if(robot.isBound()){
+                    bound++;
+                }
+            }
+            _check(bound + " robots still connected", bound == ROBOTS - 1);
+
+            ConnectionEventArgs failure = null;
+            while((args = _unknownHostEvents.poll(fleet.getConnectTimeout() + 5000, TimeUnit.MILLISECONDS)) != null){
+                if(args.getState() == ConnectionEventArgs.STATE_CONNECT_FAILED){
+                    failure = args;
+                    break;
+                }
+            }
+            _check("Unknown host failed on its own: " + failure, failure != null);
+        }finally{
+            fleet.shutdown();
+            for(StandInRobotServer server: servers){
+                server.setReading(true);
+                server.stop();
+            }
+        }
+
+        return !_hasFailed;
+    }
+
+    private List<StandInRobotServer.Arrival> _awaitArrivals(StandInRobotServer server, int count,
+                                                            long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<StandInRobotServer.Arrival> arrivals = server.getArrivals();
+        while(arrivals.size() < count && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+            arrivals = server.getArrivals();
+        }
+
+        return arrivals;
+    }
+
+    private void _check(String description, boolean isPassed){
+
+        System.out.println((isPassed ? "PASS " : "FAIL ") + description);
+        _hasFailed |= !isPassed;
+    }
+}
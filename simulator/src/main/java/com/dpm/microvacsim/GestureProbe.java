@@ -0,0 +1,242 @@
+package com.dpm.microvacsim;
+
+import com.dpm.microvacapp.AdaptiveSamplingController;
+import com.dpm.microvacapp.Command;
+import com.dpm.microvacapp.CommandSink;
+import com.dpm.microvacapp.GestureEngine;
+import com.dpm.microvacapp.MotionStateMachine;
+
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Runs synthetic gravity samples through the gesture engine: a device held still close to
+ * the trigger angle with sensor noise, where the raw classification chatters, and a
+ * sequence of deliberate gestures, which must all be recognized. It also measures the
+ * throughput of the batch processing, and checks the adaptive sampling rate, and that
+ * the motion status and the last command sent agree when the sensor and UI threads
+ * drive at once.
+ */
+public class GestureProbe {
+
+    private final static float GRAVITY = 9.81f;
+    private final static long SAMPLE_INTERVAL_NANOS = 5000000L; // 200 Hz
+    private final static float NOISE = 0.6f;
+    private final static int BATCH_SAMPLES = 1000000;
+    private final static int CONCURRENT_ROUNDS = 10000;
+
+    private boolean _hasFailed = false;
+
+    public static void main(String[] args) throws Exception {
+
+        System.exit(new GestureProbe().run() ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+
+        Random random = new Random(1);
+
+        // Ten seconds held at the trigger angle, forwards
+        int count = 2000;
+        float[] samples = new float[3 * count];
+        long[] times = new long[count];
+        for(int i = 0; i < count; i++){
+            _putSample(samples, times, i, -GestureEngine.DEFAULT_TRIGGER_ANGLE, 0, random);
+        }
+        GestureEngine raw = new GestureEngine();
+        raw.setFilterTimeConstant(0);
+        raw.setAngles(GestureEngine.DEFAULT_TRIGGER_ANGLE, GestureEngine.DEFAULT_TRIGGER_ANGLE);
+        int rawTransitions = raw.process(samples, times, count, null, null);
+        GestureEngine filtered = new GestureEngine();
+        int filteredTransitions = filtered.process(samples, times, count, null, null);
+        _check("Noise at the trigger angle: " + rawTransitions + " transitions unfiltered, "
+                        + filteredTransitions + " filtered",
+                rawTransitions > 10 && filteredTransitions <= 1);
+
+        // Forwards, level, right, backwards, left and level again, half a second each
+        double[][] gestures = {
+                {-Math.toRadians(60), 0}, {0, 0}, {0, Math.toRadians(60)},
+                {Math.toRadians(60), 0}, {0, -Math.toRadians(60)}, {0, 0}
+        };
+        int[] expected = {
+                MotionStateMachine.STATUS_FORWARDS, MotionStateMachine.STATUS_STOP,
+                MotionStateMachine.STATUS_RIGHT, MotionStateMachine.STATUS_BACKWARDS,
+                MotionStateMachine.STATUS_LEFT, MotionStateMachine.STATUS_STOP
+        };
+        int perGesture = 100;
+        count = gestures.length * perGesture;
+        for(int i = 0; i < count; i++){
+            double[] gesture = gestures[i / perGesture];
+            _putSample(samples, times, i, gesture[0], gesture[1], random);
+        }
+        int[] indexes = new int[16];
+        int[] statuses = new int[16];
+        GestureEngine engine = new GestureEngine();
+        int transitions = engine.process(samples, times, count, indexes, statuses);
+        boolean isRecognized = transitions == expected.length;
+        long maxDelayMillis = 0;
+        for(int i = 0; isRecognized && i < transitions; i++){
+            isRecognized = statuses[i] == expected[i];
+            maxDelayMillis = Math.max(maxDelayMillis,
+                    (indexes[i] - i * perGesture) * SAMPLE_INTERVAL_NANOS / 1000000L);
+        }
+        _check(transitions + " gestures recognized, at most " + maxDelayMillis + " ms late",
+                isRecognized && maxDelayMillis < 4 * engine.getFilterTimeConstant());
+
+        // Batch throughput, over a long recording
+        count = BATCH_SAMPLES;
+        samples = new float[3 * count];
+        times = new long[count];
+        for(int i = 0; i < count; i++){
+            double phase = 2 * Math.PI * i / 4000;
+            _putSample(samples, times, i, Math.sin(phase), Math.cos(phase * 0.7) * 0.9, random);
+        }
+        engine = new GestureEngine();
+        for(int i = 0; i < 3; i++){
+            // Warms up the compiler
+            engine.process(samples, times, count, null, null);
+        }
+        long start = System.nanoTime();
+        transitions = engine.process(samples, times, count, null, null);
+        long elapsedNanos = System.nanoTime() - start;
+        _check(String.format("%d samples in %d ms (%.1f million per second), %d transitions",
+                        count, elapsedNanos / 1000000L, count * 1e3 / elapsedNanos, transitions),
+                transitions > 0);
+
+        _probeAdaptiveSampling(random);
+        _probeConcurrentTransitions();
+
+        return !_hasFailed;
+    }
+
+    /**
+     * The sensor thread moves while the menu stops, round after round, and after each
+     * one the last command sent must be that of the status.
+     */
+    private void _probeConcurrentTransitions() throws Exception {
+
+        final Command[] last = new Command[1];
+        final MotionStateMachine machine = new MotionStateMachine(new CommandSink() {
+            @Override
+            public boolean send(Command command) {
+                last[0] = command;
+                return true;
+            }
+
+            @Override
+            public boolean send(Command command, long originTime) {
+                last[0] = command;
+                return true;
+            }
+        });
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        Thread sensor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(int i = 0; i < CONCURRENT_ROUNDS; i++){
+                        barrier.await();
+                        machine.moveTo(i % 2 == 0 ? MotionStateMachine.STATUS_FORWARDS
+                                : MotionStateMachine.STATUS_LEFT);
+                        barrier.await();
+                    }
+                }catch(Exception ex){
+                    ex.printStackTrace();
+                }
+            }
+        });
+        Thread menu = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(int i = 0; i < CONCURRENT_ROUNDS; i++){
+                        barrier.await();
+                        machine.stop();
+                        barrier.await();
+                    }
+                }catch(Exception ex){
+                    ex.printStackTrace();
+                }
+            }
+        });
+        sensor.start();
+        menu.start();
+
+        Command[] commands = {
+                Command.STOP, Command.FORWARDS, Command.BACKWARDS, Command.TURN_LEFT, Command.TURN_RIGHT
+        };
+        int mismatches = 0;
+        int stops = 0;
+        for(int i = 0; i < CONCURRENT_ROUNDS; i++){
+            barrier.await();
+            barrier.await();
+            if(last[0] != commands[machine.getStatus()]){
+                mismatches++;
+            }
+            if(machine.getStatus() == MotionStateMachine.STATUS_STOP){
+                stops++;
+            }
+        }
+        sensor.join();
+        menu.join();
+        _check(CONCURRENT_ROUNDS + " rounds of a move racing a stop, " + stops + " ended stopped, "
+                        + mismatches + " with a command other than the status",
+                mismatches == 0);
+    }
+
+    /**
+     * Simulates a session sampled at the rate chosen by the controller: idle, then a
+     * gradual tilt forwards, and idle again.
+     */
+    private void _probeAdaptiveSampling(Random random){
+
+        GestureEngine engine = new GestureEngine();
+        AdaptiveSamplingController controller = new AdaptiveSamplingController();
+        float[] sample = new float[3];
+        long[] time = new long[1];
+        long now = 0;
+        controller.start(now);
+        boolean isFastOnTransitions = true;
+        long sessionNanos = 30 * 1000000000L;
+        while(now < sessionNanos){
+            // Tilts forwards up to 60 degrees from the 10th second, and back at the 16th
+            double seconds = now / 1e9;
+            double pitch = seconds < 10 || seconds > 16 ? 0
+                    : -Math.toRadians(60) * Math.min(1, (seconds - 10) / 2);
+            _putSample(sample, time, 0, pitch, 0, random);
+            int status = engine.update(sample[0], sample[1], sample[2], now);
+            if(status != GestureEngine.NO_TRANSITION){
+                isFastOnTransitions &= controller.getRate() == AdaptiveSamplingController.RATE_FAST;
+            }
+            controller.update(engine.getPitch(), engine.getRoll(),
+                    engine.getStatus() != MotionStateMachine.STATUS_STOP, now);
+            now += controller.getPeriodMicros(controller.getRate()) * 1000L;
+        }
+        controller.stop(now);
+
+        long slowMillis = controller.getTimeMillis(AdaptiveSamplingController.RATE_SLOW);
+        _check("Sampled slowly " + slowMillis + " of " + sessionNanos / 1000000L + " ms, "
+                        + controller.getSwitchCount() + " switches",
+                slowMillis > sessionNanos / 1000000L / 2 && controller.getSwitchCount() <= 4);
+        _check("Fast rate on at every transition (" + engine.getTransitionCount() + ")",
+                isFastOnTransitions && engine.getTransitionCount() == 2);
+    }
+
+    /**
+     * Writes the gravity of the device tilted by the given angles, plus noise.
+     */
+    private static void _putSample(float[] samples, long[] times, int index, double pitch, double roll,
+                                   Random random){
+
+        samples[3 * index] = (float)(-GRAVITY * Math.sin(roll) + random.nextGaussian() * NOISE);
+        samples[3 * index + 1] = (float)(GRAVITY * Math.cos(roll) * Math.sin(pitch) + random.nextGaussian() * NOISE);
+        samples[3 * index + 2] = (float)(GRAVITY * Math.cos(roll) * Math.cos(pitch) + random.nextGaussian() * NOISE);
+        times[index] = index * SAMPLE_INTERVAL_NANOS;
+    }
+
+    private void _check(String description, boolean isPassed){
+
+        System.out.println((isPassed ? "PASS " : "FAIL ") + description);
+        _hasFailed |= !isPassed;
+    }
+}
@@ -0,0 +1,129 @@
+package com.dpm.microvacsim;
+
+import com.dpm.framework.EventDispatcher;
+import com.dpm.microvacapp.Command;
+import com.dpm.microvacapp.CommandWriter;
+import com.dpm.microvacapp.ConnectionEventArgs;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the distribution of the time from a command being queued in the app's
+ * writer until the stand-in robot applies it, over TCP and over the UDP channel, next to
+ * the latency the writer measures itself until each write completes.
+ *
+ * Usage: LatencyProbe [commands] [interval in microseconds]
+ */
+public class LatencyProbe {
+
+    public static void main(String[] args) throws Exception {
+
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        long intervalMicros = args.length > 1 ? Long.parseLong(args[1]) : 500;
+
+        LatencyProbe probe = new LatencyProbe();
+        StandInRobotServer server = new StandInRobotServer(0);
+        server.start();
+        try {
+            System.out.println("TCP: " + probe.measure(server, false, commands, intervalMicros));
+            server.clearArrivals();
+            System.out.println("UDP: " + probe.measure(server, true, commands, intervalMicros));
+            System.out.println("UDP duplicates discarded: "
+                    + server.getDatagramReceiver().getDuplicateCount());
+        }finally{
+            server.stop();
+        }
+    }
+
+    /**
+     * @return Summary of the latency distribution
+     */
+    public String measure(StandInRobotServer server, boolean isDatagramMode, int commands,
+                          long intervalMicros) throws Exception {
+
+        final BlockingQueue<ConnectionEventArgs> events
+                = new ArrayBlockingQueue<ConnectionEventArgs>(16);
+        CommandWriter writer = new CommandWriter(commands);
+        writer.connectionChanged.add(new EventDispatcher<ConnectionEventArgs>() {
+            @Override
+            public void dispatch(Object o, ConnectionEventArgs args) {
+                events.offer(args);
+            }
+        });
+        writer.setDatagramMode(isDatagramMode);
+        writer.start();
+
+        try {
+            writer.connect("127.0.0.1", server.getPort());
+            ConnectionEventArgs args;
+            do {
+                args = events.poll(5, TimeUnit.SECONDS);
+            }while(args != null && args.getState() == ConnectionEventArgs.STATE_CONNECTING);
+            if(args == null || args.getState() != ConnectionEventArgs.STATE_CONNECTED){
+                return "cannot connect: " + args;
+            }
+
+            // Expressions are used since they are never coalesced; each one is unique
+            Command[] sent = new Command[commands];
+            for(int i = 0; i < commands; i++){
+                sent[i] = Command.expression(1000 + i);
+            }
+
+            long[] sentTimes = new long[commands];
+            long next = System.nanoTime();
+            for(int i = 0; i < commands; i++){
+                while(System.nanoTime() < next){
+                    Thread.yield();
+                }
+                sentTimes[i] = System.nanoTime();
+                writer.enqueue(sent[i]);
+                next += intervalMicros * 1000L;
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            List<StandInRobotServer.Arrival> arrivals = server.getArrivals();
+            while(arrivals.size() < commands && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+                arrivals = server.getArrivals();
+            }
+
+            long[] latencies = new long[commands];
+            int received = 0;
+            for(StandInRobotServer.Arrival arrival: arrivals){
+                String command = arrival.getCommand();
+                if(command.startsWith("EXP:")){
+                    int index = Integer.parseInt(command.substring(4)) - 1000;
+                    if(index >= 0 && index < commands){
+                        latencies[received++] = arrival.getNanoTime() - sentTimes[index];
+                    }
+                }
+            }
+
+            return summarize(latencies, received, commands) + "\n  app side: "
+                    + writer.getLatencyStats().snapshot();
+        }finally{
+            writer.shutdown();
+        }
+    }
+
+    static String summarize(long[] latencies, int count, int expected){
+
+        if(count == 0){
+            return "nothing received";
+        }
+
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return String.format("received %d/%d, p50 %.1f us, p90 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us",
+                count, expected,
+                sorted[(int)(count * 0.5)] / 1000.0,
+                sorted[(int)(count * 0.9)] / 1000.0,
+                sorted[(int)(count * 0.99)] / 1000.0,
+                sorted[(int)(count * 0.999)] / 1000.0,
+                sorted[count - 1] / 1000.0);
+    }
+}
@@ -0,0 +1,150 @@
+package com.dpm.microvacsim;
+
+import com.dpm.framework.LatencyHistogram;
+import com.dpm.microvacapp.Command;
+import com.dpm.microvacapp.CommandWriter;
+
+import java.util.List;
+
+/**
+ * Drives many command writers at once against a stand-in robot which delays, loses and
+ * drops connections, and measures the throughput and the latency from queueing each
+ * command to its arrival.
+ *
+ * Every command is an expression whose number identifies its writer and index, so each
+ * arrival can be matched with its sending time.
+ */
+public class LoadProbe {
+
+    private final static int WRITERS = 32;
+    private final static int COMMANDS_PER_WRITER = 2000;
+    private final static long INTERVAL_NANOS = 1000000L;
+    private final static int ID_FACTOR = 1000000;
+
+    private final static long DELAY_MICROS = 2000;
+    private final static long JITTER_MICROS = 1000;
+    private final static double LOSS_RATE = 0.01;
+    private final static double DISCONNECT_RATE = 0.0002;
+
+    private boolean _hasFailed = false;
+
+    public static void main(String[] args) throws Exception {
+
+        System.exit(new LoadProbe().run() ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+
+        StandInRobotServer server = new StandInRobotServer(0);
+        FaultInjector faults = server.getFaults();
+        faults.setDelay(DELAY_MICROS, JITTER_MICROS);
+        faults.setLossRate(LOSS_RATE);
+        faults.setDisconnectRate(DISCONNECT_RATE);
+        faults.setSeed(1);
+        server.start();
+
+        CommandWriter[] writers = new CommandWriter[WRITERS];
+        long[][] sendTimes = new long[WRITERS][COMMANDS_PER_WRITER];
+        try {
+            for(int i = 0; i < WRITERS; i++){
+                writers[i] = new CommandWriter(COMMANDS_PER_WRITER);
+                writers[i].setProtocol(i % 2 == 0 ? CommandWriter.PROTOCOL_AUTO : CommandWriter.PROTOCOL_TEXT);
+                writers[i].setReconnectDelays(10, 100);
+                writers[i].start();
+                writers[i].connect("127.0.0.1", server.getPort());
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while(_countBound(writers) < WRITERS && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            _check(_countBound(writers) + " writers connected", _countBound(writers) == WRITERS);
+
+            long start = System.nanoTime();
+            long next = start;
+            long rejected = 0;
+            for(int j = 0; j < COMMANDS_PER_WRITER; j++){
+                while(System.nanoTime() < next){
+                    Thread.yield();
+                }
+                for(int i = 0; i < WRITERS; i++){
+                    sendTimes[i][j] = System.nanoTime();
+                    if(!writers[i].enqueue(Command.expression(i * ID_FACTOR + j))){
+                        rejected++;
+                    }
+                }
+                next += INTERVAL_NANOS;
+            }
+            // Ends the last expression for the text parser
+            for(CommandWriter writer: writers){
+                writer.enqueue(Command.STOP);
+            }
+            long sendMillis = (System.nanoTime() - start) / 1000000L;
+            Thread.sleep(500);
+
+            List<StandInRobotServer.Arrival> arrivals = server.getArrivals();
+            LatencyHistogram latency = new LatencyHistogram();
+            long matched = 0;
+            long last = start;
+            for(StandInRobotServer.Arrival arrival: arrivals){
+                String command = arrival.getCommand();
+                if(command.startsWith("EXP:")){
+                    int id = Integer.parseInt(command.substring(4));
+                    int writer = id / ID_FACTOR;
+                    int index = id % ID_FACTOR;
+                    if(writer < WRITERS && index < COMMANDS_PER_WRITER){
+                        latency.record((arrival.getNanoTime() - sendTimes[writer][index]) / 1000L);
+                        last = Math.max(last, arrival.getNanoTime());
+                        matched++;
+                    }
+                }
+            }
+
+            long total = (long)WRITERS * COMMANDS_PER_WRITER;
+            System.out.println(String.format("%d of %d commands arrived in %d ms (%d ms sending), "
+                            + "%.0f per second; %d rejected, %d lost, %d disconnections",
+                    matched, total, (last - start) / 1000000L, sendMillis, matched * 1e9 / (last - start),
+                    rejected, faults.getLostCount(), faults.getDisconnectCount()));
+            System.out.println(String.format("Latency p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us",
+                    latency.getValueAtPercentile(50), latency.getValueAtPercentile(90),
+                    latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9), latency.getMax()));
+
+            _check("Latency includes the injected delay",
+                    latency.getValueAtPercentile(50) >= DELAY_MICROS);
+            _check("Faults injected", faults.getLostCount() > 0 && faults.getDisconnectCount() > 0);
+            _check("Most commands arrived despite the faults", matched >= total * 9 / 10);
+
+            deadline = System.currentTimeMillis() + 5000;
+            while(_countBound(writers) < WRITERS && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            _check("Every writer reconnected", _countBound(writers) == WRITERS);
+        }finally{
+            for(CommandWriter writer: writers){
+                if(writer != null){
+                    writer.shutdown();
+                }
+            }
+            server.stop();
+        }
+
+        return !_hasFailed;
+    }
+
+    private static int _countBound(CommandWriter[] writers){
+
+        int count = 0;
+        for(CommandWriter writer: writers){
+            if(writer != null && writer.isBound()){
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private void _check(String description, boolean isPassed){
+
+        System.out.println((isPassed ? "PASS " : "FAIL ") + description);
+        _hasFailed |= !isPassed;
+    }
+}
@@ -0,0 +1,310 @@
+package com.dpm.microvacsim;
+
+import com.dpm.framework.EventDispatcher;
+import com.dpm.microvacapp.Command;
+import com.dpm.microvacapp.CommandSink;
+import com.dpm.microvacapp.CommandWriter;
+import com.dpm.microvacapp.ConnectionEventArgs;
+import com.dpm.microvacapp.ReplayReport;
+import com.dpm.microvacapp.SessionReader;
+import com.dpm.microvacapp.SessionRecorder;
+import com.dpm.microvacapp.SessionReplayer;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records a session after an earlier one, replays the last one against a stand-in robot
+ * at its original speed, faster and as fast as possible, and checks that the robot
+ * receives the same commands, and on time. It also checks that the recorders, created
+ * on every activity start, keep only the segments allowed between them.
+ */
+public class ReplayProbe {
+
+    private final static int COMMANDS = 1000;
+    private final static long SPACING_NANOS = 2000000L;
+    private final static double FAST_SPEED = 4;
+    private final static long MAX_P99_DRIFT_MICROS = 5000;
+    private final static int RECORDERS = 20;
+    private final static int MAX_SEGMENTS = 8;
+    private final static int SMALL_SEGMENT_SIZE = 64 * 1024;
+
+    private final BlockingQueue<ConnectionEventArgs> _events
+            = new ArrayBlockingQueue<ConnectionEventArgs>(64);
+
+    private boolean _hasFailed = false;
+
+    public static void main(String[] args) throws Exception {
+
+        System.exit(new ReplayProbe().run() ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                "microvac-replay-" + System.nanoTime());
+        _recordEarlier(directory);
+        _record(directory);
+        int[] sessions = SessionReader.listSessions(directory);
+        SessionReplayer replayer = SessionReplayer.load(directory);
+        _check("Loaded " + replayer.getCommandCount() + " commands lasting "
+                        + replayer.getDurationMillis() + " ms from the last of " + sessions.length + " sessions",
+                sessions.length == 2 && replayer.getCommandCount() == COMMANDS
+                        && replayer.getDurationMillis() < 2 * COMMANDS * SPACING_NANOS / 1000000L);
+        boolean isRejected = false;
+        try {
+            replayer.play(null, 0);
+        }catch(IllegalArgumentException ex){
+            isRejected = true;
+        }
+        _check("Speed 0 rejected", isRejected);
+        _probeFailingTarget();
+
+        StandInRobotServer server = new StandInRobotServer(0);
+        server.start();
+
+        final CommandWriter writer = new CommandWriter(COMMANDS);
+        writer.connectionChanged.add(new EventDispatcher<ConnectionEventArgs>() {
+            @Override
+            public void dispatch(Object o, ConnectionEventArgs args) {
+                if(args.getState() != ConnectionEventArgs.STATE_CONNECTING){
+                    _events.offer(args);
+                }
+            }
+        });
+        writer.start();
+        CommandSink sink = new CommandSink() {
+            @Override
+            public boolean send(Command command) {
+                return writer.enqueue(command);
+            }
+
+            @Override
+            public boolean send(Command command, long originTime) {
+                return writer.enqueue(command, originTime);
+            }
+        };
+
+        try {
+            writer.connect("127.0.0.1", server.getPort());
+            ConnectionEventArgs args = _events.poll(5, TimeUnit.SECONDS);
+            _check("Connected: " + args,
+                    args != null && args.getState() == ConnectionEventArgs.STATE_CONNECTED);
+
+            _replay(replayer, sink, server, 1);
+            _replay(replayer, sink, server, FAST_SPEED);
+            _replay(replayer, sink, server, SessionReplayer.SPEED_MAX);
+        }finally{
+            writer.shutdown();
+            server.stop();
+            for(File file: directory.listFiles()){
+                file.delete();
+            }
+            directory.delete();
+        }
+        _probeRetention();
+
+        return !_hasFailed;
+    }
+
+    /**
+     * Replays to targets which never accept a command or which throw, which must end the
+     * replay instead of retrying forever or leaving it waiting.
+     */
+    private void _probeFailingTarget() throws Exception {
+
+        SessionReplayer replayer = new SessionReplayer(
+                new Command[]{Command.FORWARDS, Command.STOP}, new long[]{0, 1000000L});
+        ReplayReport report = replayer.play(new CommandSink() {
+            @Override
+            public boolean send(Command command) {
+                return false;
+            }
+
+            @Override
+            public boolean send(Command command, long originTime) {
+                return false;
+            }
+        }, SessionReplayer.SPEED_MAX);
+        _check("Commands never accepted given up as rejected: " + report,
+                report.getRejectedCount() == 2);
+
+        String failure = null;
+        try {
+            replayer.play(new CommandSink() {
+                @Override
+                public boolean send(Command command) {
+                    throw new IllegalStateException("Target closed");
+                }
+
+                @Override
+                public boolean send(Command command, long originTime) {
+                    return send(command);
+                }
+            }, 1);
+        }catch(IllegalStateException ex){
+            failure = ex.getMessage();
+        }
+        _check("Failure of the target thrown by play: " + failure, "Target closed".equals(failure));
+    }
+
+    /**
+     * Records a short session, as a previous run of the app.
+     */
+    private void _recordEarlier(File directory) throws Exception {
+
+        SessionRecorder recorder = new SessionRecorder(directory);
+        recorder.awaitOpen(5000);
+        for(int i = 0; i < 10; i++){
+            recorder.recordCommand(Command.STOP, true);
+        }
+        recorder.close();
+    }
+
+    /**
+     * Records the commands with a regular spacing, as gesture driving would.
+     */
+    private void _record(File directory) throws Exception {
+
+        SessionRecorder recorder = new SessionRecorder(directory);
+        _check("Recorder opened", recorder.awaitOpen(5000));
+        Command[] motions = { Command.FORWARDS, Command.TURN_LEFT, Command.BACKWARDS, Command.TURN_RIGHT };
+        long next = System.nanoTime();
+        for(int i = 0; i < COMMANDS; i++){
+            while(System.nanoTime() < next){
+                Thread.yield();
+            }
+            recorder.recordCommand(i % 2 == 0 ? motions[(i / 2) % motions.length]
+                    : Command.expression(i % 8), true);
+            next += SPACING_NANOS;
+        }
+        recorder.close();
+    }
+
+    private void _probeRetention() throws Exception {
+
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                "microvac-retention-" + System.nanoTime());
+        try {
+            // Short sessions, each in a single segment
+            for(int i = 0; i < RECORDERS; i++){
+                SessionRecorder recorder = new SessionRecorder(directory, SMALL_SEGMENT_SIZE, MAX_SEGMENTS);
+                recorder.awaitOpen(5000);
+                recorder.recordCommand(Command.FORWARDS, true);
+                recorder.close();
+            }
+            int files = _awaitSegmentFiles(directory, MAX_SEGMENTS);
+            _check(RECORDERS + " short sessions left " + files + " segments, " + MAX_SEGMENTS + " kept",
+                    files == MAX_SEGMENTS);
+
+            // A long one, rolling over many times
+            SessionRecorder recorder = new SessionRecorder(directory, SMALL_SEGMENT_SIZE, MAX_SEGMENTS);
+            recorder.awaitOpen(5000);
+            int records = 4 * MAX_SEGMENTS * SMALL_SEGMENT_SIZE / SessionRecorder.RECORD_HEADER_LENGTH;
+            long maxNanos = 0;
+            for(int i = 0; i < records; i++){
+                long start = System.nanoTime();
+                recorder.recordCommand(Command.FORWARDS, true);
+                maxNanos = Math.max(maxNanos, System.nanoTime() - start);
+                if(i % 1000 == 0){
+                    // Paced as commands are, rather than faster than a disk can map files
+                    Thread.sleep(1);
+                }
+            }
+            recorder.close();
+            files = _awaitSegmentFiles(directory, MAX_SEGMENTS);
+            _check(records + " records over " + (records * SessionRecorder.RECORD_HEADER_LENGTH / SMALL_SEGMENT_SIZE)
+                            + " segments: " + recorder.getRecordCount() + " written, " + recorder.getDroppedCount()
+                            + " dropped, slowest " + maxNanos / 1000L + " us, " + files + " segments left",
+                    recorder.getFailure() == null && files == MAX_SEGMENTS
+                            && recorder.getRecordCount() + recorder.getDroppedCount() == records);
+        }finally{
+            File[] files = directory.listFiles();
+            if(files != null){
+                for(File file: files){
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * @return Number of segment files once at most the expected ones are left
+     */
+    private int _awaitSegmentFiles(File directory, int expected) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        int files;
+        while((files = directory.list().length) > expected && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+
+        return files;
+    }
+
+    private void _replay(SessionReplayer replayer, CommandSink sink, StandInRobotServer server,
+                         double speed) throws Exception {
+
+        server.clearArrivals();
+        ReplayReport report = replayer.play(sink, speed);
+        // Ends the last expression for the text parser. It is written ahead of the
+        // commands still queued, so the expressions may arrive after it.
+        sink.send(Command.STOP);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        List<StandInRobotServer.Arrival> arrivals = server.getArrivals();
+        while((!_hasStop(arrivals) || _countExpressions(arrivals) < COMMANDS / 2)
+                && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+            arrivals = server.getArrivals();
+        }
+
+        long expectedMillis = speed == SessionReplayer.SPEED_MAX ? 0
+                : (long)(replayer.getDurationMillis() / speed);
+        _check(report.toString(), report.getRejectedCount() == 0
+                && report.getElapsedMillis() >= expectedMillis
+                && (speed == SessionReplayer.SPEED_MAX
+                    || report.getDriftHistogram().getValueAtPercentile(99) <= MAX_P99_DRIFT_MICROS));
+        // Motion commands may be superseded by the next one before being written, but
+        // every expression must arrive, in order
+        int expressions = _countExpressions(arrivals);
+        _check(arrivals.size() + " commands arrived, " + expressions + " expressions in order",
+                expressions == COMMANDS / 2);
+    }
+
+    private boolean _hasStop(List<StandInRobotServer.Arrival> arrivals){
+
+        for(StandInRobotServer.Arrival arrival: arrivals){
+            if(arrival.getCommand().equals("STP")){
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Number of the recorded expressions which arrived in order
+     */
+    private int _countExpressions(List<StandInRobotServer.Arrival> arrivals){
+
+        int expressions = 0;
+        for(StandInRobotServer.Arrival arrival: arrivals){
+            if(arrival.getCommand().equals("EXP:" + ((expressions * 2 + 1) % 8))){
+                expressions++;
+            }
+        }
+
+        return expressions;
+    }
+
+    private void _check(String description, boolean isPassed){
+
+        System.out.println((isPassed ? "PASS " : "FAIL ") + description);
+        _hasFailed |= !isPassed;
+    }
+}
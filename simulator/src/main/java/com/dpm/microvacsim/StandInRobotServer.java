@@ -0,0 +1,586 @@
+package com.dpm.microvacsim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dpm.microvacapp.BinaryWireCodec;
+import com.dpm.microvacapp.Command;
+import com.dpm.microvacapp.WireCodec;
+
+/**
+ * Loopback stand-in for the Microvacbot. It accepts connections like the robot does on
+ * port 333 and records every command received with its arrival time.
+ *
+ * It speaks both protocols. When the app offers the binary one, it is accepted unless
+ * the server is told to behave as the old firmware. The UDP control channel is received
+ * on the same port number.
+ *
+ * Reading can be paused to fill the socket buffers and exercise the write timeouts of
+ * the app.
+ *
+ * To the clients using the binary protocol, it can also send telemetry (battery and
+ * bumpers) at a high rate, and acknowledge each command received.
+ *
+ * The motions received drive two virtual wheels, whose speeds are kept as the robot
+ * would apply them, from the fixed motions as well as from the proportional speeds.
+ *
+ * Each connection is served by its own thread, so many clients can be driven at once,
+ * and faults can be injected through {@link #getFaults()}: a delay before each command
+ * is applied, a slow processing, lost commands and dropped connections. Without a display nor a device, it
+ * is the base for load and latency tests of the app's networking on any machine.
+ */
+public class StandInRobotServer {
+
+    public final static int DEFAULT_PORT = 333;
+
+    private final static int BACKLOG = 1024;
+
+    /**
+     * Command received by the stand-in robot.
+     */
+    public static class Arrival {
+
+        private final String _command;
+        private final int _sequence;
+        private final int _connection;
+        private final long _nanoTime;
+
+        Arrival(String command, int sequence, int connection, long nanoTime){
+            _command = command;
+            _sequence = sequence;
+            _connection = connection;
+            _nanoTime = nanoTime;
+        }
+
+        public String getCommand() { return _command; }
+
+        /**
+         * @return Sequence number of the frame or datagram, or -1 in the text protocol
+         */
+        public int getSequence() { return _sequence; }
+
+        /**
+         * @return Number of the connection, in order of acceptance, or -1 for datagrams
+         */
+        public int getConnection() { return _connection; }
+
+        /**
+         * @return Value of System.nanoTime() when the command was completely received and
+         * the injected delay, if any, had passed
+         */
+        public long getNanoTime() { return _nanoTime; }
+
+        @Override
+        public String toString() { return _command; }
+    }
+
+    private final ServerSocket _serverSocket;
+    private final DatagramCommandReceiver _datagramReceiver;
+    private final List<Arrival> _arrivals = new ArrayList<Arrival>();
+    private final List<Socket> _clients = new ArrayList<Socket>();
+    private final List<OutputStream> _binaryOutputs = new ArrayList<OutputStream>();
+    private final FaultInjector _faults = new FaultInjector();
+    private int _connectionCount = 0;
+    private volatile boolean _isAcknowledging = false;
+    private volatile int _telemetryRate = 0;
+    private volatile long _telemetrySent = 0;
+    private Thread _telemetryThread;
+    private volatile boolean _isReading = true;
+    private volatile boolean _isBinarySupported = true;
+    private volatile int _binaryVersion = BinaryWireCodec.VERSION;
+    private volatile boolean _isRunning = false;
+    // Both speeds in one value, so they are always read together
+    private volatile int _wheelSpeeds = 0;
+
+    /**
+     * @param port Listening port on the loopback interface, 0 for any free port
+     */
+    public StandInRobotServer(int port) throws IOException {
+
+        _serverSocket = new ServerSocket();
+        _serverSocket.setReuseAddress(true);
+        _serverSocket.bind(new InetSocketAddress("127.0.0.1", port), BACKLOG);
+        _datagramReceiver = new DatagramCommandReceiver(_serverSocket.getLocalPort(),
+                new DatagramCommandReceiver.Listener() {
+
+                    private final Random _random = _faults.newRandom();
+
+                    @Override
+                    public void onCommand(String command, int sequence, int timestamp) {
+                        _apply(command, sequence, -1, System.nanoTime(), _random);
+                    }
+                });
+    }
+
+    public int getPort(){
+        return _serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Faults injected to the commands received
+     */
+    public FaultInjector getFaults(){
+        return _faults;
+    }
+
+    /**
+     * @return Receiving end of the UDP control channel
+     */
+    public DatagramCommandReceiver getDatagramReceiver(){
+        return _datagramReceiver;
+    }
+
+    public void start(){
+
+        _isRunning = true;
+        _datagramReceiver.start();
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                _accept();
+            }
+        }, "StandInRobotServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop(){
+
+        _isRunning = false;
+        stopTelemetry();
+        _datagramReceiver.stop();
+        try {
+            _serverSocket.close();
+        }catch(IOException ex){
+            // Nothing to do, it is being stopped
+        }
+        disconnectClients();
+    }
+
+    /**
+     * Closes the current connections, as when the robot resets or goes out of range.
+     */
+    public void disconnectClients(){
+
+        synchronized (_clients){
+            for(Socket client: _clients){
+                try {
+                    client.close();
+                }catch(IOException ex){
+                    // Nothing to do, it is being closed
+                }
+            }
+            _clients.clear();
+        }
+    }
+
+    /**
+     * @param isReading false to stop reading from the connections, so the sender's
+     *                  buffers fill up as with a stalled robot
+     */
+    public void setReading(boolean isReading){
+        _isReading = isReading;
+    }
+
+    /**
+     * @param isBinarySupported false to ignore the binary protocol offer, as the old
+     *                          firmware does
+     */
+    public void setBinarySupported(boolean isBinarySupported){
+        _isBinarySupported = isBinarySupported;
+    }
+
+    /**
+     * @param binaryVersion Version in the reply to the binary protocol offer. Below 1,
+     *                      one the app must not accept, the robot stays on the text one.
+     */
+    public void setBinaryVersion(int binaryVersion){
+        _binaryVersion = binaryVersion;
+    }
+
+    /**
+     * @param isAcknowledging Whether each command received in the binary protocol is
+     *                        acknowledged with its sequence number
+     */
+    public void setAcknowledging(boolean isAcknowledging){
+        _isAcknowledging = isAcknowledging;
+    }
+
+    /**
+     * Starts sending telemetry to the clients using the binary protocol: battery samples,
+     * and the bumpers state every tenth sample.
+     *
+     * @param samplesPerSecond Rate of the samples
+     */
+    public synchronized void startTelemetry(int samplesPerSecond){
+
+        _telemetryRate = samplesPerSecond;
+        if(_telemetryThread == null){
+            _telemetryThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    _sendTelemetry();
+                }
+            }, "StandInRobotServer-telemetry");
+            _telemetryThread.setDaemon(true);
+            _telemetryThread.start();
+        }
+    }
+
+    public synchronized void stopTelemetry(){
+
+        _telemetryRate = 0;
+        if(_telemetryThread != null){
+            LockSupport.unpark(_telemetryThread);
+            _telemetryThread = null;
+        }
+    }
+
+    /**
+     * @return Number of telemetry samples sent to each client so far
+     */
+    public long getTelemetrySent(){
+        return _telemetrySent;
+    }
+
+    /**
+     * @return Speed of the left wheel set by the last motion applied, from
+     * -Command.MAX_SPEED to Command.MAX_SPEED
+     */
+    public int getLeftSpeed(){
+        return (byte)(_wheelSpeeds >> 8);
+    }
+
+    /**
+     * @return Speed of the right wheel set by the last motion applied
+     */
+    public int getRightSpeed(){
+        return (byte)_wheelSpeeds;
+    }
+
+    /**
+     * @return Number of commands received so far, without copying them
+     */
+    public int getArrivalCount(){
+
+        synchronized (_arrivals){
+            return _arrivals.size();
+        }
+    }
+
+    /**
+     * @return A copy of the commands received so far
+     */
+    public List<Arrival> getArrivals(){
+
+        synchronized (_arrivals){
+            return new ArrayList<Arrival>(_arrivals);
+        }
+    }
+
+    public void clearArrivals(){
+
+        synchronized (_arrivals){
+            _arrivals.clear();
+        }
+    }
+
+    private void _accept(){
+
+        while(_isRunning){
+            try {
+                final Socket client = _serverSocket.accept();
+                final int connection;
+                synchronized (_clients){
+                    _clients.add(client);
+                    connection = _connectionCount++;
+                }
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        _read(client, connection);
+                    }
+                }, "StandInRobotServer-" + client.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            }catch(IOException ex){
+                if(_isRunning){
+                    System.err.println("Accept failed: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void _read(Socket client, int connection){
+
+        Random random = _faults.newRandom();
+        TextCommandParser textParser = new TextCommandParser();
+        BinaryCommandParser binaryParser = null;
+        byte[] buffer = new byte[1024];
+        OutputStream output = null;
+        try {
+            InputStream input = client.getInputStream();
+            output = client.getOutputStream();
+            while(true){
+                while(!_isReading){
+                    Thread.sleep(10);
+                }
+                int count = input.read(buffer);
+                if(count < 0){
+                    break;
+                }
+                long receivedAt = System.nanoTime();
+                for(int i = 0; i < count; i++){
+                    if(binaryParser != null){
+                        String command = binaryParser.feed(buffer[i]);
+                        if("PNG".equals(command)){
+                            _reply(output, BinaryWireCodec.OP_PONG, binaryParser.getSequence());
+                        }else if(command != null){
+                            if(_apply(command, binaryParser.getSequence(), connection, receivedAt, random)
+                                    && _isAcknowledging){
+                                _reply(output, BinaryWireCodec.OP_ACK, binaryParser.getSequence());
+                            }
+                            if(_faults.isDisconnectDue(random)){
+                                return;
+                            }
+                        }
+                    }else{
+                        String command = textParser.feed(buffer[i]);
+                        if("VER".equals(command)){
+                            if(_isBinarySupported){
+                                output.write(BinaryWireCodec.HELLO_REPLY);
+                                output.write(_binaryVersion);
+                            }
+                            if(_isBinarySupported && _binaryVersion >= 1){
+                                binaryParser = new BinaryCommandParser();
+                                synchronized (_binaryOutputs){
+                                    _binaryOutputs.add(output);
+                                }
+                            }
+                        }else if(command != null){
+                            _apply(command, -1, connection, receivedAt, random);
+                            if(_faults.isDisconnectDue(random)){
+                                return;
+                            }
+                        }
+                    }
+                }
+            }
+            String command = binaryParser == null ? textParser.flush() : null;
+            if(command != null){
+                _apply(command, -1, connection, System.nanoTime(), random);
+            }
+        }catch(IOException ex){
+            // Connection closed
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }finally{
+            synchronized (_binaryOutputs){
+                for(int i = 0; i < _binaryOutputs.size(); i++){
+                    if(_binaryOutputs.get(i) == output){
+                        _binaryOutputs.remove(i);
+                        break;
+                    }
+                }
+            }
+            synchronized (_clients){
+                _clients.remove(client);
+            }
+            try {
+                client.close();
+            }catch(IOException ex){
+                // Nothing to do
+            }
+        }
+    }
+
+    private static void _reply(OutputStream output, byte opcode, int sequence) throws IOException {
+
+        synchronized (output){
+            output.write(new byte[]{opcode, (byte)(sequence >> 8), (byte)sequence});
+        }
+    }
+
+    private void _sendTelemetry(){
+
+        // The samples due since the last turn are sent together, so high rates do not
+        // depend on the timer resolution
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long start = System.nanoTime();
+        long sent = 0;
+        int sequence = 0;
+        int rate;
+        while((rate = _telemetryRate) > 0){
+            long due = (System.nanoTime() - start) * rate / 1000000000L;
+            buffer.clear();
+            while(sent < due && buffer.remaining() >= 2 * WireCodec.MAX_FRAME_LENGTH){
+                buffer.put(BinaryWireCodec.OP_BATTERY).putShort((short)sequence++);
+                BinaryWireCodec.putVarint(buffer, 7400 - (int)(sent / 1000 % 1000));
+                if(sent % 10 == 0){
+                    buffer.put(BinaryWireCodec.OP_BUMPER).putShort((short)sequence++);
+                    BinaryWireCodec.putVarint(buffer, (int)(sent / 10 % 4));
+                }
+                sent++;
+            }
+            if(buffer.position() > 0){
+                synchronized (_binaryOutputs){
+                    for(OutputStream output: _binaryOutputs){
+                        try {
+                            synchronized (output){
+                                output.write(buffer.array(), 0, buffer.position());
+                            }
+                        }catch(IOException ex){
+                            // The reader thread removes the client
+                        }
+                    }
+                }
+                _telemetrySent = sent;
+            }
+            LockSupport.parkNanos(200000L);
+        }
+    }
+
+    /**
+     * Applies a command after its injected delay, unless it is lost.
+     *
+     * @param receivedAt When the command was read; the delay is counted from there, so
+     *                   the commands read together are applied together
+     * @return false if the command has been lost
+     */
+    private boolean _apply(String command, int sequence, int connection, long receivedAt, Random random){
+
+        if(_faults.isLost(random)){
+            return false;
+        }
+
+        long due = receivedAt + _faults.nextDelay(random);
+        long remaining;
+        while((remaining = due - System.nanoTime()) > 0){
+            LockSupport.parkNanos(remaining);
+        }
+
+        Arrival arrival = new Arrival(command, sequence, connection, System.nanoTime());
+        synchronized (_arrivals){
+            _arrivals.add(arrival);
+            _drive(command);
+        }
+
+        long processingNanos = _faults.getProcessingMicros() * 1000L;
+        if(processingNanos > 0){
+            LockSupport.parkNanos(processingNanos);
+        }
+
+        return true;
+    }
+
+    /**
+     * Sets the wheel speeds for a motion command.
+     */
+    private void _drive(String command){
+
+        int max = Command.MAX_SPEED;
+        if(command.equals("FWD")){
+            _setWheelSpeeds(max, max);
+        }else if(command.equals("BAK")){
+            _setWheelSpeeds(-max, -max);
+        }else if(command.equals("TLE")){
+            _setWheelSpeeds(-max, max);
+        }else if(command.equals("TRI")){
+            _setWheelSpeeds(max, -max);
+        }else if(command.equals("STP")){
+            _setWheelSpeeds(0, 0);
+        }else if(command.startsWith("SPD:") && command.length() == 12){
+            try {
+                _setWheelSpeeds(Integer.parseInt(command.substring(4, 8)),
+                        Integer.parseInt(command.substring(8, 12)));
+            }catch(NumberFormatException ex){
+                System.err.println("Malformed speed: " + command);
+            }
+        }
+    }
+
+    private void _setWheelSpeeds(int left, int right){
+        _wheelSpeeds = (left & 0xFF) << 8 | (right & 0xFF);
+    }
+
+    /**
+     * Runs the stand-in robot until killed.
+     *
+     * <pre>
+     * [port] [--delay=us] [--jitter=us] [--processing=us] [--loss=rate] [--disconnect=rate]
+     *        [--seed=n] [--quiet]
+     * </pre>
+     *
+     * It prints every command received, or a summary each second when quiet.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        int port = DEFAULT_PORT;
+        long delayMicros = 0;
+        long jitterMicros = 0;
+        long processingMicros = 0;
+        double lossRate = 0;
+        double disconnectRate = 0;
+        long seed = 0;
+        boolean isQuiet = false;
+        for(String arg: args){
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if(arg.startsWith("--delay=")){
+                delayMicros = Long.parseLong(value);
+            }else if(arg.startsWith("--jitter=")){
+                jitterMicros = Long.parseLong(value);
+            }else if(arg.startsWith("--processing=")){
+                processingMicros = Long.parseLong(value);
+            }else if(arg.startsWith("--loss=")){
+                lossRate = Double.parseDouble(value);
+            }else if(arg.startsWith("--disconnect=")){
+                disconnectRate = Double.parseDouble(value);
+            }else if(arg.startsWith("--seed=")){
+                seed = Long.parseLong(value);
+            }else if(arg.equals("--quiet")){
+                isQuiet = true;
+            }else{
+                port = Integer.parseInt(arg);
+            }
+        }
+
+        StandInRobotServer server = new StandInRobotServer(port);
+        FaultInjector faults = server.getFaults();
+        faults.setDelay(delayMicros, jitterMicros);
+        faults.setProcessingTime(processingMicros);
+        faults.setLossRate(lossRate);
+        faults.setDisconnectRate(disconnectRate);
+        faults.setSeed(seed);
+        server.start();
+        System.out.println("Stand-in robot listening on port " + server.getPort());
+
+        int printed = 0;
+        long lastSummary = System.nanoTime();
+        while(true){
+            Thread.sleep(isQuiet ? 1000 : 100);
+            if(isQuiet){
+                long now = System.nanoTime();
+                int count = server.getArrivalCount();
+                System.out.println(String.format("%d commands, %.0f per second, %d lost, %d disconnected",
+                        count, (count - printed) * 1e9 / (now - lastSummary),
+                        faults.getLostCount(), faults.getDisconnectCount()));
+                printed = count;
+                lastSummary = now;
+                continue;
+            }
+            List<Arrival> arrivals = server.getArrivals();
+            for(; printed < arrivals.size(); printed++){
+                System.out.println(arrivals.get(printed));
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.dpm.microvacsim;
+
+import com.dpm.framework.EventDispatcher;
+import com.dpm.microvacapp.Command;
+import com.dpm.microvacapp.CommandWriter;
+import com.dpm.microvacapp.ConnectionEventArgs;
+import com.dpm.microvacapp.TelemetryEventArgs;
+import com.dpm.microvacapp.TelemetryReader;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects the command writer to a stand-in robot sending telemetry at a high rate, while
+ * commands are being written, and checks that every sample is received in order.
+ */
+public class TelemetryProbe {
+
+    private final static int SAMPLES_PER_SECOND = 20000;
+    private final static long DURATION_MILLIS = 2000;
+    private final static int HISTORY_CAPACITY = 1024;
+
+    private final BlockingQueue<ConnectionEventArgs> _events
+            = new ArrayBlockingQueue<ConnectionEventArgs>(64);
+
+    private long _received = 0;
+    private long _acknowledged = 0;
+    private int _lastSequence = -1;
+    private long _outOfOrder = 0;
+    private boolean _hasFailed = false;
+
+    public static void main(String[] args) throws Exception {
+
+        System.exit(new TelemetryProbe().run() ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+
+        StandInRobotServer server = new StandInRobotServer(0);
+        server.setAcknowledging(true);
+        server.start();
+
+        CommandWriter writer = new CommandWriter(1024, HISTORY_CAPACITY);
+        writer.connectionChanged.add(new EventDispatcher<ConnectionEventArgs>() {
+            @Override
+            public void dispatch(Object o, ConnectionEventArgs args) {
+                if(args.getState() != ConnectionEventArgs.STATE_CONNECTING){
+                    _events.offer(args);
+                }
+            }
+        });
+        writer.telemetry.telemetryReceived.add(new EventDispatcher<TelemetryEventArgs>() {
+            @Override
+            public void dispatch(Object o, TelemetryEventArgs args) {
+                if(args.getType() == TelemetryReader.TYPE_ACK){
+                    _acknowledged++;
+                    return;
+                }
+                _received++;
+                int expected = (_lastSequence + 1) & 0xFFFF;
+                if(_lastSequence >= 0 && args.getSequence() != expected){
+                    _outOfOrder++;
+                }
+                _lastSequence = args.getSequence();
+            }
+        });
+        writer.start();
+
+        try {
+            writer.connect("127.0.0.1", server.getPort());
+            ConnectionEventArgs args = _events.poll(5, TimeUnit.SECONDS);
+            _check("Connected: " + args,
+                    args != null && args.getState() == ConnectionEventArgs.STATE_CONNECTED);
+
+            server.startTelemetry(SAMPLES_PER_SECOND);
+            long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+            int sent = 0;
+            while(System.currentTimeMillis() < deadline){
+                if(writer.enqueue(Command.expression(sent % 8))){
+                    sent++;
+                }
+                Thread.sleep(0, 500000);
+            }
+            server.stopTelemetry();
+            Thread.sleep(200);
+
+            // Every tenth battery sample comes with a bumper sample
+            long expected = server.getTelemetrySent() + (server.getTelemetrySent() + 9) / 10;
+            long received = _received;
+            _check("Received " + received + " of " + expected + " samples ("
+                            + received * 1000 / DURATION_MILLIS + " per second), "
+                            + _outOfOrder + " out of order",
+                    received == expected && _outOfOrder == 0);
+            _check(_acknowledged + " of " + sent + " commands acknowledged", _acknowledged == sent);
+
+            int[] types = new int[HISTORY_CAPACITY];
+            long[] times = new long[HISTORY_CAPACITY];
+            int count = writer.telemetry.getHistory().copyLatest(types, null, times);
+            boolean isOrdered = true;
+            for(int i = 1; i < count; i++){
+                isOrdered &= times[i] >= times[i - 1];
+            }
+            _check("History keeps the latest " + count + " samples in order",
+                    count == HISTORY_CAPACITY && isOrdered);
+            _check("Battery reported: " + writer.telemetry.getBatteryMillivolts() + " mV",
+                    writer.telemetry.getBatteryMillivolts() > 0);
+            _check("Still connected", writer.isBound());
+        }finally{
+            writer.shutdown();
+            server.stop();
+        }
+
+        return !_hasFailed;
+    }
+
+    private void _check(String description, boolean isPassed){
+
+        System.out.println((isPassed ? "PASS " : "FAIL ") + description);
+        _hasFailed |= !isPassed;
+    }
+}
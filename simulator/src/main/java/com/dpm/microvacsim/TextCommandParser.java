@@ -0,0 +1,66 @@
+package com.dpm.microvacsim;
+
+/**
+ * Incremental parser of the text protocol: three letter commands ("FWD", "BAK", "TLE",
+ * "TRI", "STP"), expressions ("EXP:n") and wheel speeds ("SPD:+050-030"). Expressions
+ * have no terminator, so their number ends when the next command begins. Speeds have a
+ * fixed length.
+ */
+public class TextCommandParser {
+
+    private final static int SPEED_LENGTH = 12;
+
+    private final StringBuilder _pending = new StringBuilder();
+
+    /**
+     * @param b Next received byte
+     * @return The command completed by this byte, if any
+     */
+    public String feed(byte b){
+
+        char c = (char)(b & 0xff);
+        String completed = null;
+
+        if(_isExpression() && _pending.length() > 4 && !Character.isDigit(c)){
+            completed = _take();
+        }
+
+        _pending.append(c);
+        if(_isSpeed()){
+            if(_pending.length() == SPEED_LENGTH){
+                completed = _take();
+            }
+        }else if(_pending.length() == 3 && !_isExpression()){
+            completed = _take();
+        }
+
+        return completed;
+    }
+
+    /**
+     * @return The pending command, once no more bytes are coming
+     */
+    public String flush(){
+
+        return _pending.length() > 0 ? _take() : null;
+    }
+
+    private boolean _isExpression(){
+
+        return _pending.length() >= 3 && _pending.charAt(0) == 'E'
+                && _pending.charAt(1) == 'X' && _pending.charAt(2) == 'P';
+    }
+
+    private boolean _isSpeed(){
+
+        return _pending.length() >= 3 && _pending.charAt(0) == 'S'
+                && _pending.charAt(1) == 'P' && _pending.charAt(2) == 'D';
+    }
+
+    private String _take(){
+
+        String command = _pending.toString();
+        _pending.setLength(0);
+        return command;
+    }
+}
@@ -0,0 +1,507 @@
+package com.dpm.microvacsim;
+
+import com.dpm.framework.EventDispatcher;
+import com.dpm.framework.LatencyHistogram;
+import com.dpm.microvacapp.AdaptiveRateLimiter;
+import com.dpm.microvacapp.BinaryWireCodec;
+import com.dpm.microvacapp.Command;
+import com.dpm.microvacapp.CommandLatencyStats;
+import com.dpm.microvacapp.CommandSink;
+import com.dpm.microvacapp.CommandWriter;
+import com.dpm.microvacapp.ConnectionEventArgs;
+import com.dpm.microvacapp.ProportionalDriver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the app's command writer against the stand-in robot on the loopback interface
+ * and checks ordering and proportional driving in both protocols, the protocol
+ * negotiation, the adaptive rate limit, the latency of a stop under load, the connect
+ * timeout with its host name lookup, the write timeout, the recovery from a lost
+ * connection and the heartbeat.
+ */
+public class TransportProbe {
+
+    private final static int COMMANDS = 1000;
+    private final static int FULL_QUEUE_CAPACITY = 32;
+    private final static String UNKNOWN_HOST = "robot.invalid";
+
+    /**
+     * Maximum time from a stop being queued until the robot applies it, whatever is pending.
+     */
+    private final static long STOP_LATENCY_BOUND_MILLIS = 20;
+
+    private final BlockingQueue<ConnectionEventArgs> _events
+            = new ArrayBlockingQueue<ConnectionEventArgs>(64);
+
+    private boolean _hasFailed = false;
+
+    public static void main(String[] args) throws Exception {
+
+        System.exit(new TransportProbe().run() ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+
+        StandInRobotServer server = new StandInRobotServer(0);
+        server.start();
+
+        CommandWriter writer = new CommandWriter(COMMANDS);
+        writer.connectionChanged.add(new EventDispatcher<ConnectionEventArgs>() {
+            @Override
+            public void dispatch(Object o, ConnectionEventArgs args) {
+                _events.offer(args);
+            }
+        });
+        writer.start();
+
+        try {
+            server.setBinarySupported(false);
+            _probeOrdering(server, writer, false);
+            _probeSpeed(server, writer);
+            writer.close();
+            _expect(ConnectionEventArgs.STATE_DISCONNECTED, 1000);
+            server.clearArrivals();
+            server.setBinarySupported(true);
+            _probeOrdering(server, writer, true);
+            _probeSpeed(server, writer);
+            _probeRateLimit(server, writer);
+            _probeFullQueue(server);
+            _probeStopLatency(server, writer);
+            _probeWriteTimeout(server, writer);
+            _probeReconnect(server, writer);
+            _probeHeartbeat(server, writer);
+            _probeConnectTimeout(writer);
+        }finally{
+            writer.shutdown();
+            server.stop();
+        }
+
+        return !_hasFailed;
+    }
+
+    private void _probeOrdering(StandInRobotServer server, CommandWriter writer,
+                                boolean isBinaryExpected) throws Exception {
+
+        writer.connect("127.0.0.1", server.getPort());
+        _expect(ConnectionEventArgs.STATE_CONNECTED, writer.getConnectTimeout() + 1000);
+        _check((isBinaryExpected ? "Binary" : "Text") + " protocol negotiated",
+                (writer.getCodec() == BinaryWireCodec.INSTANCE) == isBinaryExpected);
+
+        // The stop goes ahead of the expressions still pending, and the motion after it
+        // keeps its place behind them
+        writer.getLatencyStats().snapshotAndReset();
+        for(int i = 0; i < COMMANDS; i++){
+            writer.enqueue(Command.expression(i % 10));
+        }
+        writer.enqueue(Command.STOP);
+        writer.enqueue(Command.FORWARDS);
+
+        List<StandInRobotServer.Arrival> arrivals = _awaitArrivals(server, COMMANDS + 2, 5000);
+        boolean inOrder = arrivals.size() == COMMANDS + 2
+                && arrivals.get(COMMANDS + 1).getCommand().equals("FWD");
+        int expressions = 0;
+        int stopIndex = -1;
+        for(int i = 0; inOrder && i <= COMMANDS; i++){
+            StandInRobotServer.Arrival arrival = arrivals.get(i);
+            if(arrival.getCommand().equals("STP")){
+                inOrder = stopIndex < 0;
+                stopIndex = i;
+            }else{
+                inOrder = arrival.getCommand().equals(Command.expression(expressions++ % 10).getText());
+            }
+            inOrder &= !isBinaryExpected || arrival.getSequence() == i;
+        }
+        _check("FIFO order of " + COMMANDS + " commands, stop written after " + stopIndex,
+                inOrder && stopIndex >= 0 && stopIndex < COMMANDS);
+
+        CommandLatencyStats.Snapshot stats = writer.getLatencyStats().snapshotAndReset();
+        _check("Latency of every command written: " + stats,
+                stats.getCount(CommandLatencyStats.COUNTER_QUEUED) == COMMANDS + 2
+                        && stats.getCount(CommandLatencyStats.COUNTER_WRITTEN) == COMMANDS + 2
+                        && stats.getHistogram(CommandLatencyStats.STAGE_TOTAL).getCount() == COMMANDS + 2);
+    }
+
+    private void _probeSpeed(StandInRobotServer server, final CommandWriter writer) throws Exception {
+
+        ProportionalDriver driver = new ProportionalDriver(new CommandSink() {
+            @Override
+            public boolean send(Command command) {
+                return writer.enqueue(command);
+            }
+
+            @Override
+            public boolean send(Command command, long originTime) {
+                // The samples have synthetic times, not of this clock
+                return writer.enqueue(command);
+            }
+        });
+        driver.setMaxRate(50);
+        server.clearArrivals();
+
+        // One second of samples at 200 Hz, tilting forwards and to the left
+        int samples = 200;
+        long time = 0;
+        for(int i = 0; i <= samples; i++){
+            double tilt = Math.toRadians(50) * i / samples;
+            driver.update(-tilt, -tilt / 3, time);
+            time += 5000000L;
+            Thread.sleep(0, 200000);
+        }
+        long sent = driver.getSentCount();
+        _awaitArrivals(server, (int)sent, 2000);
+        Thread.sleep(100);
+        _check("Speed " + server.getLeftSpeed() + "/" + server.getRightSpeed() + " applied, "
+                        + sent + " commands for " + (samples + 1) + " samples, "
+                        + driver.getSuppressedCount() + " suppressed",
+                server.getLeftSpeed() == driver.getLeftSpeed() && server.getRightSpeed() == driver.getRightSpeed()
+                        && driver.getLeftSpeed() < driver.getRightSpeed() && driver.getRightSpeed() == Command.MAX_SPEED
+                        && sent <= driver.getMaxRate() + 1);
+
+        // Levelling the device stops right away, despite the rate limit
+        driver.update(0, 0, time);
+        List<StandInRobotServer.Arrival> arrivals = _awaitArrivals(server, (int)sent + 1, 2000);
+        _check("Stopped when level", !arrivals.isEmpty()
+                && arrivals.get(arrivals.size() - 1).getCommand().equals("STP")
+                && server.getLeftSpeed() == 0 && server.getRightSpeed() == 0);
+    }
+
+    private void _probeRateLimit(StandInRobotServer server, CommandWriter writer) throws Exception {
+
+        // The robot applies 100 commands per second, and the sensor changes the speed 300
+        // times per second
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+        writer.setRateLimiter(limiter);
+        writer.setHeartbeatInterval(50);
+        server.getFaults().setProcessingTime(10000);
+        Thread.sleep(100);
+        server.clearArrivals();
+
+        int changes = 900;
+        long intervalNanos = 1000000000L / 300;
+        long maxRttMicros = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < changes; i++){
+            writer.enqueue(Command.speed(20 + i % 50, 20 + i % 50));
+            if(i > changes / 2){
+                maxRttMicros = Math.max(maxRttMicros, writer.getSmoothedRttMicros());
+            }
+            LockSupport.parkNanos(start + (i + 1) * intervalNanos - System.nanoTime());
+        }
+        int applied = server.getArrivalCount();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        _check(String.format("Speeds paced to %.0f per second (rate %.0f, %d decreases), robot behind at most %d ms",
+                        applied / elapsedSeconds, limiter.getRate(), limiter.getDecreaseCount(), maxRttMicros / 1000),
+                _events.isEmpty() && limiter.getDecreaseCount() > 0 && applied / elapsedSeconds > 50
+                        && maxRttMicros < 4 * limiter.getLatencyTarget() * 1000L);
+
+        // Stops are not paced, and they supersede the pending speed, so only those
+        // already written can arrive before
+        long stopTime = System.nanoTime();
+        writer.enqueue(Command.STOP);
+        List<StandInRobotServer.Arrival> arrivals = _awaitLastArrival(server, "STP", 2000);
+        StandInRobotServer.Arrival last = arrivals.get(arrivals.size() - 1);
+        long stopMillis = (last.getNanoTime() - stopTime) / 1000000L;
+        _check("Stopped " + stopMillis + " ms after the last speed",
+                last.getCommand().equals("STP") && stopMillis < 2 * limiter.getLatencyTarget());
+
+        server.getFaults().setProcessingTime(0);
+        writer.setHeartbeatInterval(0);
+        writer.setRateLimiter(null);
+    }
+
+    private void _probeFullQueue(StandInRobotServer server) throws Exception {
+
+        final CommandWriter writer = new CommandWriter(FULL_QUEUE_CAPACITY);
+        writer.start();
+        try {
+            writer.connect("127.0.0.1", server.getPort());
+            long deadline = System.currentTimeMillis() + 5000;
+            while(!writer.isBound() && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+
+            // The limiter holds an expression, so the queue fills up behind it. Each stop
+            // leaves the marker of the motion before it stale, filling the reserve too.
+            AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+            limiter.setRates(1, 1, 1);
+            limiter.setBurst(1);
+            writer.setRateLimiter(limiter);
+            while(writer.enqueue(Command.expression(1))){
+            }
+            boolean isRejected = false;
+            for(int i = 0; i < FULL_QUEUE_CAPACITY && !isRejected; i++){
+                writer.enqueue(Command.STOP);
+                isRejected = !writer.enqueue(Command.FORWARDS);
+            }
+            _check("Motion rejected by a full queue", isRejected);
+
+            // Producers racing on the full queue, taking back and coalescing their motions
+            final Command[] motions = {Command.FORWARDS, Command.BACKWARDS, Command.TURN_LEFT, Command.TURN_RIGHT};
+            Thread[] producers = new Thread[4];
+            for(int i = 0; i < producers.length; i++){
+                producers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for(int j = 0; j < 20000; j++){
+                            writer.enqueue(j % 100 == 99 ? Command.STOP : motions[j & 3]);
+                        }
+                    }
+                });
+                producers[i].start();
+            }
+            for(Thread producer: producers){
+                producer.join();
+            }
+
+            // The markers must still match the slot, or the next motion is never written
+            writer.setRateLimiter(null);
+            deadline = System.currentTimeMillis() + 5000;
+            while(writer.getQueueDepth() > 0 && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            writer.enqueue(Command.STOP);
+            writer.enqueue(Command.TURN_LEFT);
+            List<StandInRobotServer.Arrival> arrivals = _awaitLastArrival(server, "TLE", 5000);
+            _check("Motion written after racing on a full queue",
+                    !arrivals.isEmpty() && arrivals.get(arrivals.size() - 1).getCommand().equals("TLE"));
+        }finally{
+            writer.shutdown();
+        }
+    }
+
+    private void _probeStopLatency(StandInRobotServer server, CommandWriter writer) throws Exception {
+
+        // A backlog of expressions held back by the rate limit, while driving and stopping
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+        limiter.setRates(200, 200, 200);
+        writer.setRateLimiter(limiter);
+        server.clearArrivals();
+        int backlog = 500;
+        for(int i = 0; i < backlog; i++){
+            writer.enqueue(Command.expression(i % 10));
+        }
+
+        int stops = 20;
+        LatencyHistogram latency = new LatencyHistogram();
+        int pending = Integer.MAX_VALUE;
+        for(int i = 0; i < stops; i++){
+            Thread.sleep(50);
+            writer.enqueue(Command.FORWARDS);
+            int applied = server.getArrivalCount();
+            pending = Math.min(pending, writer.getQueueDepth());
+            long start = System.nanoTime();
+            writer.enqueue(Command.STOP);
+            long deadline = start + 1000000000L;
+            boolean isStopped = false;
+            while(!isStopped && System.nanoTime() < deadline){
+                List<StandInRobotServer.Arrival> arrivals = server.getArrivals();
+                for(int j = applied; j < arrivals.size() && !isStopped; j++){
+                    if(arrivals.get(j).getCommand().equals("STP")){
+                        latency.record((arrivals.get(j).getNanoTime() - start) / 1000L);
+                        isStopped = true;
+                    }
+                }
+                Thread.yield();
+            }
+        }
+        _check("Stops applied ahead of at least " + pending + " pending commands: p50 "
+                        + latency.getValueAtPercentile(50) + " us, max " + latency.getMax() + " us",
+                latency.getCount() == stops && pending > backlog / 2
+                        && latency.getMax() < STOP_LATENCY_BOUND_MILLIS * 1000L);
+
+        // The rest arrive in order, and the motions superseded by the stops never do
+        writer.setRateLimiter(null);
+        List<StandInRobotServer.Arrival> arrivals = _awaitArrivals(server, backlog + stops, 5000);
+        int expressions = 0;
+        boolean isConsistent = true;
+        for(StandInRobotServer.Arrival arrival: arrivals){
+            String command = arrival.getCommand();
+            if(command.startsWith("EXP:")){
+                isConsistent &= command.equals(Command.expression(expressions++ % 10).getText());
+            }else{
+                isConsistent &= command.equals("STP");
+            }
+        }
+        _check(expressions + " expressions in order, no superseded motion written",
+                isConsistent && expressions == backlog);
+    }
+
+    private void _probeWriteTimeout(StandInRobotServer server, CommandWriter writer) throws Exception {
+
+        writer.setWriteTimeout(200);
+        writer.setAutoReconnect(false);
+        server.setReading(false);
+
+        // Enough bytes to fill the send and receive buffers of both ends
+        long start = System.nanoTime();
+        for(int i = 0; i < 2000000 && writer.isBound(); i++){
+            while(!writer.enqueue(Command.raw("EXP:1000000")) && writer.isBound()){
+                Thread.sleep(1);
+            }
+        }
+        ConnectionEventArgs args = _nextEvent(5000);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        _check("Stalled robot detected by write timeout (" + elapsedMillis + " ms)",
+                args != null && args.getState() == ConnectionEventArgs.STATE_LOST);
+
+        server.setReading(true);
+        writer.setWriteTimeout(CommandWriter.DEFAULT_WRITE_TIMEOUT);
+        writer.setAutoReconnect(true);
+    }
+
+    private void _probeReconnect(StandInRobotServer server, CommandWriter writer) throws Exception {
+
+        writer.connect("127.0.0.1", server.getPort());
+        _expect(ConnectionEventArgs.STATE_CONNECTED, writer.getConnectTimeout() + 1000);
+        writer.enqueue(Command.FORWARDS);
+        _awaitArrivals(server, 1, 1000);
+        server.clearArrivals();
+
+        server.disconnectClients();
+        while(writer.isBound()){
+            writer.enqueue(Command.expression(1));
+            Thread.sleep(1);
+        }
+        _expect(ConnectionEventArgs.STATE_LOST, 1000);
+        _expect(ConnectionEventArgs.STATE_RECONNECTING, 1000);
+        ConnectionEventArgs args = _nextEvent(CommandWriter.DEFAULT_MAX_RECONNECT_DELAY * 2);
+        _check("Reconnected: " + args, args != null
+                && args.getState() == ConnectionEventArgs.STATE_CONNECTED
+                && args.getOutageMillis() == writer.getLastOutageMillis());
+
+        // The expressions written before the robot dropped the connection may arrive first
+        List<StandInRobotServer.Arrival> arrivals = _awaitLastArrival(server, "FWD", 1000);
+        _check("Motion replayed after reconnecting",
+                arrivals.size() > 0 && arrivals.get(arrivals.size() - 1).getCommand().equals("FWD"));
+    }
+
+    private void _probeHeartbeat(StandInRobotServer server, CommandWriter writer) throws Exception {
+
+        writer.setHeartbeatInterval(50);
+        Thread.sleep(500);
+        _check("Round trip estimated: " + writer.getSmoothedRttMicros() + " us, "
+                        + writer.getRttHistogram().getCount() + " samples",
+                writer.getSmoothedRttMicros() > 0 && writer.getRttHistogram().getCount() > 0);
+
+        // The socket stays open, but the robot does not answer anymore
+        server.setReading(false);
+        long start = System.nanoTime();
+        ConnectionEventArgs args = _nextEvent(2000);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        _check("Silent robot detected by the heartbeat (" + elapsedMillis + " ms)",
+                args != null && args.getState() == ConnectionEventArgs.STATE_LOST
+                        && elapsedMillis < 50 * (CommandWriter.HEARTBEAT_MISSES + 2));
+
+        server.setReading(true);
+        _expect(ConnectionEventArgs.STATE_RECONNECTING, 1000);
+        _expect(ConnectionEventArgs.STATE_CONNECTED, CommandWriter.DEFAULT_MAX_RECONNECT_DELAY * 2);
+        writer.setHeartbeatInterval(0);
+    }
+
+    private void _probeConnectTimeout(CommandWriter writer) throws Exception {
+
+        // A listener whose backlog is full drops the handshake, like an unreachable host
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        ServerSocket saturated = new ServerSocket(0, 1, loopback);
+        List<Socket> fillers = new ArrayList<Socket>();
+        try {
+            for(int i = 0; i < 3; i++){
+                Socket filler = new Socket();
+                fillers.add(filler);
+                try {
+                    filler.connect(new InetSocketAddress(loopback, saturated.getLocalPort()), 200);
+                }catch(IOException ex){
+                    break;
+                }
+            }
+
+            writer.setConnectTimeout(500);
+            long start = System.nanoTime();
+            writer.connect("127.0.0.1", saturated.getLocalPort());
+            _expect(ConnectionEventArgs.STATE_DISCONNECTED, 1000);
+            ConnectionEventArgs args = _nextEvent(5000);
+            long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+            _check("Connect gave up after " + elapsedMillis + " ms: " + args,
+                    args != null && args.getState() == ConnectionEventArgs.STATE_CONNECT_FAILED
+                            && elapsedMillis < 2000);
+
+            // The name is looked up within the same timeout
+            start = System.nanoTime();
+            writer.connect(UNKNOWN_HOST, saturated.getLocalPort());
+            args = _nextEvent(5000);
+            elapsedMillis = (System.nanoTime() - start) / 1000000L;
+            _check("Unknown host failed after " + elapsedMillis + " ms: " + args,
+                    args != null && args.getState() == ConnectionEventArgs.STATE_CONNECT_FAILED
+                            && args.getError() instanceof UnknownHostException && elapsedMillis < 2000);
+        }finally{
+            for(Socket filler: fillers){
+                filler.close();
+            }
+            saturated.close();
+        }
+    }
+
+    private void _expect(int state, long timeoutMillis) throws InterruptedException {
+
+        ConnectionEventArgs args = _nextEvent(timeoutMillis);
+        _check("Connection event " + args, args != null && args.getState() == state);
+    }
+
+    /**
+     * @return The next connection event, skipping the connection attempts
+     */
+    private ConnectionEventArgs _nextEvent(long timeoutMillis) throws InterruptedException {
+
+        ConnectionEventArgs args;
+        do {
+            args = _events.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }while(args != null && args.getState() == ConnectionEventArgs.STATE_CONNECTING);
+
+        return args;
+    }
+
+    private List<StandInRobotServer.Arrival> _awaitArrivals(StandInRobotServer server, int count,
+                                                            long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<StandInRobotServer.Arrival> arrivals = server.getArrivals();
+        while(arrivals.size() < count && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+            arrivals = server.getArrivals();
+        }
+
+        return arrivals;
+    }
+
+    private List<StandInRobotServer.Arrival> _awaitLastArrival(StandInRobotServer server, String command,
+                                                               long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<StandInRobotServer.Arrival> arrivals = server.getArrivals();
+        while((arrivals.isEmpty() || !arrivals.get(arrivals.size() - 1).getCommand().equals(command))
+                && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+            arrivals = server.getArrivals();
+        }
+
+        return arrivals;
+    }
+
+    private void _check(String description, boolean isPassed){
+
+        System.out.println((isPassed ? "PASS " : "FAIL ") + description);
+        _hasFailed |= !isPassed;
+    }
+}